@@ -1,38 +1,72 @@
 package edu.macalester.wpsemsim.lucene;
 
 import edu.macalester.wpsemsim.utils.ConfigurationFile;
+import edu.macalester.wpsemsim.utils.TitleMap;
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static edu.macalester.wpsemsim.utils.ConfigurationFile.*;
-import static java.util.concurrent.TimeUnit.HOURS;
 
 
 /**
  * Parses a Wikipedia dump and constructs one or more lucene indexes.
  * The dump should be one or more files in standard Wikipedia XML format in a single directory.
- * Each file in the directory is processed in parallel.
+ * Each file in the directory is processed in parallel, and large files are split
+ * so that several threads can parse them (see PageReader.split()).
+ * Parsed pages flow through bounded queues to threads that build documents and then
+ * to per-index writing threads (see IndexPipeline).
+ *
+ * By default each index is written as pages are parsed and then revisited when it is
+ * closed to add in-link information. A two-phase build ("twoPhase": true in the indexes
+ * section of the configuration) parses the dump twice instead: first only to collect
+ * links, then to write every document once with all of its fields.
+ *
+ * The link information is saved next to the indexes, so that a later incremental dump
+ * of added and changed pages can be applied to them with update() instead of a rebuild.
  */
 public class AllIndexBuilder {
     private static final Logger LOG = Logger.getLogger(AllIndexBuilder.class.getName());
 
+    /**
+     * Name of the file in the output directory that holds the saved PageInfo.
+     */
+    public static final String PAGE_INFO_FILE = "pageinfo.bin";
+
+    /**
+     * Name of the file in the output directory that lists the ids of the pages
+     * whose documents were changed by the last update().
+     */
+    public static final String UPDATED_IDS_FILE = "updated-ids.txt";
+
 
     private File outputDir;
     private File inputPath;
     private ConfigurationFile conf;
     private List<IndexGenerator> generators = new ArrayList<IndexGenerator>();
     private PageInfo info = new PageInfo();
-    private AtomicInteger numDocs = new AtomicInteger();
+
+    /**
+     * Pipeline stage sizes; non-positive thread counts are derived from the write() thread count.
+     */
+    private int analyzeThreads = 0;
+    private int writeThreads = 0;
+    private int queueSize = 1000;
+
+    private boolean twoPhase = false;
 
 
     public AllIndexBuilder(ConfigurationFile conf, List<String> keys) throws ConfigurationException {
@@ -41,6 +75,21 @@ public class AllIndexBuilder {
         this.conf = conf;
         IndexGeneratorConfigurator builder = new IndexGeneratorConfigurator();
         generators.addAll(builder.loadGenerators(info, conf, keys));
+        if (conf.get("indexes").containsKey("twoPhase")) {
+            setTwoPhase(requireBoolean(conf.get("indexes"), "twoPhase"));
+        }
+    }
+
+    /**
+     * If true, collect links in a separate pass over the dump before writing documents,
+     * so that each document is written once and closing an index does not rewrite it.
+     * @param twoPhase
+     */
+    public void setTwoPhase(boolean twoPhase) {
+        this.twoPhase = twoPhase;
+        for (IndexGenerator g : generators) {
+            g.setFinishOnStore(twoPhase);
+        }
     }
 
     /**
@@ -51,6 +100,9 @@ public class AllIndexBuilder {
      * @throws InterruptedException
      */
     public void write(int numThreads, int bufferMB) throws IOException, InterruptedException {
+        for (IndexGenerator g : generators) {
+            g.setNumThreads(numThreads);
+        }
         open(bufferMB);
         process(numThreads);
         close();
@@ -62,36 +114,157 @@ public class AllIndexBuilder {
         }
     }
 
-    protected void process(int numThreads) throws InterruptedException {
-        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+    /**
+     * Sets the number of threads used by each stage of the indexing pipeline.
+     * By default every stage is sized from the thread count passed to write().
+     * @param analyzeThreads Number of threads building documents from parsed pages.
+     * @param writeThreads Number of threads adding documents to each index.
+     */
+    public void setStageThreads(int analyzeThreads, int writeThreads) {
+        this.analyzeThreads = analyzeThreads;
+        this.writeThreads = writeThreads;
+    }
 
-        try {
-            for (final File path : getInputFiles()) {
-                String ext = FilenameUtils.getExtension(path.toString());
-                if (!ext.equals("bz2") && !ext.equals("xml")) {
-                    LOG.info("skipping non-dump file " + path);
-                    continue;
-                }
-                exec.submit(new Runnable() {
-                    public void run() {
-                        try {
-                            processOneFile(path);
-                        } catch (IOException e) {
-                            LOG.log(Level.SEVERE, "error processing " + path, e);
-                        }
-                    }
-                });
+    /**
+     * Sets the capacity of the queues between pipeline stages.
+     * @param queueSize
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Runs the dump through a pipeline of parsing, analyzing, and index writing stages.
+     * @see IndexPipeline
+     * @param numThreads
+     * @throws IOException If the pipeline was aborted.
+     * @throws InterruptedException
+     */
+    protected void process(int numThreads) throws IOException, InterruptedException {
+        List<PageReader> readers = new ArrayList<PageReader>();
+        for (final File path : getInputFiles()) {
+            String ext = FilenameUtils.getExtension(path.toString());
+            if (!ext.equals("bz2") && !ext.equals("xml") || PageReader.isMultistreamIndex(path)) {
+                LOG.info("skipping non-dump file " + path);
+                continue;
+            }
+            try {
+                readers.addAll(PageReader.split(path, numThreads));
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "splitting " + path + " failed; reading it whole", e);
+                readers.add(new PageReader(path));
             }
-        } finally {
-            exec.shutdown();
-            exec.awaitTermination(60, HOURS);
         }
+        IndexPipeline pipeline = new IndexPipeline(info, generators);
+        pipeline.setThreads(
+                numThreads,
+                (analyzeThreads > 0) ? analyzeThreads : numThreads,
+                (writeThreads > 0) ? writeThreads : Math.max(1, numThreads / Math.max(1, generators.size())));
+        pipeline.setQueueSize(queueSize);
+        if (twoPhase) {
+            pipeline.setPass(IndexPipeline.Pass.LINKS);
+            pipeline.run(readers);
+            pipeline.setPass(IndexPipeline.Pass.DOCUMENTS);
+        }
+        pipeline.run(readers);
     }
 
     protected void close() throws IOException {
         for (IndexGenerator g : generators) {
             g.close();
         }
+        info.write(new File(outputDir, PAGE_INFO_FILE));
+    }
+
+    /**
+     * Applies a dump of added and changed pages to indexes written earlier by write().
+     * <ol>
+     *     <li>Loads the saved PageInfo and replaces the links of the changed pages.</li>
+     *     <li>Rewrites the documents of the changed pages, or deletes those that should no
+     *     longer be stored.</li>
+     *     <li>Refreshes the in-link fields of the pages whose in-links changed, and the
+     *     links fields of unchanged pages that link to a title that was added, renamed,
+     *     or removed.</li>
+     * </ol>
+     * The ids of all pages whose documents may have changed are written to UPDATED_IDS_FILE.
+     * <p>
+     * Only the lucene indexes are patched. Matrices and other models built from them
+     * (e.g. ESA vectors, most similar matrices, category graphs) are left as they were
+     * and must be rebuilt to reflect the changes; UPDATED_IDS_FILE lists the rows that are stale.
+     * @param changes An adds-changes dump.
+     * @param bufferMB
+     * @throws IOException
+     */
+    public void update(File changes, int bufferMB) throws IOException {
+        info.read(new File(outputDir, PAGE_INFO_FILE));
+        List<Page> pages = new ArrayList<Page>();
+        TIntSet changedIds = new TIntHashSet();
+        for (Page p : new PageReader(changes)) {
+            pages.add(p);
+            changedIds.add(p.getId());
+        }
+        LOG.info("read " + pages.size() + " changed pages from " + changes);
+
+        // titles whose page may change: the old and new titles of the changed pages
+        TLongIntHashMap oldIds = new TLongIntHashMap();
+        for (Page p : pages) {
+            long h = info.getTitleHash(p.getId());
+            if (h != 0) {
+                oldIds.put(h, info.getPageId(h));
+            }
+            h = TitleMap.titleHash(p.getTitle(), false);
+            oldIds.put(h, info.getPageId(h));
+        }
+
+        TLongSet touched = info.removePages(changedIds);
+        for (Page p : pages) {
+            info.update(p);
+            for (String link : p.getUniqueAnchorLinks()) {
+                touched.add(TitleMap.titleHash(link, false));
+            }
+        }
+        TIntSet touchedIds = new TIntHashSet();
+        TLongIterator iter = touched.iterator();
+        while (iter.hasNext()) {
+            int wpId = info.getPageId(iter.next());
+            if (wpId > 0 && !changedIds.contains(wpId)) {
+                touchedIds.add(wpId);
+            }
+        }
+        LOG.info("in-links of " + touchedIds.size() + " unchanged pages changed");
+
+        // unchanged pages linking to those titles store the ids they resolved to
+        LinkChanges linkChanges = new LinkChanges();
+        TLongIntIterator titles = oldIds.iterator();
+        while (titles.hasNext()) {
+            titles.advance();
+            int newId = info.getPageId(titles.key());
+            if (newId == titles.value()) {
+                continue;
+            }
+            for (int wpId : info.getInLinkGraph().getLinks(titles.key())) {
+                if (!changedIds.contains(wpId)) {
+                    linkChanges.relink(wpId, titles.value(), newId);
+                }
+            }
+        }
+        LOG.info("links of " + linkChanges.getPageIds().size() + " unchanged pages changed");
+
+        for (IndexGenerator g : generators) {
+            g.openForUpdate(new File(outputDir, g.getName()), bufferMB / generators.size());
+            for (Page p : pages) {
+                g.updatePage(p);
+            }
+            g.refreshInLinks(touchedIds, linkChanges);
+            g.close();
+        }
+        info.write(new File(outputDir, PAGE_INFO_FILE));
+
+        touchedIds.addAll(linkChanges.getPageIds());
+        touchedIds.addAll(changedIds);
+        int ids[] = touchedIds.toArray();
+        Arrays.sort(ids);
+        FileUtils.writeStringToFile(new File(outputDir, UPDATED_IDS_FILE), StringUtils.join(ArrayUtils.toObject(ids), "\n") + "\n");
     }
 
     /**
@@ -120,31 +293,6 @@ public class AllIndexBuilder {
         return inputs;
     }
 
-    /**
-     * Process a single XML dump file.
-     * @param path
-     * @throws IOException
-     */
-    public void processOneFile(File path) throws IOException {
-        LOG.info("reading input file " + path);
-        for (Page p : new PageReader(path)) {
-            storePage(p);
-            if (numDocs.incrementAndGet() % 10000 == 0) {
-                LOG.info("read doc " + numDocs + " from " + path + ": " + p.getTitle());
-            }
-//            if (numDocs.get() > 5000) {
-//                break;
-//            }
-        }
-    }
-
-    public void storePage(Page p) throws IOException {
-        info.update(p);
-        for (IndexGenerator g : generators) {
-            g.storePage(p);
-        }
-    }
-
     public List<IndexGenerator> getGenerators() {
         return generators;
     }
@@ -155,16 +303,26 @@ public class AllIndexBuilder {
 
     public static void main(String args[]) throws IOException, InterruptedException, ConfigurationException {
         if (args.length < 2) {
-            System.err.println("usage: java " + AllIndexBuilder.class.getCanonicalName() + " path/to/conf.txt memory-cache-in-MB {index1 index2 ...}");
+            System.err.println("usage: java " + AllIndexBuilder.class.getCanonicalName() + " path/to/conf.txt memory-cache-in-MB [--update changes.xml[.bz2]] {index1 index2 ...}");
         }
         int cores = Runtime.getRuntime().availableProcessors();
         LOG.info("using " + cores + " threads");
+        File changes = null;
+        int firstKey = 2;
+        if (args.length > 3 && args[2].equals("--update")) {
+            changes = new File(args[3]);
+            firstKey = 4;
+        }
         List<String> keys = null;
-        if (args.length > 2) {
-            keys = Arrays.asList(ArrayUtils.subarray(args, 2, args.length));
+        if (args.length > firstKey) {
+            keys = Arrays.asList(ArrayUtils.subarray(args, firstKey, args.length));
         }
         ConfigurationFile conf = new ConfigurationFile(new File(args[0]));
         File outputPath = new File(requireString(conf.get("indexes"), "outputDir"));
+        if (changes != null) {
+            new AllIndexBuilder(conf, keys).update(changes, Integer.valueOf(args[1]));
+            return;
+        }
         if (keys == null) {
             FileUtils.deleteDirectory(outputPath);
         }
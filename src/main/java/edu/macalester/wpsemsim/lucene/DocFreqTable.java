@@ -0,0 +1,124 @@
+package edu.macalester.wpsemsim.lucene;
+
+import gnu.trove.list.array.TIntArrayList;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * An immutable table of document frequencies for a field whose terms are Wikipedia ids
+ * (e.g. "links" or "inlinks").
+ *
+ * Terms are assigned dense ordinals in increasing wpId order, so a sorted array of wpIds
+ * maps to a sorted array of ordinals. Document frequencies and idfs are stored in plain
+ * arrays indexed by ordinal, so lookups require no locking.
+ *
+ * The table is built in a single pass over the field's terms.
+ */
+public class DocFreqTable {
+    private static final Logger LOG = Logger.getLogger(DocFreqTable.class.getName());
+
+    private final String field;
+    private final int wpIds[];
+    private final int docFreqs[];
+    private final float idfs[];
+
+    public DocFreqTable(DirectoryReader reader, String field) throws IOException {
+        this.field = field;
+        TIntArrayList ids = new TIntArrayList();
+        TIntArrayList freqs = new TIntArrayList();
+        Terms terms = MultiFields.getTerms(reader, field);
+        if (terms != null) {
+            TermsEnum te = terms.iterator(null);
+            BytesRef ref;
+            while ((ref = te.next()) != null) {
+                ids.add(Integer.valueOf(ref.utf8ToString()));
+                freqs.add(te.docFreq());
+            }
+        }
+
+        // terms are ordered lexicographically, so reorder them numerically
+        long packed[] = new long[ids.size()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = (((long)ids.get(i)) << 32) | (freqs.get(i) & 0xFFFFFFFFL);
+        }
+        Arrays.sort(packed);
+
+        this.wpIds = new int[packed.length];
+        this.docFreqs = new int[packed.length];
+        this.idfs = new float[packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            wpIds[i] = (int) (packed[i] >> 32);
+            docFreqs[i] = (int) packed[i];
+            idfs[i] = (float) (1.0 / Math.sqrt(Math.max(2, docFreqs[i])));
+        }
+        LOG.info("built doc freq table for field " + field + " with " + wpIds.length + " terms");
+    }
+
+    /**
+     * @param wpId
+     * @return The ordinal for the wpId, or a negative number if it is not a term in the field.
+     */
+    public int getOrdinal(int wpId) {
+        int i = Arrays.binarySearch(wpIds, wpId);
+        return (i < 0) ? -1 : i;
+    }
+
+    /**
+     * @param ordinal
+     * @return The wpId for the ordinal.
+     */
+    public int getWpId(int ordinal) {
+        return wpIds[ordinal];
+    }
+
+    /**
+     * @param ordinal
+     * @return The number of documents containing the term.
+     */
+    public int getDocFreq(int ordinal) {
+        return docFreqs[ordinal];
+    }
+
+    /**
+     * @param wpId
+     * @return The number of documents containing the term, or 0 if it does not appear.
+     */
+    public int getDocFreqForWpId(int wpId) {
+        int i = getOrdinal(wpId);
+        return (i < 0) ? 0 : docFreqs[i];
+    }
+
+    /**
+     * Returns the idf for an ordinal: 1 / sqrt(max(2, docFreq)).
+     * @param ordinal
+     * @return
+     */
+    public float getIdf(int ordinal) {
+        return idfs[ordinal];
+    }
+
+    /**
+     * @return The idfs indexed by ordinal. Callers must not modify the array.
+     */
+    public float[] getIdfs() {
+        return idfs;
+    }
+
+    /**
+     * @return The number of distinct terms (and ordinals).
+     */
+    public int size() {
+        return wpIds.length;
+    }
+
+    public String getField() {
+        return field;
+    }
+}
@@ -0,0 +1,118 @@
+package edu.macalester.wpsemsim.lucene;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only log of (target title hash, source wp id) edges.
+ * Edges are packed into direct buffers, so a log of tens of millions of edges
+ * costs twelve bytes per edge outside of the heap instead of boxed lists on it.
+ * A log is not thread-safe; each thread should append to its own log.
+ *
+ * Before a LinkGraph is built from a log, sortChunks() sorts the edges of each chunk
+ * in place, so the chunks can be merged without copying the edges onto the heap.
+ */
+class EdgeLog {
+    private static final int EDGE_BYTES = 12;
+    static final int EDGES_PER_CHUNK = 1 << 20;
+
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private int size = 0;
+
+    public void add(long target, int source) {
+        int offset = size % EDGES_PER_CHUNK;
+        if (offset == 0 && size / EDGES_PER_CHUNK == chunks.size()) {
+            chunks.add(ByteBuffer.allocateDirect(EDGES_PER_CHUNK * EDGE_BYTES));
+        }
+        ByteBuffer chunk = chunks.get(size / EDGES_PER_CHUNK);
+        chunk.putLong(offset * EDGE_BYTES, target);
+        chunk.putInt(offset * EDGE_BYTES + 8, source);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTarget(int i) {
+        return chunks.get(i / EDGES_PER_CHUNK).getLong((i % EDGES_PER_CHUNK) * EDGE_BYTES);
+    }
+
+    public int getSource(int i) {
+        return chunks.get(i / EDGES_PER_CHUNK).getInt((i % EDGES_PER_CHUNK) * EDGE_BYTES + 8);
+    }
+
+    public int getNumChunks() {
+        return (size + EDGES_PER_CHUNK - 1) / EDGES_PER_CHUNK;
+    }
+
+    /**
+     * Sorts the edges of each chunk by target and then source, in place.
+     * Edges are only ordered within a chunk, not across chunks.
+     */
+    public void sortChunks() {
+        for (int c = 0; c < getNumChunks(); c++) {
+            sort(chunks.get(c), Math.min(EDGES_PER_CHUNK, size - c * EDGES_PER_CHUNK));
+        }
+    }
+
+    /**
+     * Heapsorts the first n edges of a chunk, which needs no extra memory.
+     */
+    private static void sort(ByteBuffer chunk, int n) {
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(chunk, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(chunk, 0, end);
+            siftDown(chunk, 0, end);
+        }
+    }
+
+    private static void siftDown(ByteBuffer chunk, int i, int n) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                return;
+            }
+            if (child + 1 < n && less(chunk, child, child + 1)) {
+                child++;
+            }
+            if (!less(chunk, i, child)) {
+                return;
+            }
+            swap(chunk, i, child);
+            i = child;
+        }
+    }
+
+    private static boolean less(ByteBuffer chunk, int i, int j) {
+        long t1 = chunk.getLong(i * EDGE_BYTES);
+        long t2 = chunk.getLong(j * EDGE_BYTES);
+        if (t1 != t2) {
+            return t1 < t2;
+        }
+        return chunk.getInt(i * EDGE_BYTES + 8) < chunk.getInt(j * EDGE_BYTES + 8);
+    }
+
+    private static void swap(ByteBuffer chunk, int i, int j) {
+        long t = chunk.getLong(i * EDGE_BYTES);
+        int s = chunk.getInt(i * EDGE_BYTES + 8);
+        chunk.putLong(i * EDGE_BYTES, chunk.getLong(j * EDGE_BYTES));
+        chunk.putInt(i * EDGE_BYTES + 8, chunk.getInt(j * EDGE_BYTES + 8));
+        chunk.putLong(j * EDGE_BYTES, t);
+        chunk.putInt(j * EDGE_BYTES + 8, s);
+    }
+
+    /**
+     * Removes all edges. The first chunk is kept for reuse, and the others are
+     * released when the garbage collector reclaims them.
+     */
+    public void clear() {
+        while (chunks.size() > 1) {
+            chunks.remove(chunks.size() - 1);
+        }
+        size = 0;
+    }
+}
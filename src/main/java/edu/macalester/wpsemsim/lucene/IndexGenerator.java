@@ -1,12 +1,21 @@
 package edu.macalester.wpsemsim.lucene;
 
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
 import edu.macalester.wpsemsim.utils.TitleMap;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -17,6 +26,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 /**
@@ -30,6 +40,10 @@ import java.util.logging.Logger;
  * </ol>
  * Closing an index can be very slow, because it requires up to three passes over the index
  * to accumulate information, prune the information, and finalize the documents.
+ * <p>
+ * If the link information is complete before any document is stored, the generator can
+ * instead finish each document as it is built, and close() only commits (see setFinishOnStore).
+ * This needs an earlier pass that calls PageInfo.update() and accumulate() for every page.
  *
  * @see AllIndexBuilder
  */
@@ -103,6 +117,39 @@ public class IndexGenerator {
     protected File indexDir;
     private DocBooster booster;
 
+    /**
+     * If true, documents are pruned and given their derived fields when they are
+     * built, and close() does not revisit them.
+     */
+    private boolean finishOnStore = false;
+
+    /**
+     * If greater than one, threads storing documents write to this many sub-indexes,
+     * which are merged into the index when it is closed.
+     */
+    private int numSubIndexes = 1;
+    private File subIndexDir;
+    private final List<IndexWriter> subWriters = new ArrayList<IndexWriter>();
+    private final AtomicInteger nextSubWriter = new AtomicInteger();
+    private final ThreadLocal<IndexWriter> threadWriter = new ThreadLocal<IndexWriter>() {
+        @Override
+        protected IndexWriter initialValue() {
+            return subWriters.get(nextSubWriter.getAndIncrement() % subWriters.size());
+        }
+    };
+
+    /**
+     * Writer settings; if unset, the merge policy is Lucene's default and the
+     * RAM buffer is the size passed to open().
+     */
+    private MergePolicy mergePolicy;
+    private int ramBufferMB = 0;
+
+    /**
+     * Number of threads used to prune and update documents in close().
+     */
+    private int numThreads = 1;
+
     /**
      * Information shared across several index generators.
      */
@@ -142,6 +189,56 @@ public class IndexGenerator {
         return this;
     }
 
+    /**
+     * Finish documents when they are built instead of in close(). Only correct
+     * if every page has already been passed to PageInfo.update() and accumulate().
+     * @param finishOnStore
+     * @return
+     */
+    public IndexGenerator setFinishOnStore(boolean finishOnStore) {
+        this.finishOnStore = finishOnStore;
+        return this;
+    }
+
+    public boolean getFinishOnStore() {
+        return finishOnStore;
+    }
+
+    /**
+     * Write documents to several sub-indexes that are merged with addIndexes() on close.
+     * Each storing thread sticks to one sub-index, so threads rarely share a writer.
+     * @param numSubIndexes
+     * @return
+     */
+    public IndexGenerator setNumSubIndexes(int numSubIndexes) {
+        this.numSubIndexes = Math.max(1, numSubIndexes);
+        return this;
+    }
+
+    /**
+     * @param mergePolicy Cloned for each writer.
+     * @return
+     */
+    public IndexGenerator setMergePolicy(MergePolicy mergePolicy) {
+        this.mergePolicy = mergePolicy;
+        return this;
+    }
+
+    /**
+     * @param ramBufferMB Memory for buffering documents, split among sub-indexes.
+     *                    Overrides the size passed to open().
+     * @return
+     */
+    public IndexGenerator setRamBufferMB(int ramBufferMB) {
+        this.ramBufferMB = ramBufferMB;
+        return this;
+    }
+
+    public IndexGenerator setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+        return this;
+    }
+
     public IndexGenerator setTitleMultiplier(int multiplier) {
         this.titleMultiplier = multiplier;
         return this;
@@ -173,7 +270,7 @@ public class IndexGenerator {
             return false;
         } else if (minWords > 0 && p.getNumUniqueWordsInText() < minWords) {
             return false;
-        }  else if (minLinks > 0 && new HashSet<String>(p.getAnchorLinks()).size() < minLinks) {
+        }  else if (minLinks > 0 && p.getUniqueAnchorLinks().size() < minLinks) {
             return false;
         } else {
             return true;
@@ -193,10 +290,118 @@ public class IndexGenerator {
      * @throws IOException
      */
     public void open(File indexDir, int bufferMB) throws IOException {
+        if (ramBufferMB > 0) {
+            bufferMB = ramBufferMB;
+        }
         this.indexDir = indexDir;
         FileUtils.deleteDirectory(indexDir);
         indexDir.mkdirs();
         this.dir = FSDirectory.open(indexDir);
+        this.writer = new IndexWriter(dir, makeWriterConfig(bufferMB));
+        if (numSubIndexes > 1) {
+            subIndexDir = new File(indexDir.getParentFile(), indexDir.getName() + "-parts");
+            FileUtils.deleteDirectory(subIndexDir);
+            for (int i = 0; i < numSubIndexes; i++) {
+                Directory d = FSDirectory.open(new File(subIndexDir, "" + i));
+                subWriters.add(new IndexWriter(d, makeWriterConfig(Math.max(1, bufferMB / numSubIndexes))));
+            }
+        }
+    }
+
+    /**
+     * Opens an existing index so that updatePage() and refreshInLinks() can change it.
+     * Documents are finished as they are stored, so the PageInfo must be complete.
+     * @param indexDir
+     * @param bufferMB
+     * @throws IOException
+     */
+    public void openForUpdate(File indexDir, int bufferMB) throws IOException {
+        if (ramBufferMB > 0) {
+            bufferMB = ramBufferMB;
+        }
+        this.indexDir = indexDir;
+        this.dir = FSDirectory.open(indexDir);
+        IndexWriterConfig iwc = makeWriterConfig(bufferMB);
+        iwc.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+        this.writer = new IndexWriter(dir, iwc);
+        setFinishOnStore(true);
+    }
+
+    /**
+     * Replaces the document for a page, or deletes it if the page should no longer be stored.
+     * @param p
+     * @throws IOException
+     */
+    public void updatePage(Page p) throws IOException {
+        writer.deleteDocuments(new Term(Page.FIELD_WPID, "" + p.getId()));
+        storePage(p);
+    }
+
+    /**
+     * Recomputes the in-link fields of existing documents whose in-links changed, and
+     * deletes those that now have fewer than minLinks in-links. The links fields of
+     * documents in linkChanges are re-resolved: ids of pages that were removed or renamed
+     * are dropped, and ids of titles that pages were added under are added.
+     * In-link text added to the text field is not recomputed, because the anchor
+     * text of unchanged pages is not kept, and pages that were pruned earlier are
+     * not restored.
+     * @param wpIds
+     * @param linkChanges
+     * @throws IOException
+     */
+    public void refreshInLinks(TIntSet wpIds, LinkChanges linkChanges) throws IOException {
+        if (minLinks == 0 && !doField(Page.FIELD_NINLINKS) && !doField(Page.FIELD_INLINKS)
+        &&  !doField(Page.FIELD_LINKS)) {
+            return;
+        }
+        if (addInLinksToText) {
+            LOG.warning(getName() + " adds in-link text to pages, which is only refreshed by a full build");
+        }
+        TIntSet ids = new TIntHashSet(wpIds);
+        ids.addAll(linkChanges.getPageIds());
+        IndexReader reader = DirectoryReader.open(writer, true);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        TIntIterator iter = ids.iterator();
+        int n = 0;
+        while (iter.hasNext()) {
+            int wpId = iter.next();
+            Term id = new Term(Page.FIELD_WPID, "" + wpId);
+            ScoreDoc hits[] = searcher.search(new TermQuery(id), 1).scoreDocs;
+            if (hits.length == 0) {
+                continue;
+            }
+            Document d = reader.document(hits[0].doc);
+            String title = d.get(Page.FIELD_TITLE);
+            TIntList inLinks = info.getInLinks(title);
+            if (minLinks > 0 && inLinks.size() < minLinks) {
+                writer.deleteDocuments(id);
+                continue;
+            }
+            d.removeFields(Page.FIELD_NINLINKS);
+            d.removeFields(Page.FIELD_INLINKS);
+            if (doField(Page.FIELD_NINLINKS)) {
+                d.add(new IntField(Page.FIELD_NINLINKS, inLinks.size(), Field.Store.YES));
+            }
+            if (doField(Page.FIELD_INLINKS)) {
+                for (int l : inLinks.toArray()) {
+                    d.add(new NormedStringField(Page.FIELD_INLINKS, ""+l, Field.Store.YES));
+                }
+            }
+            if (doField(Page.FIELD_LINKS) && linkChanges.contains(wpId)) {
+                List<String> links = Arrays.asList(d.getValues(Page.FIELD_LINKS));
+                d.removeFields(Page.FIELD_LINKS);
+                for (String l : linkChanges.apply(wpId, links)) {
+                    d.add(new NormedStringField(Page.FIELD_LINKS, l, Field.Store.YES));
+                }
+            }
+            writer.updateDocument(id, Page.correctMetadata(d));
+            n++;
+        }
+        reader.close();
+        LOG.info("refreshed links of " + n + " docs in " + getName());
+    }
+
+    private IndexWriterConfig makeWriterConfig(int bufferMB) {
         Analyzer analyzer = (this.analyzer == null) ? new StandardAnalyzer(Version.LUCENE_42) : this.analyzer;
         IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_42, analyzer);
         iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
@@ -204,7 +409,10 @@ public class IndexGenerator {
         if (this.similarity != null) {
             iwc.setSimilarity(similarity);
         }
-        this.writer = new IndexWriter(dir, iwc);
+        if (this.mergePolicy != null) {
+            iwc.setMergePolicy(mergePolicy.clone());
+        }
+        return iwc;
     }
 
     /**
@@ -213,22 +421,35 @@ public class IndexGenerator {
      * @throws IOException
      */
     public void storePage(Page p) throws IOException {
+        Document d = buildDocument(p);
+        if (d != null) {
+            storeLuceneDoc(d);
+        }
+    }
+
+    /**
+     * Builds the document that this index stores for a page, without storing it.
+     * This does the per-page work of storePage() that doesn't touch the index writer.
+     * @param p
+     * @return The document, or null if the page should not be stored.
+     */
+    public Document buildDocument(Page p) {
         if (!shouldInclude(p)) {
-            return;
+            return null;
         }
         Document source = p.toLuceneDoc();
         Document pruned = new Document();  // only contains relevant fields
 
         for (String fieldName : fields) {
             for (IndexableField f : source.getFields(fieldName)) {
-                pruned.add(f);
+                pruned.add(copyField(f));
             }
         }
 
         // add linktext to outbound pages.
         if (addInLinksToText && !doField(Page.FIELD_LINKTEXT)) {
             for (IndexableField f : source.getFields(Page.FIELD_LINKTEXT)) {
-                pruned.add(f);
+                pruned.add(copyField(f));
             }
         }
 
@@ -242,7 +463,46 @@ public class IndexGenerator {
             pruned.add(new TextField(Page.FIELD_TEXT, text, Field.Store.YES));
         }
 
-        storeLuceneDoc(pruned);
+        if (finishOnStore) {
+            if (minLinks > 0 && info.getInLinks(p.getTitle()).size() < minLinks) {
+                return null;
+            }
+            addDerivedFields(pruned);
+            return Page.correctMetadata(pruned);
+        }
+        return pruned;
+    }
+
+    /**
+     * Accumulates the anchor text of a page's links for the pages they link to.
+     * This is the per-page equivalent of the first pass of close(), for generators
+     * that finish documents when they are stored.
+     * @param p
+     */
+    public void accumulate(Page p) {
+        if (!addInLinksToText || !doField(Page.FIELD_LINKS) || !shouldInclude(p)) {
+            return;
+        }
+        List<String> links = p.getAnchorLinks();
+        List<String> texts = p.getTextOfAnchors();
+        if (links.size() != texts.size()) {
+            LOG.info("lengths of links and text off by " + (links.size() - texts.size()));
+            return;
+        }
+        // unlike the first pass of close(), targets with too few in-links aren't skipped
+        // because their in-link counts may be incomplete, but their documents are pruned.
+        for (int j = 0; j < links.size(); j++) {
+            inLinkText.get(links.get(j)).append("\n" + texts.get(j));
+        }
+    }
+
+    /**
+     * The page's document is shared by all generators, and a field caches its token
+     * stream, so each generator's document gets its own copy of the fields. Otherwise
+     * two generators writing the same page at once corrupt each other's token streams.
+     */
+    private static Field copyField(IndexableField f) {
+        return new Field(f.name(), f.stringValue(), (FieldType) f.fieldType());
     }
 
     /**
@@ -259,11 +519,14 @@ public class IndexGenerator {
      * @throws IOException
      */
     public void close() throws IOException {
+        mergeSubIndexes();
         writer.commit();
 
-        accumulate();
-        prune();
-        updateDocs();
+        if (!finishOnStore) {
+            accumulate();
+            prune();
+            updateDocs();
+        }
 
         LOG.info(getName() + " wrote " + writer.numDocs() + " documents");
         writer.commit();
@@ -272,6 +535,28 @@ public class IndexGenerator {
     }
 
 
+    /**
+     * Closes the sub-indexes, if any, and adds their segments to the index.
+     * @throws IOException
+     */
+    private void mergeSubIndexes() throws IOException {
+        if (subWriters.isEmpty()) {
+            return;
+        }
+        LOG.info("merging " + subWriters.size() + " sub-indexes of " + getName());
+        Directory dirs[] = new Directory[subWriters.size()];
+        for (int i = 0; i < subWriters.size(); i++) {
+            dirs[i] = subWriters.get(i).getDirectory();
+            subWriters.get(i).close();
+        }
+        writer.addIndexes(dirs);
+        for (Directory d : dirs) {
+            d.close();
+        }
+        subWriters.clear();
+        FileUtils.deleteDirectory(subIndexDir);
+    }
+
     /**
      * First pass in close:
      * Accumulates information that will be used in updating and pruning documents.
@@ -326,17 +611,14 @@ public class IndexGenerator {
         }
         IndexReader reader = DirectoryReader.open(writer, false);
         LOG.info(getName() + " had " + writer.numDocs() + " docs before pruning");
-        Bits live = MultiFields.getLiveDocs(reader);
-        for (int i = 0; i < reader.numDocs(); i++) {
-            if (live != null && !live.get(i)) {
-                continue;
-            }
-            Document d = reader.document(i);
-            int wpId = Integer.valueOf(d.get("id"));
-            if (info.getInLinks(d.get(Page.FIELD_TITLE)).size() < minLinks) {
-                writer.deleteDocuments(new Term("id", ""+wpId));
+        forEachDocument(reader, new Procedure<Document>() {
+            public void call(Document d) throws Exception {
+                int wpId = Integer.valueOf(d.get("id"));
+                if (info.getInLinks(d.get(Page.FIELD_TITLE)).size() < minLinks) {
+                    writer.deleteDocuments(new Term("id", ""+wpId));
+                }
             }
-        }
+        });
         reader.close();
         writer.commit();
         writer.forceMergeDeletes(true);
@@ -358,59 +640,100 @@ public class IndexGenerator {
         }
         LOG.info("adding inlink counts and text to article text");
         IndexReader reader = DirectoryReader.open(writer, false);
-        Bits live = MultiFields.getLiveDocs(reader);
-        int n = 0;
-        for (int i = 0; i < reader.numDocs(); i++) {
-            if (live != null && !live.get(i)) {
-                continue;
+        final AtomicInteger n = new AtomicInteger();
+        forEachDocument(reader, new Procedure<Document>() {
+            public void call(Document d) throws Exception {
+                n.incrementAndGet();
+                addDerivedFields(d);
+                writer.updateDocument(new Term("id", d.get("id")), Page.correctMetadata(d));
             }
-            n++;
-            Document d = reader.document(i);
-            String title = d.get(Page.FIELD_TITLE);
-            if (doField(Page.FIELD_LINKTEXT)) {
-                if (inLinkText.containsKey(title)) {
-                    String text = d.get(Page.FIELD_TEXT) + inLinkText.get(title);
-                    d.removeFields(Page.FIELD_TEXT);
-                    d.add(new TextField(Page.FIELD_TEXT, text, Field.Store.YES));
-                }
-                if (addInLinksToText && !ArrayUtils.contains(fields, Page.FIELD_LINKTEXT)) {
-                    d.removeFields(Page.FIELD_LINKTEXT);
+        });
+        LOG.info("finished updating fields in " + n + " docs");
+        writer.commit();
+        reader.close();
+    }
+
+    /**
+     * Calls a procedure on every live document of a reader, splitting the documents
+     * into ranges that are processed in parallel by the generator's threads.
+     * @param reader
+     * @param fn
+     * @throws IOException If the procedure failed for any document.
+     */
+    private void forEachDocument(final IndexReader reader, final Procedure<Document> fn) throws IOException {
+        final Bits live = MultiFields.getLiveDocs(reader);
+        final int maxDoc = reader.maxDoc();
+        final int rangeSize = Math.max(1000, maxDoc / (numThreads * 4) + 1);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        List<Integer> starts = new ArrayList<Integer>();
+        for (int i = 0; i < maxDoc; i += rangeSize) {
+            starts.add(i);
+        }
+        ParallelForEach.loop(starts, numThreads, new Procedure<Integer>() {
+            public void call(Integer start) throws Exception {
+                try {
+                    for (int i = start; i < Math.min(maxDoc, start + rangeSize) && error.get() == null; i++) {
+                        if (live == null || live.get(i)) {
+                            fn.call(reader.document(i));
+                        }
+                    }
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
                 }
             }
-            if (doField(Page.FIELD_NINLINKS)) {
-                int l = info.getInLinks(title).size();
-                d.add(new IntField(Page.FIELD_NINLINKS, l, Field.Store.YES));
+        }, Integer.MAX_VALUE);
+        if (error.get() != null) {
+            throw new IOException("processing documents in " + getName() + " failed", error.get());
+        }
+    }
+
+    /**
+     * Adds in-link text, counts, and ids, resolves outbound links to ids, and applies
+     * the booster. Requires complete in-link information.
+     * @param d
+     */
+    private void addDerivedFields(Document d) {
+        String title = d.get(Page.FIELD_TITLE);
+        if (doField(Page.FIELD_LINKTEXT)) {
+            if (inLinkText.containsKey(title)) {
+                String text = d.get(Page.FIELD_TEXT) + inLinkText.get(title);
+                d.removeFields(Page.FIELD_TEXT);
+                d.add(new TextField(Page.FIELD_TEXT, text, Field.Store.YES));
             }
-            if (doField(Page.FIELD_INLINKS)) {
-                for (int wpId : info.getInLinks(title).toArray()) {
-                    d.add(new NormedStringField(Page.FIELD_INLINKS, ""+wpId, Field.Store.YES));
-                }
+            if (addInLinksToText && !ArrayUtils.contains(fields, Page.FIELD_LINKTEXT)) {
+                d.removeFields(Page.FIELD_LINKTEXT);
             }
-            if (doField(Page.FIELD_LINKS)) {
-                IndexableField links[] = d.getFields(Page.FIELD_LINKS);
-                d.removeFields(Page.FIELD_LINKS);
-                for (IndexableField l : links) {
-                    int wpId = info.getPageId(l.stringValue());
-                    if (wpId > 0) {
-                        d.add(new NormedStringField(Page.FIELD_LINKS, ""+wpId, Field.Store.YES));
-                    }
+        }
+        if (doField(Page.FIELD_NINLINKS)) {
+            int l = info.getInLinks(title).size();
+            d.add(new IntField(Page.FIELD_NINLINKS, l, Field.Store.YES));
+        }
+        if (doField(Page.FIELD_INLINKS)) {
+            for (int wpId : info.getInLinks(title).toArray()) {
+                d.add(new NormedStringField(Page.FIELD_INLINKS, ""+wpId, Field.Store.YES));
+            }
+        }
+        if (doField(Page.FIELD_LINKS)) {
+            IndexableField links[] = d.getFields(Page.FIELD_LINKS);
+            d.removeFields(Page.FIELD_LINKS);
+            for (IndexableField l : links) {
+                int wpId = info.getPageId(l.stringValue());
+                if (wpId > 0) {
+                    d.add(new NormedStringField(Page.FIELD_LINKS, ""+wpId, Field.Store.YES));
                 }
             }
-            if (booster != null) {
-                double boost = booster.getBoost(d);
-                for (String sf : booster.getBoostedFields()) {
-                    Field f = (Field) d.getField(sf);
-                    if (f != null) {
-                        f.setBoost((float)boost);
-                    }
+        }
+        if (booster != null) {
+            double boost = booster.getBoost(d);
+            for (String sf : booster.getBoostedFields()) {
+                Field f = (Field) d.getField(sf);
+                if (f != null) {
+                    f.setBoost((float)boost);
                 }
             }
-            writer.updateDocument(new Term("id", d.get("id")), Page.correctMetadata(d));
         }
-        LOG.info("finished updating fields in " + n + " docs");
-        writer.commit();
-        reader.close();
     }
+
     public IndexGenerator setName(String name) {
         this.name = name;
         return this;
@@ -418,7 +741,11 @@ public class IndexGenerator {
 
     protected void storeLuceneDoc(Document d) throws IOException {
         numDocs.incrementAndGet();
-        this.writer.addDocument(d);
+        if (subWriters.isEmpty()) {
+            this.writer.addDocument(d);
+        } else {
+            threadWriter.get().addDocument(d);
+        }
     }
 
     public IndexWriter getWriter() {
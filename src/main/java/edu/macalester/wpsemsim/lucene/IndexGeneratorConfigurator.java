@@ -6,6 +6,10 @@ import edu.macalester.wpsemsim.sim.esa.ESAAnalyzer;
 import edu.macalester.wpsemsim.sim.esa.ESASimilarity;
 import edu.macalester.wpsemsim.utils.ConfigurationFile;
 import org.apache.commons.lang3.ArrayUtils;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.json.simple.JSONObject;
 
 import java.util.ArrayList;
@@ -38,8 +42,8 @@ public class IndexGeneratorConfigurator {
     public List<IndexGenerator> loadGenerators(PageInfo info, ConfigurationFile conf, Collection<String> names) throws ConfigurationException {
         List<IndexGenerator> generators = new ArrayList<IndexGenerator>();
         for (String key : conf.getKeys("indexes")) {
-            if (key.equals("inputDir") || key.equals("outputDir")) {
-                continue;
+            if (!(conf.get("indexes").get(key) instanceof JSONObject)) {
+                continue;   // a build setting like inputDir, outputDir, or twoPhase
             }
             if (names == null || names.contains(key)) {
                 JSONObject params = conf.get("indexes", key);
@@ -119,11 +123,57 @@ public class IndexGeneratorConfigurator {
                 throw new ConfigurationFile.ConfigurationException("unknown booster type: " + type);
             }
         }
+        if (params.containsKey("subIndexes")) {
+            fg.setNumSubIndexes(requireInteger(params, "subIndexes"));
+        }
+        if (params.containsKey("ramBufferMB")) {
+            fg.setRamBufferMB(requireInteger(params, "ramBufferMB"));
+        }
+        if (params.containsKey("mergePolicy")) {
+            fg.setMergePolicy(loadMergePolicy((JSONObject) params.get("mergePolicy")));
+        }
         g = fg;
         g.setName(name);
         return g;
     }
 
+    /**
+     * Loads a Lucene merge policy. The type is "tiered" (Lucene's default), "logByteSize",
+     * or "none", which never merges segments.
+     * @param params
+     * @return
+     * @throws ConfigurationFile.ConfigurationException
+     */
+    private MergePolicy loadMergePolicy(JSONObject params) throws ConfigurationFile.ConfigurationException {
+        String type = requireString(params, "type");
+        if (type.equals("tiered")) {
+            TieredMergePolicy mp = new TieredMergePolicy();
+            if (params.containsKey("segmentsPerTier")) {
+                mp.setSegmentsPerTier(requireDouble(params, "segmentsPerTier"));
+            }
+            if (params.containsKey("maxMergeAtOnce")) {
+                mp.setMaxMergeAtOnce(requireInteger(params, "maxMergeAtOnce"));
+            }
+            if (params.containsKey("maxMergedSegmentMB")) {
+                mp.setMaxMergedSegmentMB(requireDouble(params, "maxMergedSegmentMB"));
+            }
+            return mp;
+        } else if (type.equals("logByteSize")) {
+            LogByteSizeMergePolicy mp = new LogByteSizeMergePolicy();
+            if (params.containsKey("mergeFactor")) {
+                mp.setMergeFactor(requireInteger(params, "mergeFactor"));
+            }
+            if (params.containsKey("maxMergeMB")) {
+                mp.setMaxMergeMB(requireDouble(params, "maxMergeMB"));
+            }
+            return mp;
+        } else if (type.equals("none")) {
+            return NoMergePolicy.COMPOUND_FILES;
+        } else {
+            throw new ConfigurationFile.ConfigurationException("unknown merge policy type: " + type);
+        }
+    }
+
     private void info(ConfigurationFile conf, String message) {
         LOG.info("configurator for " + conf.getPath() + ": " + message);
     }
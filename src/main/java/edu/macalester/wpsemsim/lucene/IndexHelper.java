@@ -1,5 +1,6 @@
 package edu.macalester.wpsemsim.lucene;
 
+import edu.macalester.wpsemsim.utils.LruCache;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
@@ -10,12 +11,12 @@ import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,14 +26,15 @@ import java.util.logging.Logger;
 public class IndexHelper {
     private static final Logger LOG = Logger.getLogger(IndexHelper.class.getName());
 
-    // TODO: make the concurrenthashmap LRU
     private static final int FILTER_CACHE_SIZE = 50;
 
     private DirectoryReader reader;
     private IndexSearcher searcher;
     private File indexDir;
 
-    private final Map<TIntSet, WpIdFilter> filterCache = new ConcurrentHashMap<TIntSet, WpIdFilter>(16, 0.75f, 1);
+    private final LruCache<TIntSet, WpIdFilter> filterCache = new LruCache<TIntSet, WpIdFilter>(FILTER_CACHE_SIZE);
+    private final Map<String, DocFreqTable> docFreqTables = new HashMap<String, DocFreqTable>();
+    private int luceneIdToWpIds[] = null;
 
     private Analyzer analyzer;
 
@@ -294,6 +296,52 @@ public class IndexHelper {
         return reader.docFreq(new Term(field, term));
     }
 
+    /**
+     * Returns the document frequency table for a field whose terms are Wikipedia ids.
+     * The table is built on first use and shared by all callers.
+     * @param field
+     * @return
+     * @throws IOException
+     */
+    public synchronized DocFreqTable getDocFreqTable(String field) throws IOException {
+        DocFreqTable table = docFreqTables.get(field);
+        if (table == null) {
+            table = new DocFreqTable(reader, field);
+            docFreqTables.put(field, table);
+        }
+        return table;
+    }
+
+    /**
+     * Returns a table mapping every lucene id to its wikipedia id, or -1 for deleted docs.
+     * The table is built on first use with a single pass over the id postings,
+     * so callers can translate many ids without loading documents.
+     * @return
+     * @throws IOException
+     */
+    public synchronized int[] getLuceneIdToWpIds() throws IOException {
+        if (luceneIdToWpIds == null) {
+            int ids[] = new int[reader.maxDoc()];
+            Arrays.fill(ids, -1);
+            Terms terms = MultiFields.getTerms(reader, Page.FIELD_WPID);
+            if (terms != null) {
+                Bits liveDocs = MultiFields.getLiveDocs(reader);
+                TermsEnum te = terms.iterator(null);
+                DocsEnum de = null;
+                BytesRef ref;
+                while ((ref = te.next()) != null) {
+                    int wpId = Integer.valueOf(ref.utf8ToString());
+                    de = te.docs(liveDocs, de, DocsEnum.FLAG_NONE);
+                    for (int doc = de.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = de.nextDoc()) {
+                        ids[doc] = wpId;
+                    }
+                }
+            }
+            luceneIdToWpIds = ids;
+        }
+        return luceneIdToWpIds;
+    }
+
     /**
      * Returns the final title, after following up to 10 redirects.
      * @param title
@@ -337,16 +385,18 @@ public class IndexHelper {
         if (wpIds == null) {
             return null;
         }
-        Filter f = filterCache.get(wpIds);
+        WpIdFilter f = filterCache.get(wpIds);
         if (f != null) {
             return f;
         }
         // avoid concurrent creations by making a synchronized check.
         synchronized (filterCache) {
-            if (!filterCache.containsKey(wpIds)) {
-                filterCache.put(wpIds, new WpIdFilter(this, wpIds.toArray()));
+            f = filterCache.get(wpIds);
+            if (f == null) {
+                f = new WpIdFilter(this, wpIds.toArray());
+                filterCache.put(wpIds, f);
             }
-            return filterCache.get(wpIds);
+            return f;
         }
     }
 
@@ -0,0 +1,398 @@
+package edu.macalester.wpsemsim.lucene;
+
+import org.apache.lucene.document.Document;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feeds the pages of a dump to index generators through a staged pipeline:
+ * <ol>
+ *     <li>parse: each PageReader is parsed by its own task, and parsing threads share the readers.</li>
+ *     <li>analyze: updates the shared PageInfo and builds the document each generator stores.</li>
+ *     <li>write: every generator has its own queue and threads that add documents to its index.</li>
+ * </ol>
+ * Stages are connected by bounded queues, so a slow stage blocks the stages that feed it
+ * instead of letting pages pile up in memory. The throughput, busy time and input queue
+ * depth of each stage are logged periodically and when the pipeline finishes.
+ * <p>
+ * A two-phase build runs the pipeline twice: a LINKS pass only fills in the PageInfo
+ * and lets each generator accumulate, and a DOCUMENTS pass then writes the documents.
+ * <p>
+ * Errors for a single reader, page or document are logged and skipped. If a stage's thread
+ * dies instead, its queue would stop draining and block every stage that feeds it, so the
+ * pipeline is aborted: all threads are interrupted and run() throws the error.
+ */
+class IndexPipeline {
+    private static final Logger LOG = Logger.getLogger(IndexPipeline.class.getName());
+
+    /**
+     * The work the analyze stage does for each page.
+     */
+    enum Pass {
+        /** Update the PageInfo and store documents. */
+        ALL,
+        /** Update the PageInfo and call IndexGenerator.accumulate(); store nothing. */
+        LINKS,
+        /** Store documents for a PageInfo that is already complete. */
+        DOCUMENTS
+    }
+
+    /**
+     * Markers that tell a stage's threads that their input has ended.
+     */
+    private static final Page END_OF_PAGES = new Page(-1, -1, null, "", "");
+    private static final Document END_OF_DOCS = new Document();
+
+    private final PageInfo info;
+    private final List<IndexGenerator> generators;
+
+    private int parseThreads = 1;
+    private int analyzeThreads = 1;
+    private int writeThreads = 1;
+    private int queueSize = 1000;
+    private long logIntervalMillis = 60 * 1000;
+    private Pass pass = Pass.ALL;
+
+    // state of the current run, used to abort it
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private Thread caller;
+    private volatile boolean aborted = false;
+    private IOException failure;
+
+    IndexPipeline(PageInfo info, List<IndexGenerator> generators) {
+        this.info = info;
+        this.generators = generators;
+    }
+
+    /**
+     * @param parseThreads Number of threads parsing page readers.
+     * @param analyzeThreads Number of threads building documents.
+     * @param writeThreads Number of threads adding documents to each index.
+     */
+    void setThreads(int parseThreads, int analyzeThreads, int writeThreads) {
+        this.parseThreads = Math.max(1, parseThreads);
+        this.analyzeThreads = Math.max(1, analyzeThreads);
+        this.writeThreads = Math.max(1, writeThreads);
+    }
+
+    /**
+     * @param queueSize Capacity of the queue in front of each stage.
+     */
+    void setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    void setPass(Pass pass) {
+        this.pass = pass;
+    }
+
+    void setLogIntervalMillis(long logIntervalMillis) {
+        this.logIntervalMillis = logIntervalMillis;
+    }
+
+    /**
+     * Runs all pages of the readers through the pipeline and waits until they are stored.
+     * Errors for a reader or a document are logged, and the remaining input is still processed.
+     * @param readers
+     * @throws IOException If a stage's thread died and the pipeline was aborted.
+     * @throws InterruptedException
+     */
+    void run(List<PageReader> readers) throws IOException, InterruptedException {
+        final BlockingQueue<PageReader> input = new ArrayBlockingQueue<PageReader>(readers.size() + 1);
+        final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(queueSize);
+        final List<BlockingQueue<Document>> docs = new ArrayList<BlockingQueue<Document>>();
+        for (IndexGenerator g : generators) {
+            docs.add(new ArrayBlockingQueue<Document>(queueSize));
+        }
+        input.addAll(readers);
+
+        final Stage parse = new Stage("parse", parseThreads, null);
+        final Stage analyze = new Stage("analyze", analyzeThreads, pages);
+        final List<Stage> writes = new ArrayList<Stage>();
+        for (int i = 0; i < generators.size(); i++) {
+            writes.add(new Stage("write " + generators.get(i).getName(), writeThreads, docs.get(i)));
+        }
+
+        List<Thread> parsers = parse.createThreads(new StageTask() {
+            public boolean process() throws Exception {
+                PageReader reader = input.poll();
+                if (reader == null) {
+                    return false;
+                }
+                LOG.info("reading input " + reader);
+                try {
+                    for (Page p : reader) {
+                        pages.put(p);
+                        parse.count.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    LOG.log(Level.SEVERE, "error processing " + reader, e);
+                }
+                return true;
+            }
+        });
+        List<Thread> analyzers = analyze.createThreads(new StageTask() {
+            public boolean process() throws Exception {
+                Page p = pages.take();
+                if (p == END_OF_PAGES) {
+                    return false;
+                }
+                long start = System.nanoTime();
+                Document built[] = new Document[generators.size()];
+                try {
+                    if (pass != Pass.DOCUMENTS) {
+                        info.update(p);
+                    }
+                    for (int i = 0; i < generators.size(); i++) {
+                        if (pass == Pass.LINKS) {
+                            generators.get(i).accumulate(p);
+                        } else {
+                            built[i] = generators.get(i).buildDocument(p);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    LOG.log(Level.SEVERE, "error analyzing page " + p.getTitle(), e);
+                    return true;
+                } finally {
+                    analyze.busyNanos.addAndGet(System.nanoTime() - start);
+                }
+                for (int i = 0; i < built.length; i++) {
+                    if (built[i] != null) {
+                        docs.get(i).put(built[i]);
+                    }
+                }
+                analyze.count.incrementAndGet();
+                return true;
+            }
+        });
+        List<List<Thread>> writers = new ArrayList<List<Thread>>();
+        for (int i = 0; i < generators.size(); i++) {
+            final IndexGenerator g = generators.get(i);
+            final BlockingQueue<Document> queue = docs.get(i);
+            final Stage write = writes.get(i);
+            writers.add(write.createThreads(new StageTask() {
+                public boolean process() throws Exception {
+                    Document d = queue.take();
+                    if (d == END_OF_DOCS) {
+                        return false;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        g.storeLuceneDoc(d);
+                        write.count.incrementAndGet();
+                    } catch (Exception e) {
+                        LOG.log(Level.SEVERE, "error writing document " + d.get(Page.FIELD_TITLE) + " to " + g.getName(), e);
+                    } finally {
+                        write.busyNanos.addAndGet(System.nanoTime() - start);
+                    }
+                    return true;
+                }
+            }));
+        }
+
+        List<Stage> stages = new ArrayList<Stage>();
+        stages.add(parse);
+        stages.add(analyze);
+        stages.addAll(writes);
+        synchronized (this) {
+            aborted = false;
+            failure = null;
+            caller = Thread.currentThread();
+            workers.clear();
+            workers.addAll(parsers);
+            workers.addAll(analyzers);
+            for (List<Thread> threads : writers) {
+                workers.addAll(threads);
+            }
+        }
+        for (Thread t : workers) {
+            t.start();
+        }
+        Thread monitor = startMonitor(stages);
+        try {
+            // shut down each stage once the stage feeding it has finished
+            join(parsers);
+            for (int i = 0; i < analyzeThreads; i++) {
+                pages.put(END_OF_PAGES);
+            }
+            join(analyzers);
+            for (int i = 0; i < generators.size(); i++) {
+                for (int j = 0; j < writeThreads; j++) {
+                    docs.get(i).put(END_OF_DOCS);
+                }
+            }
+            for (List<Thread> threads : writers) {
+                join(threads);
+            }
+        } catch (InterruptedException e) {
+            if (!aborted) {
+                stopWorkers();
+                throw e;
+            }
+        } finally {
+            monitor.interrupt();
+        }
+        if (aborted) {
+            awaitWorkers();
+            Thread.interrupted();   // clear the interrupt sent by abort()
+            logStages(stages, "aborted " + pass.name().toLowerCase() + " pass");
+            throw failure;
+        }
+        logStages(stages, "finished " + pass.name().toLowerCase() + " pass");
+    }
+
+    /**
+     * Called when a stage's thread dies. Stops the other threads and wakes up run(),
+     * which throws the error once they have exited.
+     */
+    private synchronized void abort(String stage, Throwable cause) {
+        if (aborted) {
+            return;
+        }
+        LOG.log(Level.SEVERE, "stage " + stage + " failed; aborting the index pipeline", cause);
+        failure = new IOException("index pipeline stage " + stage + " failed", cause);
+        stopWorkers();
+        caller.interrupt();
+    }
+
+    private synchronized void stopWorkers() {
+        aborted = true;
+        for (Thread t : workers) {
+            if (t != Thread.currentThread()) {
+                t.interrupt();
+            }
+        }
+    }
+
+    private void awaitWorkers() {
+        List<Thread> threads;
+        synchronized (this) {
+            threads = new ArrayList<Thread>(workers);
+        }
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    // keep waiting; the pipeline is already stopping
+                }
+            }
+        }
+    }
+
+    private Thread startMonitor(final List<Stage> stages) {
+        Thread monitor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(logIntervalMillis);
+                        logStages(stages, "progress");
+                    }
+                } catch (InterruptedException e) {
+                    // pipeline finished
+                }
+            }
+        }, "index-pipeline-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+        return monitor;
+    }
+
+    private void logStages(List<Stage> stages, String label) {
+        StringBuilder message = new StringBuilder("index pipeline " + label + ":");
+        for (Stage s : stages) {
+            message.append("\n    ").append(s.describe());
+        }
+        LOG.info(message.toString());
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    /**
+     * A unit of work for one of a stage's threads.
+     */
+    private interface StageTask {
+        /**
+         * @return false when the stage's input has ended.
+         */
+        boolean process() throws Exception;
+    }
+
+    /**
+     * Threads and metrics of a single stage.
+     */
+    private class Stage {
+        final String name;
+        final int numThreads;
+        final BlockingQueue<?> input;   // queue feeding the stage, or null
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final long startNanos = System.nanoTime();
+
+        long lastCount = 0;
+        long lastNanos = startNanos;
+
+        Stage(String name, int numThreads, BlockingQueue<?> input) {
+            this.name = name;
+            this.numThreads = numThreads;
+            this.input = input;
+        }
+
+        /**
+         * @return The stage's threads, which run() starts once every stage has been created.
+         */
+        List<Thread> createThreads(final StageTask task) {
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < numThreads; i++) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            while (!aborted && task.process()) {
+                            }
+                        } catch (InterruptedException e) {
+                            if (!aborted) {
+                                abort(name, e);
+                            }
+                        } catch (Throwable e) {
+                            abort(name, e);
+                        }
+                    }
+                }, "index-pipeline-" + name + "-" + i);
+                threads.add(t);
+            }
+            return threads;
+        }
+
+        /**
+         * Describes the items processed since the last call, their rate, the share of the
+         * stage's thread time spent working (parsing is not timed), and the input queue depth.
+         */
+        synchronized String describe() {
+            long now = System.nanoTime();
+            long n = count.get();
+            double seconds = Math.max(1e-9, (now - lastNanos) / 1e9);
+            double totalSeconds = Math.max(1e-9, (now - startNanos) / 1e9);
+            String s = String.format("%s (%d threads): %d items, %.1f/s recently, %.1f/s overall",
+                    name, numThreads, n, (n - lastCount) / seconds, n / totalSeconds);
+            if (input != null) {
+                s += String.format(", busy %.0f%%, queue %d/%d",
+                        100.0 * busyNanos.get() / 1e9 / totalSeconds / numThreads,
+                        input.size(), input.size() + input.remainingCapacity());
+            }
+            lastCount = n;
+            lastNanos = now;
+            return s;
+        }
+    }
+}
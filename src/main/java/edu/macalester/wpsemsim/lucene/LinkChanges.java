@@ -0,0 +1,83 @@
+package edu.macalester.wpsemsim.lucene;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The resolved link ids of unchanged pages that differ after an update because a title
+ * they link to was added, renamed, or removed. Collected by AllIndexBuilder.update()
+ * and applied to the links field by IndexGenerator.refreshInLinks().
+ */
+public class LinkChanges {
+    private final TIntObjectHashMap<TIntSet> removed = new TIntObjectHashMap<TIntSet>();
+    private final TIntObjectHashMap<TIntSet> added = new TIntObjectHashMap<TIntSet>();
+
+    /**
+     * Records that a link of a page resolved to oldId and now resolves to newId.
+     * @param wpId The linking page.
+     * @param oldId The id the link resolved to, or 0 if none.
+     * @param newId The id the link resolves to, or 0 if none.
+     */
+    public void relink(int wpId, int oldId, int newId) {
+        if (oldId > 0) {
+            get(removed, wpId).add(oldId);
+        }
+        if (newId > 0) {
+            get(added, wpId).add(newId);
+        }
+    }
+
+    /**
+     * @return Ids of the pages whose links changed.
+     */
+    public TIntSet getPageIds() {
+        TIntSet ids = new TIntHashSet(removed.keySet());
+        ids.addAll(added.keySet());
+        return ids;
+    }
+
+    public boolean contains(int wpId) {
+        return removed.containsKey(wpId) || added.containsKey(wpId);
+    }
+
+    /**
+     * Applies the changes to the resolved link ids of a page.
+     * Removals happen before additions, so a link whose old and new titles both
+     * resolve to the same page keeps it. An added id is only stored once, even
+     * if a full build would repeat it for several links to the same title.
+     * @param wpId
+     * @param links
+     * @return The new link ids.
+     */
+    public List<String> apply(int wpId, List<String> links) {
+        List<String> result = new ArrayList<String>();
+        TIntSet r = removed.get(wpId);
+        for (String l : links) {
+            if (r == null || !r.contains(Integer.valueOf(l))) {
+                result.add(l);
+            }
+        }
+        TIntSet a = added.get(wpId);
+        if (a != null) {
+            for (int id : a.toArray()) {
+                if (!result.contains("" + id)) {
+                    result.add("" + id);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static TIntSet get(TIntObjectHashMap<TIntSet> ids, int wpId) {
+        TIntSet s = ids.get(wpId);
+        if (s == null) {
+            s = new TIntHashSet();
+            ids.put(wpId, s);
+        }
+        return s;
+    }
+}
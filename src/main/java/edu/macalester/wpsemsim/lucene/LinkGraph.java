@@ -0,0 +1,350 @@
+package edu.macalester.wpsemsim.lucene;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.TLongSet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable link graph in compressed sparse row form: a sorted array of target
+ * title hashes, and for each target a sorted run of unique source wp ids.
+ * It needs four bytes per edge plus twelve per target, and lookups binary search
+ * the target hashes. Link metrics can use the runs directly with SortedIntArrays.
+ */
+public final class LinkGraph {
+    public static final LinkGraph EMPTY = new LinkGraph(new long[0], new int[1], new int[0]);
+
+    private final long hashes[];
+    private final int offsets[];    // links of hashes[i] are sources[offsets[i]] ... sources[offsets[i+1]-1]
+    private final int sources[];
+
+    private LinkGraph(long hashes[], int offsets[], int sources[]) {
+        this.hashes = hashes;
+        this.offsets = offsets;
+        this.sources = sources;
+    }
+
+    /**
+     * @return Number of targets with at least one link.
+     */
+    public int size() {
+        return hashes.length;
+    }
+
+    public int getNumEdges() {
+        return offsets[hashes.length];
+    }
+
+    /**
+     * @param titleHash
+     * @return The index of the target, or a negative number if it has no links.
+     */
+    public int indexOf(long titleHash) {
+        return Arrays.binarySearch(hashes, titleHash);
+    }
+
+    public long getTitleHash(int index) {
+        return hashes[index];
+    }
+
+    public int getNumLinks(long titleHash) {
+        int i = indexOf(titleHash);
+        return (i < 0) ? 0 : offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * @param titleHash
+     * @return The sorted, unique ids of pages linking to the target.
+     */
+    public int[] getLinks(long titleHash) {
+        int i = indexOf(titleHash);
+        return (i < 0) ? new int[0] : getLinksAt(i);
+    }
+
+    /**
+     * @param index
+     * @return The sorted, unique ids of pages linking to the target at the index.
+     */
+    public int[] getLinksAt(int index) {
+        return Arrays.copyOfRange(sources, offsets[index], offsets[index + 1]);
+    }
+
+    /**
+     * Returns a copy of the graph without the links from some pages.
+     * @param removed Ids of the pages whose links should be removed.
+     * @param touched Receives the hashes of the targets that lost links.
+     * @return
+     */
+    public LinkGraph removeSources(TIntSet removed, TLongSet touched) {
+        int numEdges = 0;
+        for (int j = 0; j < sources.length; j++) {
+            if (!removed.contains(sources[j])) {
+                numEdges++;
+            }
+        }
+        if (numEdges == sources.length) {
+            return this;
+        }
+        long newHashes[] = new long[hashes.length];
+        int newOffsets[] = new int[hashes.length + 1];
+        int newSources[] = new int[numEdges];
+        int numTargets = 0;
+        int end = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            int start = end;
+            for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                if (removed.contains(sources[j])) {
+                    touched.add(hashes[i]);
+                } else {
+                    newSources[end++] = sources[j];
+                }
+            }
+            if (end > start) {
+                newHashes[numTargets] = hashes[i];
+                newOffsets[numTargets++] = start;
+            }
+        }
+        newOffsets[numTargets] = end;
+        return new LinkGraph(
+                Arrays.copyOf(newHashes, numTargets),
+                Arrays.copyOf(newOffsets, numTargets + 1),
+                newSources);
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(hashes.length);
+        out.writeInt(sources.length);
+        for (int i = 0; i < hashes.length; i++) {
+            out.writeLong(hashes[i]);
+            out.writeInt(offsets[i + 1] - offsets[i]);
+        }
+        for (int j = 0; j < sources.length; j++) {
+            out.writeInt(sources[j]);
+        }
+    }
+
+    public static LinkGraph read(DataInput in) throws IOException {
+        long hashes[] = new long[in.readInt()];
+        int offsets[] = new int[hashes.length + 1];
+        int sources[] = new int[in.readInt()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = in.readLong();
+            offsets[i + 1] = offsets[i] + in.readInt();
+        }
+        for (int j = 0; j < sources.length; j++) {
+            sources[j] = in.readInt();
+        }
+        return new LinkGraph(hashes, offsets, sources);
+    }
+
+    /**
+     * Builds a graph from the edges of an existing graph and some edge logs.
+     * Each chunk of the logs is sorted in place off the heap, and the sorted chunks and
+     * the existing graph are merged twice: first to count the distinct targets and edges,
+     * and then to fill in the new graph's arrays. Duplicate edges are dropped as they are
+     * merged, so the only per-edge array allocated on the heap is the new graph's sources.
+     * @param previous Graph whose edges are kept, or EMPTY.
+     * @param logs
+     * @return
+     */
+    static LinkGraph build(LinkGraph previous, List<EdgeLog> logs) {
+        for (EdgeLog log : logs) {
+            log.sortChunks();
+        }
+
+        int numTargets = 0;
+        int numEdges = 0;
+        EdgeMerger merger = new EdgeMerger(previous, logs);
+        while (merger.next()) {
+            if (merger.isNewTarget()) {
+                numTargets++;
+            }
+            if (merger.isNewEdge()) {
+                numEdges++;
+            }
+        }
+
+        long hashes[] = new long[numTargets];
+        int offsets[] = new int[numTargets + 1];
+        int sources[] = new int[numEdges];
+        int t = -1;
+        int e = 0;
+        merger = new EdgeMerger(previous, logs);
+        while (merger.next()) {
+            if (merger.isNewTarget()) {
+                hashes[++t] = merger.getTarget();
+                offsets[t] = e;
+            }
+            if (merger.isNewEdge()) {
+                sources[e++] = merger.getSource();
+            }
+        }
+        offsets[numTargets] = e;
+        return new LinkGraph(hashes, offsets, sources);
+    }
+
+    /**
+     * A position in a sequence of edges sorted by target and then source.
+     */
+    private static abstract class EdgeCursor {
+        long target;
+        int source;
+
+        /**
+         * Moves to the next edge.
+         * @return false if there are no more edges.
+         */
+        abstract boolean advance();
+
+        boolean lessThan(EdgeCursor that) {
+            return (target != that.target) ? target < that.target : source < that.source;
+        }
+    }
+
+    private static final class GraphCursor extends EdgeCursor {
+        private final LinkGraph graph;
+        private int index = -1;     // index of the current target
+        private int edge = -1;      // index of the current edge in sources
+
+        GraphCursor(LinkGraph graph) {
+            this.graph = graph;
+        }
+
+        boolean advance() {
+            if (++edge >= graph.getNumEdges()) {
+                return false;
+            }
+            while (edge >= graph.offsets[index + 1]) {
+                index++;
+            }
+            target = graph.hashes[index];
+            source = graph.sources[edge];
+            return true;
+        }
+    }
+
+    private static final class ChunkCursor extends EdgeCursor {
+        private final EdgeLog log;
+        private final int end;
+        private int edge;
+
+        ChunkCursor(EdgeLog log, int chunk) {
+            this.log = log;
+            this.edge = chunk * EdgeLog.EDGES_PER_CHUNK - 1;
+            this.end = Math.min(log.size(), (chunk + 1) * EdgeLog.EDGES_PER_CHUNK);
+        }
+
+        boolean advance() {
+            if (++edge >= end) {
+                return false;
+            }
+            target = log.getTarget(edge);
+            source = log.getSource(edge);
+            return true;
+        }
+    }
+
+    /**
+     * Merges sorted sequences of edges with a heap of cursors, visiting all edges
+     * (including duplicates) in order of target and then source.
+     */
+    private static final class EdgeMerger {
+        private final EdgeCursor heap[];
+        private int size = 0;
+        private boolean started = false;
+        private boolean hasLast = false;
+        private long lastTarget;
+        private int lastSource;
+        private boolean newTarget;
+        private boolean newEdge;
+
+        EdgeMerger(LinkGraph graph, List<EdgeLog> logs) {
+            List<EdgeCursor> cursors = new ArrayList<EdgeCursor>();
+            cursors.add(new GraphCursor(graph));
+            for (EdgeLog log : logs) {
+                for (int c = 0; c < log.getNumChunks(); c++) {
+                    cursors.add(new ChunkCursor(log, c));
+                }
+            }
+            heap = new EdgeCursor[cursors.size()];
+            for (EdgeCursor cursor : cursors) {
+                if (cursor.advance()) {
+                    heap[size++] = cursor;
+                }
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        /**
+         * Moves to the next edge.
+         * @return false if there are no more edges.
+         */
+        boolean next() {
+            if (started) {
+                lastTarget = heap[0].target;
+                lastSource = heap[0].source;
+                hasLast = true;
+                if (!heap[0].advance()) {
+                    heap[0] = heap[--size];
+                }
+                if (size > 0) {
+                    siftDown(0);
+                }
+            }
+            started = true;
+            if (size == 0) {
+                return false;
+            }
+            newTarget = !hasLast || heap[0].target != lastTarget;
+            newEdge = newTarget || heap[0].source != lastSource;
+            return true;
+        }
+
+        long getTarget() {
+            return heap[0].target;
+        }
+
+        int getSource() {
+            return heap[0].source;
+        }
+
+        /**
+         * @return true if the current edge is the first to its target.
+         */
+        boolean isNewTarget() {
+            return newTarget;
+        }
+
+        /**
+         * @return true unless the current edge duplicates the previous one.
+         */
+        boolean isNewEdge() {
+            return newEdge;
+        }
+
+        private void siftDown(int i) {
+            EdgeCursor c = heap[i];
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < size && heap[right].lessThan(heap[child])) {
+                    child = right;
+                }
+                if (!heap[child].lessThan(c)) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = c;
+        }
+    }
+}
@@ -39,6 +39,17 @@ public class MarkupStripper {
 	 * @return the stripped text
 	 */
 	public static String stripEverything(String markup)  {
+		return WikiTextScanner.strip(markup) ;
+	}
+	
+	/**
+	 * The original implementation of stripEverything(), which makes a separate regex pass for each kind 
+	 * of markup. WikiTextScanner produces the same text in a single scan; this is kept as a reference. 
+	 * 
+	 * @param markup the text to be stripped
+	 * @return the stripped text
+	 */
+	public static String stripEverythingWithRegexes(String markup)  {
 		
 		String strippedMarkup = stripTemplates(markup) ;
 		strippedMarkup = MarkupStripper.stripSection(strippedMarkup, "see also") ;
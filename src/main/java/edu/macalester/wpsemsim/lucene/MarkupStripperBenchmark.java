@@ -0,0 +1,59 @@
+package edu.macalester.wpsemsim.lucene;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares WikiTextScanner with the regex passes of MarkupStripper on the pages of a dump.
+ * Reports the throughput of each in MB/s (of markup characters, counted as two bytes each)
+ * and the number of pages for which the stripped text differs.
+ */
+public class MarkupStripperBenchmark {
+    public static void main(String args[]) {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("usage: java " + MarkupStripperBenchmark.class.getName() +
+                    " dump.xml[.bz2] [max-pages] [rounds]");
+            System.exit(1);
+        }
+        int maxPages = (args.length >= 2) ? Integer.valueOf(args[1]) : 10000;
+        int rounds = (args.length >= 3) ? Integer.valueOf(args[2]) : 5;
+
+        List<String> texts = new ArrayList<String>();
+        long numChars = 0;
+        for (Page p : new PageReader(new File(args[0]))) {
+            if (texts.size() >= maxPages) {
+                break;
+            }
+            texts.add(p.getText());
+            numChars += p.getText().length();
+        }
+        double mb = 2.0 * numChars / (1024 * 1024);
+        System.out.println("read " + texts.size() + " pages (" + String.format("%.1f", mb) + " MB)");
+
+        int mismatches = 0;
+        for (String text : texts) {
+            if (!MarkupStripper.stripEverythingWithRegexes(text).equals(WikiTextScanner.strip(text))) {
+                mismatches++;
+            }
+        }
+        System.out.println("stripped text differs for " + mismatches + " pages");
+
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (String text : texts) {
+                MarkupStripper.stripEverythingWithRegexes(text);
+            }
+            double regexSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (String text : texts) {
+                WikiTextScanner.strip(text);
+            }
+            double scanSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(String.format("round %d: regexes %.1f MB/s, scanner %.1f MB/s",
+                    r + 1, mb / regexSeconds, mb / scanSeconds));
+        }
+    }
+}
@@ -37,6 +37,16 @@ public final class Page {
     private String strippedText = null;
     private Document luceneDoc;
 
+    /**
+     * Links (without fragments), their anchor texts, categories, and the stripped text.
+     * Parsed together by a single scan the first time any of them is needed.
+     */
+    private String links[];
+    private String uniqueLinks[];
+    private String anchorTexts[];
+    private String categories[];
+    private String dabLinksWithFragments[];
+
     public Page(int ns, int id, String redirect, String title, String text) {
         this.ns = ns;
         this.id = id;
@@ -54,10 +64,8 @@ public final class Page {
      * This is a relatively expensive operation, so it is cached.
      * @return Textual content of wiki markup
      */
-    public synchronized String getStrippedText() {
-        if (this.strippedText == null) {
-            this.strippedText = MarkupStripper.stripEverything(text);
-        }
+    public String getStrippedText() {
+        parseLinks();
         return this.strippedText;
     }
 
@@ -168,8 +176,20 @@ public final class Page {
         }
         return result;
     }
+    /**
+     * @return Targets of the links in the page, without fragments, in order of appearance.
+     */
     public List<String> getAnchorLinks() {
-        return removeFragments(getAnchorLinksWithFragments(text));
+        parseLinks();
+        return Collections.unmodifiableList(Arrays.asList(links));
+    }
+
+    /**
+     * @return Distinct targets of the links in the page, without fragments.
+     */
+    public List<String> getUniqueAnchorLinks() {
+        parseLinks();
+        return Collections.unmodifiableList(Arrays.asList(uniqueLinks));
     }
 
     /**
@@ -177,52 +197,40 @@ public final class Page {
      * @return
      */
     public List<String> getCategories() {
-        List<String> cats = new ArrayList<String>();
-        for (String link : getAnchorLinks()) {
-            if (link.toLowerCase().startsWith("category:")) {
-                cats.add(link.substring("category:".length()));
-            }
-        }
-        return cats;
+        parseLinks();
+        return Collections.unmodifiableList(Arrays.asList(categories));
     }
 
-    private static final Pattern LINK_PATTERN = Pattern.compile("\\[\\[([^\\]]+?)\\]\\]");
-
     public static ArrayList<String> getAnchorLinksWithFragments(String text) {
-        ArrayList<String> anchorLinks = new ArrayList<String>();
-        Matcher linkMatcher;
-        linkMatcher = LINK_PATTERN.matcher(text);
-        while (linkMatcher.find()) {
-            String addition = linkMatcher.group(1);
-            if (addition.contains("|")) {
-                addition = addition.substring(0, addition.indexOf("|"));
-            }
-            addition = addition.trim().replaceAll("\\s+", "_");
-            if (!addition.contains("Image:")) {
-                anchorLinks.add(addition);
-            }
-        }
-        return anchorLinks;
+        return new ArrayList<String>(WikiTextScanner.scan(text, false).getLinks());
     }
 
     public List<String> getTextOfAnchors() {
-        ArrayList<String> descriptions = new ArrayList<String>();
-        Matcher linkMatcher;
-        linkMatcher = LINK_PATTERN.matcher(text);
-        while (linkMatcher.find()) {
-            String addition = linkMatcher.group(1);
-            String description = addition;
-            if (addition.contains("|")) {
-                description = addition.substring(addition.indexOf("|") + 1);
-                addition = addition.substring(0, addition.indexOf("|"));
-            }
-            addition = addition.trim().replaceAll("\\s+", "_");
-            if (!addition.contains("Image:")) {
-                descriptions.add(description);
+        parseLinks();
+        return Collections.unmodifiableList(Arrays.asList(anchorTexts));
+    }
+
+    /**
+     * Scans the text once, caching its links, the values derived from them, and the
+     * stripped text.
+     */
+    private synchronized void parseLinks() {
+        if (links != null) {
+            return;
+        }
+        WikiTextScanner scanner = WikiTextScanner.scan(text, true);
+        this.strippedText = scanner.getStrippedText();
+        List<String> targets = removeFragments(scanner.getLinks());
+        List<String> cats = new ArrayList<String>();
+        for (String link : targets) {
+            if (link.regionMatches(true, 0, "category:", 0, "category:".length())) {
+                cats.add(link.substring("category:".length()));
             }
         }
-        return descriptions;
-
+        this.anchorTexts = scanner.getAnchorTexts().toArray(new String[0]);
+        this.categories = cats.toArray(new String[0]);
+        this.uniqueLinks = new LinkedHashSet<String>(targets).toArray(new String[0]);
+        this.links = targets.toArray(new String[0]);
     }
 
     private static final String DAB_BLACKLIST [] = {
@@ -281,7 +289,14 @@ public final class Page {
 
     private static final Pattern DAB_LINK_PATTERN = Pattern.compile("\\*(?:[ \"']*)?\\s*\\[\\[([^\\]]+?)\\]\\](?:[ '\"]*)?");
 
-    public List<String> getDisambiguationLinksWithFragments() {
+    public synchronized List<String> getDisambiguationLinksWithFragments() {
+        if (dabLinksWithFragments == null) {
+            dabLinksWithFragments = parseDisambiguationLinks().toArray(new String[0]);
+        }
+        return Collections.unmodifiableList(Arrays.asList(dabLinksWithFragments));
+    }
+
+    private List<String> parseDisambiguationLinks() {
         ArrayList<String> anchorLinks = new ArrayList<String>();
         Matcher linkMatcher;
         linkMatcher = DAB_LINK_PATTERN.matcher(text);
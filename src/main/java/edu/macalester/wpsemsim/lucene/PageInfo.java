@@ -1,72 +1,280 @@
 package edu.macalester.wpsemsim.lucene;
 
 import edu.macalester.wpsemsim.utils.TitleMap;
+import gnu.trove.TCollections;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TIntLongIterator;
 import gnu.trove.map.hash.TIntLongHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 
-import java.util.HashSet;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Information about pages that may be needed by multiple index generators.
  * Only one instance of this object is created, and it is shared by all index
  * generators. Save memory by putting shared information here.
+ *
+ * Many threads call update() at once, so titles and ids are kept in maps sharded by
+ * hash, each with its own lock, and each thread appends in-links to its own off-heap
+ * edge log. The logs are built into a compact LinkGraph when in-links are next read,
+ * which is normally once all pages have been updated.
  */
 public class PageInfo {
+    private static final int NUM_STRIPES = 64;
+
+    private static final TIntList NO_LINKS = TCollections.unmodifiableList(new TIntArrayList(0));
+
     /**
-     * Wikipedia titles to a list of inbound Wikipedia page ids.
-     * Page ids in each inbound list are unique.
+     * Inbound Wikipedia page ids for each linked title hash.
+     * Replaced by a new graph whenever buffered links are merged.
      */
-    TitleMap<TIntArrayList> inLinks= new TitleMap<TIntArrayList>(TIntArrayList.class);
+    private volatile LinkGraph inLinks = LinkGraph.EMPTY;
 
     /**
-     * Map from titles to wikipedia ids.
+     * In-links appended by each thread that haven't been merged yet.
      */
-    TitleMap<Integer> pageIds = new TitleMap<Integer>(Integer.class);
+    private final List<EdgeLog> linkLogs = new ArrayList<EdgeLog>();
+    private final ThreadLocal<EdgeLog> threadLinkLog = new ThreadLocal<EdgeLog>() {
+        @Override
+        protected EdgeLog initialValue() {
+            EdgeLog log = new EdgeLog();
+            synchronized (linkLogs) {
+                linkLogs.add(log);
+            }
+            return log;
+        }
+    };
+    private volatile boolean hasBufferedLinks = false;
 
     /**
-     * Map from titles to hashes of titles.
+     * Map from hashes of titles to wikipedia ids, sharded by title hash.
      */
-    TIntLongHashMap wpIdsToHashes = new TIntLongHashMap();
+    private final TLongIntHashMap pageIds[] = new TLongIntHashMap[NUM_STRIPES];
 
-    TIntLongHashMap redirects = new TIntLongHashMap();
+    /**
+     * Map from wikipedia ids to hashes of titles, sharded by id.
+     */
+    private final TIntLongHashMap wpIdsToHashes[] = new TIntLongHashMap[NUM_STRIPES];
 
     public PageInfo() {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            pageIds[i] = new TLongIntHashMap();
+            wpIdsToHashes[i] = new TIntLongHashMap();
+        }
     }
 
     public void update(Page p) {
-        synchronized (pageIds) {
-            pageIds.put(p.getTitle(), p.getId());
+        long h = getTitleHash(p.getTitle());
+        TLongIntHashMap ids = pageIds[stripe(h)];
+        synchronized (ids) {
+            ids.put(h, p.getId());
+        }
+        TIntLongHashMap hashes = wpIdsToHashes[stripe(p.getId())];
+        synchronized (hashes) {
+            hashes.put(p.getId(), h);
+        }
+        List<String> links = p.getUniqueAnchorLinks();
+        if (!links.isEmpty()) {
+            EdgeLog log = threadLinkLog.get();
+            synchronized (log) {
+                for (String link : links) {
+                    log.add(getTitleHash(link), p.getId());
+                }
+            }
+            hasBufferedLinks = true;
+        }
+    }
+
+    public TIntList getInLinks(String title) {
+        return getInLinks(getTitleHash(title));
+    }
+
+    public TIntList getInLinks(int wpId) {
+        TIntLongHashMap hashes = wpIdsToHashes[stripe(wpId)];
+        long h;
+        synchronized (hashes) {
+            if (!hashes.containsKey(wpId)) {
+                return NO_LINKS;
+            }
+            h = hashes.get(wpId);
+        }
+        return getInLinks(h);
+    }
+
+    private TIntList getInLinks(long titleHash) {
+        int links[] = getInLinkGraph().getLinks(titleHash);
+        return (links.length == 0) ? NO_LINKS : TIntArrayList.wrap(links);
+    }
+
+    /**
+     * @return The in-links of all pages updated so far, keyed by title hash.
+     */
+    public LinkGraph getInLinkGraph() {
+        if (hasBufferedLinks) {
+            mergeLinkLogs();
+        }
+        return inLinks;
+    }
+
+    /**
+     * @param title
+     * @return The id of the page with the title, or 0 if it is unknown.
+     */
+    public int getPageId(String title) {
+        return getPageId(getTitleHash(title));
+    }
+
+    /**
+     * @param titleHash
+     * @return The id of the page with the title hash, or 0 if it is unknown.
+     */
+    public int getPageId(long titleHash) {
+        TLongIntHashMap ids = pageIds[stripe(titleHash)];
+        synchronized (ids) {
+            return ids.get(titleHash);
         }
-        synchronized (wpIdsToHashes) {
-            wpIdsToHashes.put(p.getId(), getTitleHash(p.getTitle()));
+    }
+
+    /**
+     * @param wpId
+     * @return The hash of the title of the page with the id, or 0 if it is unknown.
+     */
+    public long getTitleHash(int wpId) {
+        TIntLongHashMap hashes = wpIdsToHashes[stripe(wpId)];
+        synchronized (hashes) {
+            return hashes.get(wpId);
+        }
+    }
+
+    /**
+     * Forgets the titles and outbound links of some pages, so that new versions of
+     * the pages can be passed to update().
+     * @param wpIds
+     * @return Hashes of the titles that the pages linked to.
+     */
+    public synchronized TLongSet removePages(TIntSet wpIds) {
+        TIntIterator iter = wpIds.iterator();
+        while (iter.hasNext()) {
+            int wpId = iter.next();
+            TIntLongHashMap hashes = wpIdsToHashes[stripe(wpId)];
+            synchronized (hashes) {
+                if (!hashes.containsKey(wpId)) {
+                    continue;
+                }
+                long h = hashes.remove(wpId);
+                TLongIntHashMap ids = pageIds[stripe(h)];
+                synchronized (ids) {
+                    if (ids.get(h) == wpId) {
+                        ids.remove(h);
+                    }
+                }
+            }
+        }
+        TLongSet touched = new TLongHashSet();
+        inLinks = getInLinkGraph().removeSources(wpIds, touched);
+        return touched;
+    }
+
+    /**
+     * Saves the titles, ids, and in-links of all pages updated so far.
+     * @param path
+     * @throws IOException
+     */
+    public void write(File path) throws IOException {
+        LinkGraph graph = getInLinkGraph();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            for (TIntLongHashMap hashes : wpIdsToHashes) {
+                synchronized (hashes) {
+                    out.writeInt(hashes.size());
+                    TIntLongIterator iter = hashes.iterator();
+                    while (iter.hasNext()) {
+                        iter.advance();
+                        out.writeInt(iter.key());
+                        out.writeLong(iter.value());
+                    }
+                }
+            }
+            graph.write(out);
+        } finally {
+            out.close();
         }
-        for (String link : new HashSet<String>(p.getAnchorLinks())) {
-            synchronized (inLinks) {
-                inLinks.get(link).add(p.getId());
+    }
+
+    /**
+     * Replaces the contents of this object with information saved by write().
+     * @param path
+     * @throws IOException
+     */
+    public synchronized void read(File path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            for (int i = 0; i < NUM_STRIPES; i++) {
+                pageIds[i].clear();
+                wpIdsToHashes[i].clear();
             }
+            for (int i = 0; i < NUM_STRIPES; i++) {
+                int n = in.readInt();
+                for (int j = 0; j < n; j++) {
+                    int wpId = in.readInt();
+                    long h = in.readLong();
+                    pageIds[stripe(h)].put(h, wpId);
+                    wpIdsToHashes[stripe(wpId)].put(wpId, h);
+                }
+            }
+            inLinks = LinkGraph.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Builds a new in-link graph from the current one and the per-thread logs.
+     */
+    private synchronized void mergeLinkLogs() {
+        if (!hasBufferedLinks) {
+            return;     // merged by another thread
         }
-//        if (p.isRedirect()) {
-//            synchronized (redirects) {
-//                redirects.put(p.getId(), getTitleHash(p.getRedirect()));
-//            }
-//        }
+        hasBufferedLinks = false;
+        List<EdgeLog> logs;
+        synchronized (linkLogs) {
+            logs = new ArrayList<EdgeLog>(linkLogs);
+        }
+        mergeLocked(logs, 0);
     }
 
-    public synchronized TIntList getInLinks(String title) {
-        return inLinks.get(title);
+    /**
+     * Locks the logs one at a time, and merges them all once every lock is held.
+     */
+    private void mergeLocked(List<EdgeLog> logs, int i) {
+        if (i < logs.size()) {
+            synchronized (logs.get(i)) {
+                mergeLocked(logs, i + 1);
+            }
+        } else {
+            inLinks = LinkGraph.build(inLinks, logs);
+            for (EdgeLog log : logs) {
+                log.clear();
+            }
+        }
     }
 
-    public synchronized TIntList getInLinks(int wpId) {
-        long h = wpIdsToHashes.get(wpId);
-        return inLinks.get(h);
+    private static int stripe(long h) {
+        return (int) (h ^ (h >>> 32)) & (NUM_STRIPES - 1);
     }
 
-    public synchronized int getPageId(String title) {
-        return pageIds.get(title);
+    private static int stripe(int wpId) {
+        return (wpId ^ (wpId >>> 16)) & (NUM_STRIPES - 1);
     }
 
     private long getTitleHash(String title) {
-        return pageIds.titleHash(title);
+        return TitleMap.titleHash(title, false);
     }
 }
@@ -1,14 +1,17 @@
 package edu.macalester.wpsemsim.lucene;
 
 import org.apache.commons.compress.archivers.ArchiveException;
+import edu.macalester.wpsemsim.utils.ParallelBZip2InputStream;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import java.io.*;
-import java.util.Iterator;
+import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -18,26 +21,270 @@ import static javax.xml.stream.XMLStreamConstants.END_DOCUMENT;
 /**
  * Parses pages in Wikipedia XML dump format.
  * Pages can be streamed using the iterator.
+ *
+ * A reader can also cover part of a dump so that several threads can parse one file;
+ * see split(). Plain XML dumps are split at page boundaries, and bzip2 multistream dumps
+ * are split at the stream offsets listed in their multistream index. Each part is parsed
+ * as a sequence of whole pages wrapped in a synthetic root element.
  */
 public class PageReader implements Iterable<Page> {
     private static final Logger LOG = Logger.getLogger(PageReader.class.getName());
+
+    /**
+     * Dump files are split into parts of at least this many bytes.
+     */
+    public static final long MIN_SPLIT_BYTES = 32 * 1024 * 1024;
+
+    private static final byte[] PAGE_START = "<page>".getBytes();
+    private static final byte[] DUMP_END = "</mediawiki>".getBytes();
+    private static final byte[] PARTIAL_PREFIX = "<mediawiki>\n".getBytes();
+    private static final byte[] PARTIAL_SUFFIX = "</mediawiki>\n".getBytes();
+
     private File path;
 
+    // byte range of a plain xml dump that holds whole pages, or -1
+    private long start = -1;
+    private long end = -1;
+
+    // offsets of bzip2 streams in a multistream dump that hold whole pages, or null
+    private long streamOffsets[] = null;
 
     public PageReader(File path) {
         this.path = path;
     }
 
+    private PageReader(File path, long start, long end) {
+        this.path = path;
+        this.start = start;
+        this.end = end;
+    }
+
+    private PageReader(File path, long streamOffsets[]) {
+        this.path = path;
+        this.streamOffsets = streamOffsets;
+    }
+
     @Override
     public Iterator<Page> iterator() {
         try {
-            return new DocIterator(path);
+            return new DocIterator(openInput());
         } catch (Exception e) {
             e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
         }
         return null;
     }
 
+    public File getPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        if (streamOffsets != null) {
+            return path + " (streams " + streamOffsets[0] + " through " + streamOffsets[streamOffsets.length - 1] + ")";
+        } else if (start >= 0) {
+            return path + " (bytes " + start + " through " + end + ")";
+        } else {
+            return path.toString();
+        }
+    }
+
+    /**
+     * Splits a dump into at most maxSplits readers that can be parsed concurrently.
+     * Files that cannot be split (gzip, and bzip2 dumps without a multistream index)
+     * are returned as a single reader.
+     * @param path
+     * @param maxSplits
+     * @return Readers for the parts of the file, in file order.
+     * @throws IOException
+     */
+    public static List<PageReader> split(File path, int maxSplits) throws IOException {
+        return split(path, maxSplits, MIN_SPLIT_BYTES);
+    }
+
+    public static List<PageReader> split(File path, int maxSplits, long minSplitBytes) throws IOException {
+        int n = (int) Math.min(maxSplits, path.length() / Math.max(1, minSplitBytes));
+        String ext = FilenameUtils.getExtension(path.toString()).toLowerCase();
+        List<PageReader> readers = null;
+        if (n > 1 && ext.equals("xml")) {
+            readers = splitXml(path, n);
+        } else if (n > 1 && ext.startsWith("bz") && getMultistreamIndex(path) != null) {
+            readers = splitMultistream(path, getMultistreamIndex(path), n);
+        }
+        if (readers == null || readers.isEmpty()) {
+            readers = Arrays.asList(new PageReader(path));
+        }
+        return readers;
+    }
+
+    /**
+     * @return The multistream index that accompanies a multistream dump, or null if it does not exist.
+     */
+    public static File getMultistreamIndex(File dump) {
+        String name = dump.getName();
+        if (!name.endsWith("multistream.xml.bz2")) {
+            return null;
+        }
+        File index = new File(dump.getParentFile(), name.replace("multistream.xml.bz2", "multistream-index.txt.bz2"));
+        return index.isFile() ? index : null;
+    }
+
+    public static boolean isMultistreamIndex(File file) {
+        return file.getName().endsWith("multistream-index.txt.bz2");
+    }
+
+    private static List<PageReader> splitXml(File path, int n) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            long length = file.length();
+            long first = indexOf(file, 0, PAGE_START);
+            long last = -1;     // the final closing tag
+            for (long i = indexOf(file, Math.max(0, length - 64 * 1024), DUMP_END); i >= 0; i = indexOf(file, i + 1, DUMP_END)) {
+                last = i;
+            }
+            if (first < 0 || last < first) {
+                return null;
+            }
+            List<PageReader> readers = new ArrayList<PageReader>();
+            long begin = first;
+            for (int i = 1; i < n; i++) {
+                long split = indexOf(file, Math.max(begin + 1, length * i / n), PAGE_START);
+                if (split < 0 || split >= last) {
+                    break;
+                }
+                readers.add(new PageReader(path, begin, split));
+                begin = split;
+            }
+            readers.add(new PageReader(path, begin, last));
+            return readers;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static List<PageReader> splitMultistream(File path, File index, int n) throws IOException {
+        long offsets[] = readStreamOffsets(index);
+        n = Math.min(n, offsets.length);
+        List<PageReader> readers = new ArrayList<PageReader>();
+        for (int i = 0; i < n; i++) {
+            int from = (int) ((long) offsets.length * i / n);
+            int to = (int) ((long) offsets.length * (i + 1) / n);
+            readers.add(new PageReader(path, Arrays.copyOfRange(offsets, from, to)));
+        }
+        return readers;
+    }
+
+    /**
+     * Reads the distinct stream offsets in a multistream index.
+     * Each line of the index has the form offset:pageId:title.
+     */
+    static long[] readStreamOffsets(File index) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new BZip2CompressorInputStream(new BufferedInputStream(new FileInputStream(index)), true),
+                "UTF-8"));
+        try {
+            SortedSet<Long> offsets = new TreeSet<Long>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int i = line.indexOf(':');
+                if (i > 0) {
+                    offsets.add(Long.valueOf(line.substring(0, i)));
+                }
+            }
+            long result[] = new long[offsets.size()];
+            int i = 0;
+            for (long offset : offsets) {
+                result[i++] = offset;
+            }
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return The offset of the first occurrence of pattern at or after from, or -1.
+     */
+    private static long indexOf(RandomAccessFile file, long from, byte pattern[]) throws IOException {
+        byte buffer[] = new byte[64 * 1024];
+        long pos = from;
+        while (pos < file.length()) {
+            file.seek(pos);
+            int n = file.read(buffer);
+            if (n < pattern.length) {
+                return -1;
+            }
+            for (int i = 0; i + pattern.length <= n; i++) {
+                int j = 0;
+                while (j < pattern.length && buffer[i + j] == pattern[j]) {
+                    j++;
+                }
+                if (j == pattern.length) {
+                    return pos + i;
+                }
+            }
+            pos += n - pattern.length + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Opens the (decompressed) xml covered by this reader.
+     */
+    private InputStream openInput() throws IOException {
+        if (streamOffsets != null) {
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+                int i = -1;
+                public boolean hasMoreElements() {
+                    return i <= streamOffsets.length;
+                }
+                public InputStream nextElement() {
+                    i++;
+                    if (i == 0) {
+                        return new ByteArrayInputStream(PARTIAL_PREFIX);
+                    } else if (i > streamOffsets.length) {
+                        return new ByteArrayInputStream(PARTIAL_SUFFIX);
+                    }
+                    try {
+                        // decompress exactly one stream starting at the offset
+                        return new BZip2CompressorInputStream(openAt(streamOffsets[i - 1]), false);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        } else if (start >= 0) {
+            return new SequenceInputStream(
+                    new SequenceInputStream(
+                            new ByteArrayInputStream(PARTIAL_PREFIX),
+                            new BoundedInputStream(openAt(start), end - start)),
+                    new ByteArrayInputStream(PARTIAL_SUFFIX));
+        } else {
+            return openFile(path);
+        }
+    }
+
+    private InputStream openAt(long offset) throws IOException {
+        FileInputStream input = new FileInputStream(path);
+        try {
+            input.getChannel().position(offset);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(input);
+            throw e;
+        }
+        return new BufferedInputStream(input);
+    }
+
+    private static InputStream openFile(File path) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(path));
+        if (FilenameUtils.getExtension(path.toString()).toLowerCase().startsWith("bz")) {
+            // readers of different files share one pool of decoders
+            input = new BufferedInputStream(new ParallelBZip2InputStream(input));
+        } else if (FilenameUtils.getExtension(path.toString()).equalsIgnoreCase("gz")) {
+            input = new GZIPInputStream(input);
+        }
+        return input;
+    }
 
     public class DocIterator implements Iterator<Page> {
 
@@ -45,13 +292,10 @@ public class PageReader implements Iterable<Page> {
         private Page buffer = null;
 
         public DocIterator(File path) throws IOException, ArchiveException, XMLStreamException {
-            InputStream input = new BufferedInputStream(new FileInputStream(path));
-            if (FilenameUtils.getExtension(path.toString()).toLowerCase().startsWith("bz")) {
-                input = new BZip2CompressorInputStream(input);
-            } else if (FilenameUtils.getExtension(path.toString()).equalsIgnoreCase("gz")) {
-                input = new GZIPInputStream(input);
-            }
+            this(openFile(path));
+        }
 
+        public DocIterator(InputStream input) throws XMLStreamException {
             // get the default factory instance
             XMLInputFactory factory = XMLInputFactory.newInstance();
 
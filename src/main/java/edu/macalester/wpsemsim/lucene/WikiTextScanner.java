@@ -0,0 +1,847 @@
+package edu.macalester.wpsemsim.lucene;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scans wiki markup once, producing the plain text of MarkupStripper.stripEverything()
+ * together with the links and anchor texts that Page extracts from the markup.
+ *
+ * Each pass of the regex-based stripper is a small state machine (a Stage) that
+ * transforms a stream of characters and hands its output to the next stage, so every
+ * input character is read once and no intermediate strings are built. Stages only
+ * buffer the markup they can't decide about yet (an open template, a link at the start
+ * of a line, etc.). Sections are removed from the markup following the first
+ * "== See also ==" (or similar) heading, which is buffered since it is usually short.
+ *
+ * Unlike MarkupStripper, malformed links, templates and tables are not reported on stderr.
+ */
+public final class WikiTextScanner {
+    private final List<String> links = new ArrayList<String>();
+    private final List<String> anchorTexts = new ArrayList<String>();
+    private String strippedText;
+
+    private WikiTextScanner() {}
+
+    /**
+     * Scans markup for links and anchor texts, and optionally strips it.
+     * @param markup
+     * @param strip If true, also computes the stripped text.
+     * @return
+     */
+    public static WikiTextScanner scan(String markup, boolean strip) {
+        WikiTextScanner scanner = new WikiTextScanner();
+        char chars[] = markup.toCharArray();
+        LinkCollector collector = scanner.new LinkCollector();
+        Output output = new Output(chars.length);
+        Stage head = strip ? buildStages(output) : null;
+        for (char c : chars) {
+            collector.put(c);
+            if (head != null) {
+                head.put(c);
+            }
+        }
+        if (head != null) {
+            head.end();
+            scanner.strippedText = output.text.toString();
+        }
+        return scanner;
+    }
+
+    /**
+     * Strips markup as MarkupStripper.stripEverything() does.
+     * @param markup
+     * @return
+     */
+    public static String strip(String markup) {
+        return scan(markup, true).getStrippedText();
+    }
+
+    /**
+     * @return The stripped text, or null if the markup was scanned without stripping.
+     */
+    public String getStrippedText() {
+        return strippedText;
+    }
+
+    /**
+     * @return Link targets (with fragments) in the order they appear, as Page.getAnchorLinksWithFragments().
+     */
+    public List<String> getLinks() {
+        return Collections.unmodifiableList(links);
+    }
+
+    /**
+     * @return The anchor text of each link, as Page.getTextOfAnchors().
+     */
+    public List<String> getAnchorTexts() {
+        return Collections.unmodifiableList(anchorTexts);
+    }
+
+    /**
+     * @return The categories of the links, as Page.getCategories().
+     */
+    public List<String> getCategories() {
+        List<String> cats = new ArrayList<String>();
+        for (String link : Page.removeFragments(links)) {
+            if (link.toLowerCase().startsWith("category:")) {
+                cats.add(link.substring("category:".length()));
+            }
+        }
+        return cats;
+    }
+
+    /**
+     * The stages of MarkupStripper.stripEverything(), in order.
+     */
+    private static Stage buildStages(Output output) {
+        Stage stages[] = {
+                new NestedStage('{', '{', '}', '}', false),     // templates
+                new SectionStage(),
+                new NestedStage('{', '|', '|', '}', false),     // tables
+                new IsolatedLinkStage(),
+                new NestedStage('[', '[', ']', ']', true),      // links
+                new DelimitedStage(new String[] { "<!--" }, new String[] { "-->" }, false),
+                new DelimitedStage(new String[] { "<ref\\>" }, new String[0], false),
+                new DelimitedStage(new String[] { "<ref>" }, new String[] { "</ref>" }, false),
+                new DelimitedStage(
+                        new String[] { "<ref ", "<ref\t", "<ref\n", "<ref\u000B", "<ref\f", "<ref\r" },
+                        new String[] { ">", "</ref>" }, false),
+                new DelimitedStage(new String[] { "<" }, new String[] { ">" }, true),
+                new DelimitedStage(new String[] { "[http", "[www" }, new String[] { "]" }, true),
+                new RunStage('\''),
+                new RunStage('='),
+                new IndentStage(),
+                new ListMarkerStage(),
+                new NewlineStage(),
+        };
+        for (int i = 0; i < stages.length; i++) {
+            stages[i].next = (i + 1 < stages.length) ? stages[i + 1] : output;
+        }
+        return stages[0];
+    }
+
+    /**
+     * Matches java.util.regex's \s.
+     */
+    static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Matches java.util.regex's \w.
+     */
+    static boolean isWord(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Matches the characters that java.util.regex's "." doesn't match without DOTALL.
+     */
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Trims a link target and replaces each run of whitespace with an underscore.
+     */
+    static String normalizeLink(String link) {
+        link = link.trim();
+        StringBuilder sb = new StringBuilder(link.length());
+        boolean inSpace = false;
+        for (int i = 0; i < link.length(); i++) {
+            char c = link.charAt(i);
+            if (!isSpace(c)) {
+                sb.append(c);
+            } else if (!inSpace) {
+                sb.append('_');
+            }
+            inSpace = isSpace(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Finds links as the regex "\[\[([^\]]+?)\]\]" would.
+     */
+    private final class LinkCollector {
+        private static final int TEXT = 0, OPEN = 1, BODY = 2, CLOSE = 3;
+        private final StringBuilder body = new StringBuilder();
+        private int state = TEXT;
+
+        void put(char c) {
+            switch (state) {
+                case OPEN:
+                    if (c == '[') {
+                        body.setLength(0);
+                        state = BODY;
+                        return;
+                    }
+                    break;
+                case BODY:
+                    if (c != ']') {
+                        body.append(c);
+                        return;
+                    }
+                    if (body.length() > 0) {
+                        state = CLOSE;
+                        return;
+                    }
+                    break;
+                case CLOSE:
+                    if (c == ']') {
+                        addLink(body.toString());
+                        state = TEXT;
+                        return;
+                    }
+                    break;
+            }
+            state = (c == '[') ? OPEN : TEXT;
+        }
+
+        private void addLink(String body) {
+            String target = body;
+            String text = body;
+            int i = body.indexOf('|');
+            if (i >= 0) {
+                text = body.substring(i + 1);
+                target = body.substring(0, i);
+            }
+            target = normalizeLink(target);
+            if (!target.contains("Image:")) {
+                links.add(target);
+                anchorTexts.add(text);
+            }
+        }
+    }
+
+    /**
+     * One stripping pass. Characters are put() one at a time, and end() is called after the last one.
+     */
+    private static abstract class Stage {
+        Stage next;
+
+        abstract void put(char c);
+
+        void end() {
+            next.end();
+        }
+
+        void emit(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) {
+                next.put(s.charAt(i));
+            }
+        }
+    }
+
+    private static final class Output extends Stage {
+        final StringBuilder text;
+
+        Output(int capacity) {
+            text = new StringBuilder(capacity);
+        }
+
+        @Override
+        void put(char c) {
+            text.append(c);
+        }
+
+        @Override
+        void end() {
+        }
+    }
+
+    /**
+     * Removes top-level blocks delimited by two-character tokens, counting nested blocks,
+     * as MarkupStripper.stripTemplates(), stripTables() and stripLinks() do. Unmatched closing
+     * tokens are kept, and if a block is still open at the end, everything from its start is kept.
+     */
+    private static class NestedStage extends Stage {
+        private final char open1, open2, close1, close2;
+        private final boolean keepLinkText;
+        final StringBuilder block = new StringBuilder();
+        int depth = 0;
+        char pending = 0;
+
+        NestedStage(char open1, char open2, char close1, char close2, boolean keepLinkText) {
+            this.open1 = open1;
+            this.open2 = open2;
+            this.close1 = close1;
+            this.close2 = close2;
+            this.keepLinkText = keepLinkText;
+        }
+
+        @Override
+        void put(char c) {
+            if (pending != 0) {
+                char p = pending;
+                pending = 0;
+                if (p == open1 && c == open2) {
+                    open();
+                    return;
+                } else if (p == close1 && c == close2) {
+                    close();
+                    return;
+                }
+                text(p);
+            }
+            if (c == open1 || c == close1) {
+                pending = c;
+                tokenStarted();
+            } else {
+                text(c);
+            }
+        }
+
+        /**
+         * Called when a character that may start a token is held back.
+         */
+        void tokenStarted() {
+        }
+
+        private void open() {
+            if (depth == 0) {
+                block.setLength(0);
+                blockOpened();
+            }
+            block.append(open1).append(open2);
+            depth++;
+        }
+
+        /**
+         * Called when a top-level block starts.
+         */
+        void blockOpened() {
+        }
+
+        private void close() {
+            if (depth == 0) {
+                next.put(close1);
+                next.put(close2);
+            } else if (--depth == 0) {
+                block.append(close1).append(close2);
+                blockClosed();
+            } else {
+                block.append(close1).append(close2);
+            }
+        }
+
+        /**
+         * Called with the complete markup of a top-level block in block.
+         */
+        void blockClosed() {
+            if (keepLinkText) {
+                emit(stripLink(block.substring(2, block.length() - 2)));
+            }
+        }
+
+        private void text(char c) {
+            if (depth > 0) {
+                block.append(c);
+            } else {
+                next.put(c);
+            }
+        }
+
+        @Override
+        void end() {
+            if (pending != 0) {
+                text(pending);
+                pending = 0;
+            }
+            if (depth > 0) {
+                emit(block);
+            }
+            next.end();
+        }
+
+        /**
+         * As MarkupStripper.stripLink(), discarding image links.
+         */
+        private static String stripLink(String link) {
+            int colon = link.indexOf(':');
+            if (colon > 0) {
+                if (link.substring(0, colon).toLowerCase().equals("image")) {
+                    return "";
+                }
+                link = link.substring(colon + 1);
+            }
+            int bar = link.lastIndexOf('|');
+            return (bar > 0) ? link.substring(bar + 1) : link;
+        }
+    }
+
+    /**
+     * Removes top-level links that sit alone on a line, as MarkupStripper.stripIsolatedLinks() does.
+     * A link is isolated if it follows a newline and only non-word characters separate it
+     * from the next newline (looking at most ten characters ahead, and never at the last
+     * character of the markup). Deciding this holds back up to eleven characters after the link.
+     */
+    private static final class IsolatedLinkStage extends NestedStage {
+        private final StringBuilder lookahead = new StringBuilder();
+        private boolean deciding = false;
+        private char previous = 0;          // the last character put, before any held back
+        private char beforeToken = 0;       // the character before the pending token character
+        private boolean startsLine = false;
+
+        IsolatedLinkStage() {
+            super('[', '[', ']', ']', false);
+        }
+
+        @Override
+        void put(char c) {
+            if (deciding) {
+                lookahead.append(c);
+                decide(false);
+            } else {
+                super.put(c);
+                previous = c;
+            }
+        }
+
+        @Override
+        void tokenStarted() {
+            beforeToken = previous;
+        }
+
+        @Override
+        void blockOpened() {
+            startsLine = (beforeToken == '\n');
+        }
+
+        @Override
+        void blockClosed() {
+            if (startsLine) {
+                deciding = true;
+            } else {
+                emit(block);
+            }
+        }
+
+        private void decide(boolean atEnd) {
+            Boolean isolated = null;
+            for (int i = 0; i < lookahead.length() && isolated == null; i++) {
+                char c = lookahead.charAt(i);
+                if (i >= 10 || c == '\n') {
+                    isolated = true;
+                } else if (isWord(c)) {
+                    if (i + 1 < lookahead.length()) {
+                        isolated = false;
+                    } else if (atEnd) {
+                        isolated = true;    // the last character of the markup is never checked
+                    } else {
+                        return;
+                    }
+                }
+            }
+            if (isolated == null) {
+                if (!atEnd) {
+                    return;
+                }
+                isolated = true;
+            }
+            if (!isolated) {
+                emit(block);
+            }
+            deciding = false;
+            String held = lookahead.toString();
+            lookahead.setLength(0);
+            for (int i = 0; i < held.length(); i++) {
+                put(held.charAt(i));
+            }
+        }
+
+        @Override
+        void end() {
+            while (deciding) {
+                decide(true);
+            }
+            super.end();
+        }
+    }
+
+    /**
+     * Removes the sections stripped by MarkupStripper.stripEverything().
+     * Everything before the first heading that could name one of those sections passes
+     * through untouched; the rest is buffered and stripped at the end.
+     */
+    private static final class SectionStage extends Stage {
+        private static final String NAMES[] = { "see also", "references", "further reading", "external links" };
+        private static final int TEXT = 0, EQUALS = 1, SPACE = 2, NAME = 3, TAIL = 4;
+
+        private final StringBuilder held = new StringBuilder();
+        private int state = TEXT;
+        private int numEquals;
+        private String name;
+        private int nameStart;      // position of the name in held
+
+        @Override
+        void put(char c) {
+            switch (state) {
+                case TAIL:
+                    held.append(c);
+                    return;
+                case EQUALS:
+                    if (c == '=') {
+                        held.append(c);
+                        numEquals++;
+                        return;
+                    }
+                    if (numEquals >= 2 && startName(c)) {
+                        return;
+                    }
+                    break;
+                case SPACE:
+                    if (startName(c)) {
+                        return;
+                    }
+                    break;
+                case NAME:
+                    if (toLower(c) == name.charAt(held.length() - nameStart)) {
+                        held.append(c);
+                        if (held.length() - nameStart == name.length()) {
+                            state = TAIL;
+                        }
+                        return;
+                    }
+                    break;
+            }
+            emit(held);
+            held.setLength(0);
+            if (c == '=') {
+                held.append(c);
+                numEquals = 1;
+                state = EQUALS;
+            } else {
+                state = TEXT;
+                next.put(c);
+            }
+        }
+
+        /**
+         * Handles a character following a run of at least two equals signs and optional whitespace.
+         * @return true if the character may still be part of a heading.
+         */
+        private boolean startName(char c) {
+            if (isSpace(c)) {
+                held.append(c);
+                state = SPACE;
+                return true;
+            }
+            for (String n : NAMES) {
+                if (toLower(c) == n.charAt(0)) {
+                    name = n;
+                    nameStart = held.length();
+                    held.append(c);
+                    state = NAME;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static char toLower(char c) {
+            return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+
+        @Override
+        void end() {
+            String text = held.toString();
+            if (state == TAIL) {
+                for (String n : NAMES) {
+                    text = stripSection(text, n);
+                }
+            }
+            emit(text);
+            next.end();
+        }
+
+        /**
+         * Does what MarkupStripper.stripSection() does with its two regexes.
+         */
+        static String stripSection(String text, String name) {
+            // "(={2,})\s*name\s*\1.*?([^=]\1[^=])" is replaced by its second group:
+            // the section is removed up to the next heading at the same level.
+            StringBuilder sb = new StringBuilder(text.length());
+            int last = 0;
+            for (int s = 0; s < text.length(); s++) {
+                int k = countEquals(text, s);
+                int h = (k >= 2) ? matchHeading(text, s, k, name) : -1;
+                int j = (h >= 0) ? findRun(text, h, k) : -1;
+                if (j >= 0) {
+                    sb.append(text, last, s).append(text, j, j + k + 2);
+                    last = j + k + 2;
+                    s = last - 1;
+                }
+            }
+            if (last > 0) {
+                sb.append(text, last, text.length());
+                text = sb.toString();
+                sb.setLength(0);
+            }
+
+            // "(={2,})\s*name\s*\1\W*.*?\n\n" is removed except for the final newlines:
+            // a section without a following heading loses its heading and first paragraph.
+            last = 0;
+            for (int s = 0; s < text.length(); s++) {
+                int k = countEquals(text, s);
+                int h = (k >= 2) ? matchHeading(text, s, k, name) : -1;
+                if (h < 0) {
+                    continue;
+                }
+                int w = h;
+                while (w < text.length() && !isWord(text.charAt(w))) {
+                    w++;
+                }
+                int q = text.indexOf("\n\n", w);
+                if (q < 0) {
+                    // backtrack into the non-word characters after the heading
+                    q = text.lastIndexOf("\n\n", w - 1);
+                    if (q < h) {
+                        continue;
+                    }
+                }
+                sb.append(text, last, s);
+                last = q;
+                s = q + 1;
+            }
+            if (last == 0) {
+                return text;
+            }
+            sb.append(text, last, text.length());
+            return sb.toString();
+        }
+
+        private static int countEquals(String text, int from) {
+            int i = from;
+            while (i < text.length() && text.charAt(i) == '=') {
+                i++;
+            }
+            return i - from;
+        }
+
+        /**
+         * Matches "={k}\s*name\s*={k}" at position s, ignoring the case of name.
+         * @return The end of the heading, or -1.
+         */
+        private static int matchHeading(String text, int s, int k, String name) {
+            int i = s + k;
+            while (i < text.length() && isSpace(text.charAt(i))) {
+                i++;
+            }
+            if (i + name.length() > text.length()) {
+                return -1;
+            }
+            for (int n = 0; n < name.length(); n++) {
+                if (toLower(text.charAt(i++)) != name.charAt(n)) {
+                    return -1;
+                }
+            }
+            while (i < text.length() && isSpace(text.charAt(i))) {
+                i++;
+            }
+            return (countEquals(text, i) >= k) ? i + k : -1;
+        }
+
+        /**
+         * Finds "[^=]={k}[^=]" at or after position from.
+         * @return The position of its first character, or -1.
+         */
+        private static int findRun(String text, int from, int k) {
+            for (int j = from; j + k + 1 < text.length(); j++) {
+                if (text.charAt(j) != '=' && text.charAt(j + 1) == '=') {
+                    int r = countEquals(text, j + 1);
+                    if (r == k && j + 1 + r < text.length()) {
+                        return j;
+                    }
+                    j += r;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Removes spans that begin with one of several literals and end after a sequence of
+     * literals, each found lazily after the previous one. This covers comments, references,
+     * html tags and external links. Single line spans are abandoned at a newline, and spans
+     * that never end are kept.
+     */
+    private static final class DelimitedStage extends Stage {
+        private final String starts[];
+        private final String ends[];
+        private final boolean singleLine;
+
+        private final StringBuilder held = new StringBuilder();
+        private final boolean matching[];  // start literals that begin with the held characters
+        private boolean inSpan = false;
+        private int endIndex;       // index of the end literal being looked for
+        private int searchFrom;     // position in held where the current end literal may start
+
+        DelimitedStage(String starts[], String ends[], boolean singleLine) {
+            this.starts = starts;
+            this.ends = ends;
+            this.singleLine = singleLine;
+            this.matching = new boolean[starts.length];
+        }
+
+        @Override
+        void put(char c) {
+            if (inSpan) {
+                if (singleLine && isLineTerminator(c)) {
+                    abandon();
+                    next.put(c);
+                    return;
+                }
+                held.append(c);
+                String end = ends[endIndex];
+                int from = held.length() - end.length();
+                if (from >= searchFrom && held.charAt(held.length() - 1) == end.charAt(end.length() - 1)
+                        && held.indexOf(end, from) == from) {
+                    endIndex++;
+                    searchFrom = held.length();
+                    if (endIndex == ends.length) {
+                        held.setLength(0);
+                        inSpan = false;
+                    }
+                }
+                return;
+            }
+            if (held.length() == 0 && c != starts[0].charAt(0)) {
+                next.put(c);    // fast path: all start literals share their first character
+                return;
+            }
+            held.append(c);
+            int k = held.length() - 1;
+            boolean prefix = false;
+            for (int i = 0; i < starts.length; i++) {
+                String start = starts[i];
+                matching[i] = (k == 0 || matching[i]) && k < start.length() && start.charAt(k) == c;
+                if (matching[i]) {
+                    if (start.length() == held.length()) {
+                        if (ends.length == 0) {
+                            held.setLength(0);
+                        } else {
+                            inSpan = true;
+                            endIndex = 0;
+                            searchFrom = held.length();
+                        }
+                        return;
+                    }
+                    prefix = true;
+                }
+            }
+            if (!prefix) {
+                // start literals don't repeat their first character, so only c can begin a new span
+                held.setLength(held.length() - 1);
+                emit(held);
+                held.setLength(0);
+                put(c);
+            }
+        }
+
+        private void abandon() {
+            emit(held);
+            held.setLength(0);
+            inSpan = false;
+        }
+
+        @Override
+        void end() {
+            abandon();
+            next.end();
+        }
+    }
+
+    /**
+     * Removes runs of two or more of a character (bold and italic quotes, heading markers).
+     */
+    private static final class RunStage extends Stage {
+        private final char ch;
+        private int run = 0;
+
+        RunStage(char ch) {
+            this.ch = ch;
+        }
+
+        @Override
+        void put(char c) {
+            if (c == ch) {
+                run++;
+                return;
+            }
+            if (run == 1) {
+                next.put(ch);
+            }
+            run = 0;
+            next.put(c);
+        }
+
+        @Override
+        void end() {
+            if (run == 1) {
+                next.put(ch);
+            }
+            next.end();
+        }
+    }
+
+    /**
+     * Removes colons that indent a line.
+     */
+    private static final class IndentStage extends Stage {
+        private boolean lineStart = false;
+
+        @Override
+        void put(char c) {
+            if (lineStart && c == ':') {
+                return;
+            }
+            lineStart = (c == '\n');
+            next.put(c);
+        }
+    }
+
+    /**
+     * Removes list markers and the non-word characters (including newlines) that follow them.
+     */
+    private static final class ListMarkerStage extends Stage {
+        private static final int TEXT = 0, LINE_START = 1, MARKER = 2;
+        private int state = TEXT;
+
+        @Override
+        void put(char c) {
+            if (state == LINE_START && c == '*') {
+                state = MARKER;
+                return;
+            }
+            if (state == MARKER) {
+                if (!isWord(c)) {
+                    return;
+                }
+            }
+            state = (c == '\n') ? LINE_START : TEXT;
+            next.put(c);
+        }
+    }
+
+    /**
+     * Collapses three or more newlines into two.
+     */
+    private static final class NewlineStage extends Stage {
+        private int run = 0;
+
+        @Override
+        void put(char c) {
+            if (c == '\n') {
+                if (++run <= 2) {
+                    next.put(c);
+                }
+            } else {
+                run = 0;
+                next.put(c);
+            }
+        }
+    }
+}
@@ -161,6 +161,19 @@ public abstract class BaseSimilarityMetric implements SimilarityMetric {
     @Override
     public abstract double similarity(int wpId1, int wpId2) throws IOException;
 
+    /**
+     * Calls similarity() for each candidate.
+     * Metrics that can score many candidates at once should override this.
+     */
+    @Override
+    public double[] similarities(int wpId, int candidates[]) throws IOException {
+        double sims[] = new double[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            sims[i] = similarity(wpId, candidates[i]);
+        }
+        return sims;
+    }
+
     @Override
     public String getName() {
         return name;
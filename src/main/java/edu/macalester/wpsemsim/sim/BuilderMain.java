@@ -1,5 +1,7 @@
 package edu.macalester.wpsemsim.sim;
 
+import edu.macalester.wpsemsim.sim.category.CategoryMostSimilarWriter;
+import edu.macalester.wpsemsim.sim.category.CategorySimilarity;
 import edu.macalester.wpsemsim.sim.pairwise.PairwiseSimilarityWriter;
 import edu.macalester.wpsemsim.utils.EnvConfigurator;
 import edu.macalester.wpsemsim.utils.ConfigurationFile;
@@ -57,6 +59,12 @@ public class BuilderMain {
 
         File outputFile = new File(cmd.getOptionValue("o"));
         SimilarityMetric m = conf.loadMetric(cmd.getOptionValue("n"), true);
+        if (m instanceof CategorySimilarity) {
+            CategoryMostSimilarWriter writer = new CategoryMostSimilarWriter((CategorySimilarity) m, outputFile);
+            writer.setValidIds(env.getValidIds());
+            writer.writeSims(idsToBuild, env.getNumThreads(), env.getNumMostSimilarResults());
+            return;
+        }
         PairwiseSimilarityWriter writer = new PairwiseSimilarityWriter(m, outputFile);
         writer.setValidIds(env.getValidIds());
         writer.writeSims(idsToBuild, env.getNumThreads(), env.getNumMostSimilarResults());
@@ -1,12 +1,14 @@
 package edu.macalester.wpsemsim.sim;
 
 import edu.macalester.wpsemsim.concepts.ConceptMapper;
+import edu.macalester.wpsemsim.lucene.DocFreqTable;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
 import edu.macalester.wpsemsim.utils.DocScoreList;
-import gnu.trove.map.TIntLongMap;
-import gnu.trove.map.hash.TIntLongHashMap;
+import edu.macalester.wpsemsim.utils.LruCache;
+import edu.macalester.wpsemsim.utils.SortedIntArrays;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
-import gnu.trove.set.hash.TIntHashSet;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexableField;
@@ -21,6 +23,8 @@ import java.io.IOException;
 /**
  */
 public class LinkSimilarity extends BaseSimilarityMetric{
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 5000;
+
     private String field;
     private IndexSearcher searcher;
     private Filter filter;
@@ -34,13 +38,27 @@ public class LinkSimilarity extends BaseSimilarityMetric{
     };
 
     private IndexHelper linkHelper;
+    private DocFreqTable docFreqs;
+    private float squaredIdfs[];    // squared idfs indexed by docFreqs ordinal
+    private double logOddsWeights[];    // -2 * log(p(z)) indexed by docFreqs ordinal
     private int minDocFreq = 0;
     private SimFn similarity = SimFn.GOOGLE;
+    private LruCache<Integer, Query> queryCache = new LruCache<Integer, Query>(DEFAULT_QUERY_CACHE_SIZE);
 
-    public LinkSimilarity(ConceptMapper mapper, IndexHelper linkHelper, IndexHelper mainHelper, String field) {
+    public LinkSimilarity(ConceptMapper mapper, IndexHelper linkHelper, IndexHelper mainHelper, String field) throws IOException {
         super(mapper, mainHelper);
         this.field = field;
         this.linkHelper = linkHelper;
+        this.docFreqs = linkHelper.getDocFreqTable(field);
+        this.squaredIdfs = new float[docFreqs.size()];
+        for (int i = 0; i < squaredIdfs.length; i++) {
+            squaredIdfs[i] = docFreqs.getIdf(i) * docFreqs.getIdf(i);
+        }
+        long n = linkHelper.getReader().numDocs();
+        this.logOddsWeights = new double[docFreqs.size()];
+        for (int i = 0; i < logOddsWeights.length; i++) {
+            logOddsWeights[i] = -2 * Math.log(1.0 * docFreqs.getDocFreq(i) / n);
+        }
         this.searcher = new IndexSearcher(linkHelper.getReader());
         this.searcher.setSimilarity(
                 new DFRSimilarity(
@@ -53,6 +71,19 @@ public class LinkSimilarity extends BaseSimilarityMetric{
 
     public void setMinDocFreq(int n) {
         this.minDocFreq = n;
+        queryCache.clear();
+    }
+
+    /**
+     * Sets the maximum number of MoreLikeThis queries that are cached.
+     * @param n
+     */
+    public void setQueryCacheSize(int n) {
+        this.queryCache = new LruCache<Integer, Query>(n);
+    }
+
+    public LruCache<Integer, Query> getQueryCache() {
+        return queryCache;
     }
 
     public void setSimilarity(SimFn fn) {
@@ -61,26 +92,25 @@ public class LinkSimilarity extends BaseSimilarityMetric{
 
     @Override
     public double similarity(int wpId1, int wpId2) throws IOException {
-        TIntSet A = getLinks(wpId1);
-        TIntSet B = getLinks(wpId2);
+        int A[] = getLinks(wpId1);
+        int B[] = getLinks(wpId2);
         if (A == null || B == null) {
             return Double.NaN;
         }
-        TIntSet I = new TIntHashSet(A); I.retainAll(B); // intersection
-        TIntSet U = new TIntHashSet(A); U.addAll(B);    // union
-        if (I.size() == 0) {
+        int numShared = SortedIntArrays.intersectionSize(A, B);
+        if (numShared == 0) {
             return normalize(0);
         }
 
         double val;
         if (similarity == SimFn.GOOGLE) {
-            val = googleDistance(A, B, I);
+            val = googleDistance(A, B, numShared);
         } else if (similarity == SimFn.TFIDF) {
-            val = tfidf(A, B, I);
+            val = tfidf(A, B);
         } else if (similarity == SimFn.LOGODDS) {
-            val = logOdds(A, B, I);
+            val = logOdds(A, B, numShared);
         } else if (similarity == SimFn.JACARD) {
-            val = jacard(A, B, I, U);
+            val = jacard(A, B, numShared);
         } else if (similarity == SimFn.LUCENE) {
             val = lucene(wpId1, wpId2);
         } else {
@@ -103,8 +133,6 @@ public class LinkSimilarity extends BaseSimilarityMetric{
         if (doc1 < 0 || doc2 < 0) {
             return 0.0;
         }
-        MoreLikeThis mlt = getMoreLikeThis();
-
         BooleanFilter composition = new BooleanFilter();
         composition.add(new FieldCacheTermsFilter("id", "" + wpId2), BooleanClause.Occur.MUST);
         if (filter != null) {
@@ -112,7 +140,7 @@ public class LinkSimilarity extends BaseSimilarityMetric{
         }
 
         TopDocs similarDocs = searcher.search(
-                mlt.like(doc1),
+                getMoreLikeThisQuery(wpId1, doc1),
                 new FieldCacheTermsFilter("id", "" + wpId2),
                 1);
         if (similarDocs.scoreDocs.length == 0) {
@@ -140,13 +168,27 @@ public class LinkSimilarity extends BaseSimilarityMetric{
         return mlt;
     }
 
-    private double jacard(TIntSet A, TIntSet B, TIntSet I, TIntSet U) {
-        return 1.0 * I.size() / (U.size() + 1);
+    /**
+     * Returns the MoreLikeThis query for a document.
+     * A document's query never changes, so queries are cached by wpId.
+     */
+    private Query getMoreLikeThisQuery(int wpId, int luceneId) throws IOException {
+        Query query = queryCache.get(wpId);
+        if (query == null) {
+            query = getMoreLikeThis().like(luceneId);
+            queryCache.put(wpId, query);
+        }
+        return query;
     }
-    private double googleDistance(TIntSet A, TIntSet B, TIntSet I) throws IOException {
+
+    private double jacard(int A[], int B[], int numShared) {
+        int unionSize = A.length + B.length - numShared;
+        return 1.0 * numShared / (unionSize + 1);
+    }
+    private double googleDistance(int A[], int B[], int numShared) throws IOException {
         int numArticles = linkHelper.getReader().numDocs();
-        double distance = (Math.log(Math.max(A.size(), B.size())) - Math.log(I.size()))
-                /   (Math.log(numArticles) - Math.log(Math.min(A.size(), B.size())));
+        double distance = (Math.log(Math.max(A.length, B.length)) - Math.log(numShared))
+                /   (Math.log(numArticles) - Math.log(Math.min(A.length, B.length)));
         if (distance > 0.5) {
             double x = 10 * (distance - 0.5);   // starts at 0, grows quickly
             distance = 1.0 / (1 + Math.exp(-x)); // sigmoid
@@ -154,69 +196,51 @@ public class LinkSimilarity extends BaseSimilarityMetric{
         return 1 - distance;
     }
 
-    private double logOdds(TIntSet A, TIntSet B, TIntSet I) throws IOException {
-        long n = linkHelper.getReader().numDocs();
-        double val = 0.0;
-        for (int id : I.toArray()) {
-            long d = getDocFreq(id);
-            double pz = (1.0 * d / n);
-            double px = (1.0 / A.size());
-            double py = (1.0 / B.size());
-            val += Math.log(px) + Math.log(py) - 2 * Math.log(pz);
-        }
+    private double logOdds(int A[], int B[], int numShared) throws IOException {
+        // each shared link z contributes log(px) + log(py) - 2 * log(pz)
+        double px = (1.0 / A.length);
+        double py = (1.0 / B.length);
+        double val = numShared * (Math.log(px) + Math.log(py))
+                + SortedIntArrays.weightedIntersectionSum(A, B, logOddsWeights);
         val = Math.log(1 + val);
         return Math.min(1.0, val / 7.0);
     }
 
-    private double tfidf(TIntSet A, TIntSet B, TIntSet I) throws IOException {
-        double dot = 0.0;
-        for (int id : I.toArray()) {
-            dot += Math.pow(getIdf(id), 2.0);   // all other elements are 0
-        }
+    private double tfidf(int A[], int B[]) throws IOException {
+        double dot = SortedIntArrays.weightedIntersectionSum(A, B, squaredIdfs);   // all other elements are 0
         return (10 + Math.log(dot / Math.sqrt(norm(A) * norm(B)))) / 10.0;
     }
 
-    TIntLongMap docFreqCache = new TIntLongHashMap();
-    private long getDocFreq(int wpId) throws IOException {
-        synchronized (docFreqCache) {
-            if (docFreqCache.containsKey(wpId)) {
-                return docFreqCache.get(wpId);
-            }
-        }
-        long freq = linkHelper.getDocFreq(field, "" + wpId);
-        synchronized (docFreqCache) {
-            docFreqCache.put(wpId, freq);
-        }
-        return freq;
-    }
-
-    private double getIdf(int wpId) throws IOException {
-        return 1.0 / Math.sqrt(Math.max(2, getDocFreq(wpId)));
-    }
-
-    private double norm(TIntSet X) throws IOException {
+    private double norm(int X[]) throws IOException {
         double norm = 0.0;
-        for (int id : X.toArray()) {
-            norm += Math.pow(getIdf(id), 2.0);
+        for (int ordinal : X) {
+            norm += squaredIdfs[ordinal];
         }
         return norm;
     }
 
-    private TIntSet getLinks(int wpId) throws IOException {
+    /**
+     * Returns the links for a page as a sorted array of unique docFreqs ordinals.
+     * Ordinals are assigned in wpId order, so this is also sorted by wpId.
+     * @param wpId
+     * @return The links, or null if the page does not exist.
+     * @throws IOException
+     */
+    private int[] getLinks(int wpId) throws IOException {
         Document d = linkHelper.wpIdToLuceneDoc(wpId);
         if (d == null) {
             return null;
         }
-        TIntSet links = new TIntHashSet();
+        TIntList links = new TIntArrayList();
         for (IndexableField f : d.getFields(field)) {
-            int wpId2 = Integer.valueOf(f.stringValue());
-            if (getDocFreq(wpId2) >= minDocFreq) {
-                links.add(wpId2);
+            int ordinal = docFreqs.getOrdinal(Integer.valueOf(f.stringValue()));
+            if (ordinal >= 0 && docFreqs.getDocFreq(ordinal) >= minDocFreq) {
+                links.add(ordinal);
             } else {
-//                System.out.println("skipping " + wpId2);
+//                System.out.println("skipping " + f.stringValue());
             }
         }
-        return links;
+        return SortedIntArrays.sortUnique(links.toArray());
     }
 
     @Override
@@ -224,12 +248,11 @@ public class LinkSimilarity extends BaseSimilarityMetric{
         if (hasCachedMostSimilar(wpId)) {
             return getCachedMostSimilar(wpId, maxResults, validIds);
         }
-        MoreLikeThis mlt = getMoreLikeThis();
         int luceneId = linkHelper.wpIdToLuceneId(wpId);
         if (luceneId < 0) {
             return null;
         }
-        TopDocs similarDocs = searcher.search(mlt.like(luceneId),
+        TopDocs similarDocs = searcher.search(getMoreLikeThisQuery(wpId, luceneId),
                 linkHelper.getWpIdFilter(validIds),
                 maxResults);
         DocScoreList scores = new DocScoreList(similarDocs.scoreDocs.length);
@@ -1,47 +1,93 @@
 package edu.macalester.wpsemsim.sim;
 
 import edu.macalester.wpsemsim.concepts.ConceptMapper;
+import edu.macalester.wpsemsim.lucene.DocFreqTable;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
 import edu.macalester.wpsemsim.lucene.Page;
 import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+import edu.macalester.wpsemsim.utils.SortedIntArrays;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
-import gnu.trove.set.hash.TIntHashSet;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexableField;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
+import java.util.logging.Logger;
 
 public class MilneWittenInLinkSimilarity extends BaseSimilarityMetric{
+    private static final Logger LOG = Logger.getLogger(MilneWittenInLinkSimilarity.class.getName());
+
     IndexHelper linkHelper;
+    DocFreqTable docFreqs;
+    private int minDocFreq = 3;     // in-links from pages with fewer out-links are ignored
+
+    // Built by initIfNeeded(): wpIds and number of (filtered) in-links, indexed by lucene id.
+    private int luceneIdToWpId[] = null;
+    private int numInLinks[] = null;
+
+    // Dense intersection counts indexed by lucene id, one per thread.
+    private final ThreadLocal<int[]> accumulators = new ThreadLocal<int[]>();
 
-    public MilneWittenInLinkSimilarity(ConceptMapper mapper, IndexHelper linkHelper, IndexHelper mainHelper) {
+    public MilneWittenInLinkSimilarity(ConceptMapper mapper, IndexHelper linkHelper, IndexHelper mainHelper) throws IOException {
         super(mapper, mainHelper);
         this.linkHelper = linkHelper;
+        this.docFreqs = linkHelper.getDocFreqTable(Page.FIELD_INLINKS);
+    }
+
+    public synchronized void setMinDocFreq(int n) {
+        this.minDocFreq = n;
+        this.numInLinks = null;     // counts depend on minDocFreq
     }
 
     //TODO: normalize!
     @Override
     public double similarity(int wpId1, int wpId2) throws IOException {
-        TIntSet A = getInLinks(wpId1);
-        TIntSet B = getInLinks(wpId2);
+        int A[] = getInLinks(wpId1);
+        int B[] = getInLinks(wpId2);
         if (A == null || B == null) {
             return Double.NaN;
         }
-        TIntSet I = new TIntHashSet(A); I.retainAll(B); // intersection
+        int numShared = SortedIntArrays.intersectionSize(A, B);
         int numArticles = linkHelper.getReader().numDocs();
 
-//        System.out.println("sizes are A=" + A.size() + ", B=" + B.size() + " I=" + I.size());
-        if (I.size() == 0) {
+//        System.out.println("sizes are A=" + A.length + ", B=" + B.length + " I=" + numShared);
+        return score(A.length, B.length, numShared, numArticles);
+    }
+
+    /**
+     * The Milne-Witten measure computed from the in-link set sizes of two articles.
+     * @param sizeA Number of in-links to the first article.
+     * @param sizeB Number of in-links to the second article.
+     * @param numShared Number of in-links shared by both articles.
+     * @param numArticles Total number of articles.
+     * @return
+     */
+    private static double score(int sizeA, int sizeB, int numShared, int numArticles) {
+        if (numShared == 0) {
             return 0;
         }
-
         return 1.0 - (
-            (Math.log(Math.max(A.size(), B.size())) - Math.log(I.size()))
-        /   (Math.log(numArticles) - Math.log(Math.min(A.size(), B.size()))));
+            (Math.log(Math.max(sizeA, sizeB)) - Math.log(numShared))
+        /   (Math.log(numArticles) - Math.log(Math.min(sizeA, sizeB))));
     }
 
-    private TIntSet getInLinks(int wpId) throws IOException {
+    /**
+     * Returns the in-links for a page as a sorted array of unique wp ids.
+     * @param wpId
+     * @return The in-links, or null if the page does not exist.
+     * @throws IOException
+     */
+    private int[] getInLinks(int wpId) throws IOException {
         Document d = linkHelper.wpIdToLuceneDoc(wpId);
         if (d == null) {
 //            Document d2 = getHelper().wpIdToLuceneDoc(wpId);
@@ -50,17 +96,105 @@ public class MilneWittenInLinkSimilarity extends BaseSimilarityMetric{
 //            }
             return null;
         }
-        TIntSet links = new TIntHashSet();
+        TIntList links = new TIntArrayList();
         for (IndexableField f : d.getFields(Page.FIELD_INLINKS)) {
-            if (linkHelper.getDocFreq(Page.FIELD_INLINKS, f.stringValue()) >= 3) {
+            if (docFreqs.getDocFreqForWpId(Integer.valueOf(f.stringValue())) >= minDocFreq) {
                 links.add(Integer.valueOf(f.stringValue()));
             }
         }
-        return links;
+        return SortedIntArrays.sortUnique(links.toArray());
+    }
+
+    /**
+     * Builds the in-link counts for every article with a single pass over the inlinks postings.
+     */
+    public synchronized void initIfNeeded() throws IOException {
+        if (numInLinks != null) {
+            return;
+        }
+        LOG.info("building in-link postings statistics");
+        DirectoryReader reader = linkHelper.getReader();
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        int ids[] = linkHelper.getLuceneIdToWpIds();
+        int counts[] = new int[reader.maxDoc()];
+
+        Terms terms = MultiFields.getTerms(reader, Page.FIELD_INLINKS);
+        if (terms != null) {
+            TermsEnum te = terms.iterator(null);
+            DocsEnum de = null;
+            while (te.next() != null) {
+                if (te.docFreq() < minDocFreq) {
+                    continue;
+                }
+                de = te.docs(liveDocs, de, DocsEnum.FLAG_NONE);
+                for (int doc = de.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = de.nextDoc()) {
+                    counts[doc]++;
+                }
+            }
+        }
+        luceneIdToWpId = ids;
+        numInLinks = counts;
+        LOG.info("built in-link postings statistics for " + counts.length + " documents");
     }
 
+    /**
+     * Finds the articles that share in-links with wpId1 by walking the inlinks postings
+     * (in-link -> articles) for each of its in-links, accumulating intersection counts
+     * in a dense per-thread array. Safe to call from many threads at once.
+     */
     @Override
     public DocScoreList mostSimilar(int wpId1, int maxResults, TIntSet validIds) throws IOException {
-        throw new NotImplementedException();
+        if (hasCachedMostSimilar(wpId1)) {
+            return getCachedMostSimilar(wpId1, maxResults, validIds);
+        }
+        int A[] = getInLinks(wpId1);
+        if (A == null) {
+            return null;
+        }
+        initIfNeeded();
+        DirectoryReader reader = linkHelper.getReader();
+        int numArticles = reader.numDocs();
+
+        int counts[] = accumulators.get();
+        if (counts == null) {
+            counts = new int[numInLinks.length];
+            accumulators.set(counts);
+        }
+        TIntList touched = new TIntArrayList();
+        Leaderboard leaderboard;
+        try {
+            Terms terms = MultiFields.getTerms(reader, Page.FIELD_INLINKS);
+            if (terms != null) {
+                Bits liveDocs = MultiFields.getLiveDocs(reader);
+                TermsEnum te = terms.iterator(null);
+                DocsEnum de = null;
+                for (int inLink : A) {
+                    if (!te.seekExact(new BytesRef("" + inLink), true)) {
+                        continue;
+                    }
+                    de = te.docs(liveDocs, de, DocsEnum.FLAG_NONE);
+                    for (int doc = de.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = de.nextDoc()) {
+                        if (counts[doc]++ == 0) {
+                            touched.add(doc);
+                        }
+                    }
+                }
+            }
+
+            leaderboard = new Leaderboard(Math.min(maxResults, touched.size()));
+            for (int i = 0; i < touched.size(); i++) {
+                int doc = touched.get(i);
+                int wpId2 = luceneIdToWpId[doc];
+                if (validIds == null || validIds.contains(wpId2)) {
+                    leaderboard.tallyScore(wpId2, score(A.length, numInLinks[doc], counts[doc], numArticles));
+                }
+            }
+        } finally {
+            // reset the accumulator for the next call, even if the postings walk failed
+            for (int i = 0; i < touched.size(); i++) {
+                counts[touched.get(i)] = 0;
+            }
+        }
+        return normalize(leaderboard.getTop());
     }
 }
@@ -39,6 +39,18 @@ public interface SimilarityMetric {
      */
     public double similarity(int wpId1, int wpId2) throws IOException;
 
+    /**
+     * Computes the similarity between one Wikipedia page and many others.
+     * Results are identical to calling similarity(wpId, candidate) for each candidate,
+     * but implementations may compute them in a single pass.
+     *
+     * @param wpId One wikipedia page id.
+     * @param candidates The wikipedia page ids to compare it to.
+     * @return Similarity scores parallel to candidates.
+     * @throws IOException
+     */
+    public double[] similarities(int wpId, int candidates[]) throws IOException;
+
     /**
      * Computes the similarity between two textual phrases.
      * Similarity results should be between 0 and 1.
@@ -50,6 +50,11 @@ public class SplitSimilarityMetric implements SimilarityMetric {
         return similarityDelegate.similarity(wpId1, wpId2);
     }
 
+    @Override
+    public double[] similarities(int wpId, int candidates[]) throws IOException {
+        return similarityDelegate.similarities(wpId, candidates);
+    }
+
     @Override
     public double similarity(String phrase1, String phrase2) throws IOException {
         return similarityDelegate.similarity(phrase1, phrase2);
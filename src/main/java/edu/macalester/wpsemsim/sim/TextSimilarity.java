@@ -4,7 +4,9 @@ import edu.macalester.wpsemsim.concepts.ConceptMapper;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
 import edu.macalester.wpsemsim.sim.pairwise.PairwiseSimilarityWriter;
 import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.LruCache;
 import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
 import gnu.trove.set.TIntSet;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.lucene.analysis.Analyzer;
@@ -18,6 +20,7 @@ import org.apache.lucene.util.Version;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,6 +30,7 @@ public class TextSimilarity extends BaseSimilarityMetric implements SimilarityMe
     public static final int DEFAULT_MAX_QUERY_TERMS = 100;
     public static final int DEFAULT_MIN_TERM_FREQ = 2;
     public static final int DEFAULT_MIN_DOC_FREQ = 2;
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 5000;
 
     private String field;
     private int maxPercentage = DEFAULT_MAX_PERCENTAGE;
@@ -37,6 +41,7 @@ public class TextSimilarity extends BaseSimilarityMetric implements SimilarityMe
     private IndexHelper helper;
     private DirectoryReader reader;
     private boolean useInternalMapper = false;
+    private LruCache<Integer, Query> queryCache = new LruCache<Integer, Query>(DEFAULT_QUERY_CACHE_SIZE);
 
     public TextSimilarity(IndexHelper helper, String field) {
         this(null, helper, field);
@@ -62,6 +67,19 @@ public class TextSimilarity extends BaseSimilarityMetric implements SimilarityMe
         return mlt;
     }
 
+    /**
+     * Returns the MoreLikeThis query for a document.
+     * A document's query never changes, so queries are cached by wpId.
+     */
+    private Query getMoreLikeThisQuery(int wpId, int luceneId) throws IOException {
+        Query query = queryCache.get(wpId);
+        if (query == null) {
+            query = getMoreLikeThis().like(luceneId);
+            queryCache.put(wpId, query);
+        }
+        return query;
+    }
+
     @Override
     public double similarity(String phrase1, String phrase2) throws IOException {
         if (!useInternalMapper) {
@@ -127,12 +145,11 @@ public class TextSimilarity extends BaseSimilarityMetric implements SimilarityMe
         if (hasCachedMostSimilar(wpId)) {
             return getCachedMostSimilar(wpId, maxResults, validIds);
         }
-        MoreLikeThis mlt = getMoreLikeThis();
         int luceneId = helper.wpIdToLuceneId(wpId);
         if (luceneId < 0) {
             return null;
         }
-        TopDocs similarDocs = searcher.search(mlt.like(luceneId),
+        TopDocs similarDocs = searcher.search(getMoreLikeThisQuery(wpId, luceneId),
                 helper.getWpIdFilter(validIds), maxResults);
         DocScoreList scores = new DocScoreList(similarDocs.scoreDocs.length);
         for (int i = 0; i < similarDocs.scoreDocs.length; i++) {
@@ -159,8 +176,7 @@ public class TextSimilarity extends BaseSimilarityMetric implements SimilarityMe
             return Double.NaN;
         }
 
-        MoreLikeThis mlt = getMoreLikeThis();
-        TopDocs similarDocs = searcher.search(mlt.like(doc1), new FieldCacheTermsFilter("id", "" + wpId2), 1);
+        TopDocs similarDocs = searcher.search(getMoreLikeThisQuery(wpId1, doc1), new FieldCacheTermsFilter("id", "" + wpId2), 1);
         if (similarDocs.scoreDocs.length == 0) {
             return normalize(0);
         } else {
@@ -170,20 +186,73 @@ public class TextSimilarity extends BaseSimilarityMetric implements SimilarityMe
         }
     }
 
+    /**
+     * Runs the MoreLikeThis query for wpId once, filtered to all candidates,
+     * rather than running one search per candidate.
+     */
+    @Override
+    public double[] similarities(int wpId, int candidates[]) throws IOException {
+        double sims[] = new double[candidates.length];
+        int doc1 = helper.wpIdToLuceneId(wpId);
+        if (doc1 < 0) {
+            Arrays.fill(sims, Double.NaN);
+            return sims;
+        }
+        String ids[] = new String[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            ids[i] = "" + candidates[i];
+        }
+        TopDocs similarDocs = searcher.search(
+                getMoreLikeThisQuery(wpId, doc1),
+                new FieldCacheTermsFilter("id", ids),
+                Math.max(1, candidates.length));
+        TIntFloatHashMap scores = new TIntFloatHashMap();
+        for (ScoreDoc sd : similarDocs.scoreDocs) {
+            scores.put(sd.doc, sd.score);
+        }
+        for (int i = 0; i < candidates.length; i++) {
+            int doc2 = helper.wpIdToLuceneId(candidates[i]);
+            if (doc2 < 0) {
+                sims[i] = Double.NaN;
+            } else if (scores.containsKey(doc2)) {
+                sims[i] = normalize(scores.get(doc2));
+            } else {
+                sims[i] = normalize(0);
+            }
+        }
+        return sims;
+    }
+
     public void setMaxPercentage(int maxPercentage) {
         this.maxPercentage = maxPercentage;
+        queryCache.clear();
     }
 
     public void setMaxQueryTerms(int maxQueryTerms) {
         this.maxQueryTerms = maxQueryTerms;
+        queryCache.clear();
     }
 
     public void setMinTermFreq(int minTermFreq) {
         this.minTermFreq = minTermFreq;
+        queryCache.clear();
     }
 
     public void setMinDocFreq(int minDocFreq) {
         this.minDocFreq = minDocFreq;
+        queryCache.clear();
+    }
+
+    /**
+     * Sets the maximum number of MoreLikeThis queries that are cached.
+     * @param n
+     */
+    public void setQueryCacheSize(int n) {
+        this.queryCache = new LruCache<Integer, Query>(n);
+    }
+
+    public LruCache<Integer, Query> getQueryCache() {
+        return queryCache;
     }
 
     public void setUseInternalMapper(boolean useInternalMapper) {
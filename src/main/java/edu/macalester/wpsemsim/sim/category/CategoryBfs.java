@@ -3,35 +3,50 @@ package edu.macalester.wpsemsim.sim.category;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.set.TIntSet;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexableField;
 
-import java.util.PriorityQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 /**
  * Conducts Dijkstra on the category hierarchy from a starting document.
  * Pages attached to visited categories are recorded, and iterations stop
  * when a certain number of unique pages have been discovered.
+ *
+ * Open categories live in a primitive indexed binary heap that supports decrease-key,
+ * and per-category state is kept in epoch-stamped arrays borrowed from a per-thread pool,
+ * so a search allocates nothing per edge. Call release() when finished with a search
+ * to return its arrays to the pool.
  */
 public class CategoryBfs {
+    /**
+     * Maximum number of idle workspaces kept by each thread.
+     * CategorySimilarity.similarity() uses two searches at once.
+     */
+    private static final int MAX_POOLED_WORKSPACES = 4;
+
+    private static final int NO_CATS[] = new int[0];
+
+    private static final ThreadLocal<ArrayDeque<Workspace>> POOL = new ThreadLocal<ArrayDeque<Workspace>>() {
+        @Override
+        protected ArrayDeque<Workspace> initialValue() {
+            return new ArrayDeque<Workspace>();
+        }
+    };
+
     private CategoryGraph graph;
     private int startPage;
     private int maxResults;
 
     /**
-     * Observed distances to visited categories.
+     * Distances to categories and the open category heap.
      */
-    private TIntDoubleHashMap catDistances = new TIntDoubleHashMap();
+    private Workspace ws;
 
     /**
      * Observed distances to visited pages.
      */
     private TIntDoubleHashMap pageDistances = new TIntDoubleHashMap();
 
-    /**
-     * Categories that have been seen, but not visited.
-     */
-    private PriorityQueue<CategoryDistance> openCats = new PriorityQueue<CategoryDistance>();
-
     /**
      * Results of the current iteration.
      */
@@ -54,14 +69,46 @@ public class CategoryBfs {
     private TIntSet validWpIds;
 
     public CategoryBfs(CategoryGraph graph, Document start, int maxResults, TIntSet validWpIds) {
-        this.startPage = Integer.valueOf(start.getField("id").stringValue());
+        this(graph, Integer.valueOf(start.getField("id").stringValue()), maxResults, validWpIds);
+    }
+
+    /**
+     * Starts a search from a page, using the page's categories stored in the graph.
+     * @param graph
+     * @param startPage The wpId of the starting page.
+     * @param maxResults
+     * @param validWpIds
+     */
+    public CategoryBfs(CategoryGraph graph, int startPage, int maxResults, TIntSet validWpIds) {
+        this(graph, startPage, NO_CATS, maxResults, validWpIds);
+        int p = graph.getPageIndex(startPage);
+        if (p >= 0) {
+            for (int k = graph.pageCatOffsets[p]; k < graph.pageCatOffsets[p + 1]; k++) {
+                int ci = graph.pageCatIds[k];
+                ws.relax(ci, graph.catCosts[ci], (byte)+1);
+            }
+        }
+    }
+
+    /**
+     * Starts a search from a set of categories.
+     * @param graph
+     * @param startPage The wpId of the starting page, or -1 if the search has no starting page.
+     * @param startCats Indexes of the categories the search starts from.
+     * @param maxResults
+     * @param validWpIds
+     */
+    public CategoryBfs(CategoryGraph graph, int startPage, int startCats[], int maxResults, TIntSet validWpIds) {
+        this.startPage = startPage;
         this.maxResults = maxResults;
         this.graph = graph;
         this.validWpIds = validWpIds;
-        pageDistances.put(startPage, 0.000000);
-        for (IndexableField f : start.getFields("cats")) {
-            int ci = graph.getCategoryIndex(f.stringValue());
-            openCats.add(new CategoryDistance(ci, graph.cats[ci], graph.catCosts[ci], (byte)+1));
+        this.ws = acquire(graph);
+        if (startPage >= 0) {
+            pageDistances.put(startPage, 0.000000);
+        }
+        for (int ci : startCats) {
+            ws.relax(ci, graph.catCosts[ci], (byte)+1);
         }
     }
 
@@ -74,7 +121,8 @@ public class CategoryBfs {
     }
 
     public boolean hasMoreResults() {
-        return openCats.size() > 0 && pageDistances.size() < maxResults;
+        checkNotReleased();
+        return ws.heapSize > 0 && pageDistances.size() < maxResults;
     }
 
     /**
@@ -86,24 +134,21 @@ public class CategoryBfs {
         if (!hasMoreResults()) {
             return visited;
         }
-        CategoryDistance cs;
-        do {
-            cs = openCats.poll();
-        } while (hasMoreResults() && catDistances.contains(cs.getCatIndex()));
+        int ci = ws.pop();
+        double distance = ws.dist[ci];
 
-        visited.cats.put(cs.getCatIndex(), cs.getDistance());
-        catDistances.put(cs.getCatIndex(), cs.getDistance());
-//        System.out.println("visited " + cs.toString());
+        visited.cats.put(ci, distance);
 
         // add directly linked pages
         if (addPages) {
-            for (int i : graph.catPages[cs.getCatIndex()]) {
+            for (int k = graph.catPageOffsets[ci]; k < graph.catPageOffsets[ci + 1]; k++) {
+                int i = graph.catPageIds[k];
                 if (validWpIds != null && !validWpIds.contains(i)) {
                     continue;
                 }
-                if (!pageDistances.containsKey(i) || pageDistances.get(i) > cs.getDistance()) {
-                    pageDistances.put(i, cs.getDistance());
-                    visited.pages.put(i, cs.getDistance());
+                if (!pageDistances.containsKey(i) || pageDistances.get(i) > distance) {
+                    pageDistances.put(i, distance);
+                    visited.pages.put(i, distance);
                 }
                 if (pageDistances.size() >= maxResults) {
                     break;  // may be an issue for huge categories
@@ -113,27 +158,38 @@ public class CategoryBfs {
 
         // next steps downwards
         if (exploreChildren) {
-            for (int i : graph.catChildren[cs.getCatIndex()]) {
-                if (!catDistances.containsKey(i)) {
-                    double d = cs.getDistance() + graph.catCosts[i];
-                    openCats.add(new CategoryDistance(i, graph.cats[i], d, (byte)-1));
-                }
+            for (int k = graph.catChildOffsets[ci]; k < graph.catChildOffsets[ci + 1]; k++) {
+                int i = graph.catChildIds[k];
+                ws.relax(i, distance + graph.catCosts[i], (byte)-1);
             }
         }
 
         // next steps upwards (if still possible)
-        if (cs.getDirection() == +1) {
-            for (int i : graph.catParents[cs.getCatIndex()]) {
-                if (!catDistances.containsKey(i)) {
-                    double d = cs.getDistance() + graph.catCosts[i];
-                    openCats.add(new CategoryDistance(i, graph.cats[i], d, (byte)+1));
-                }
+        if (ws.dir[ci] == +1) {
+            for (int k = graph.catParentOffsets[ci]; k < graph.catParentOffsets[ci + 1]; k++) {
+                int i = graph.catParentIds[k];
+                ws.relax(i, distance + graph.catCosts[i], (byte)+1);
             }
         }
 
         return visited;
     }
 
+    /**
+     * Returns the search's arrays to the current thread's pool.
+     * Page distances remain available afterwards, but stepping the search or asking
+     * for category distances throws an IllegalStateException.
+     */
+    public void release() {
+        if (ws != null) {
+            ArrayDeque<Workspace> pool = POOL.get();
+            if (pool.size() < MAX_POOLED_WORKSPACES) {
+                pool.push(ws);
+            }
+            ws = null;
+        }
+    }
+
     public TIntDoubleHashMap getPageDistances() {
         return pageDistances;
     }
@@ -144,10 +200,18 @@ public class CategoryBfs {
         return pageDistances.get(pageId);
     }
     public boolean hasCategoryDistance(int categoryId) {
-        return catDistances.containsKey(categoryId);
+        checkNotReleased();
+        return ws.isSettled(categoryId);
     }
     public double getCategoryDistance(int categoryId) {
-        return catDistances.get(categoryId);
+        checkNotReleased();
+        return ws.isSettled(categoryId) ? ws.dist[categoryId] : 0.0;
+    }
+
+    private void checkNotReleased() {
+        if (ws == null) {
+            throw new IllegalStateException("search was released");
+        }
     }
 
     public class BfsVisited {
@@ -165,4 +229,129 @@ public class CategoryBfs {
         }
         return max;
     }
+
+    private static Workspace acquire(CategoryGraph graph) {
+        ArrayDeque<Workspace> pool = POOL.get();
+        while (!pool.isEmpty()) {
+            Workspace ws = pool.pop();
+            if (ws.graph == graph && ws.dist.length == graph.cats.length) {
+                ws.reset();
+                return ws;
+            }
+        }
+        return new Workspace(graph);
+    }
+
+    /**
+     * Per-category search state for one graph, reset between searches by bumping an epoch.
+     * A category's entries are only meaningful if its stamp equals the current epoch.
+     */
+    private static final class Workspace {
+        static final int SETTLED = -1;
+
+        final CategoryGraph graph;
+        final int stamps[];
+        final double dist[];
+        final byte dir[];       // +1 (heading upwards) or -1 (heading downwards)
+        final int heapPos[];    // position in heap, or SETTLED once visited
+        final int heap[];       // min-heap of category indexes ordered by dist
+        int heapSize = 0;
+        int epoch = 1;
+
+        Workspace(CategoryGraph graph) {
+            int n = graph.cats.length;
+            this.graph = graph;
+            this.stamps = new int[n];
+            this.dist = new double[n];
+            this.dir = new byte[n];
+            this.heapPos = new int[n];
+            this.heap = new int[n];
+        }
+
+        void reset() {
+            heapSize = 0;
+            if (++epoch == Integer.MAX_VALUE) {
+                Arrays.fill(stamps, 0);
+                epoch = 1;
+            }
+        }
+
+        boolean isSettled(int c) {
+            return stamps[c] == epoch && heapPos[c] == SETTLED;
+        }
+
+        /**
+         * Offers a path to category c. Unseen categories are added to the heap,
+         * and open categories move up if the path is shorter. At equal distances an
+         * upward path wins because it may still be extended in both directions.
+         */
+        void relax(int c, double d, byte direction) {
+            if (stamps[c] != epoch) {
+                stamps[c] = epoch;
+                dist[c] = d;
+                dir[c] = direction;
+                heap[heapSize] = c;
+                heapPos[c] = heapSize;
+                siftUp(heapSize++);
+            } else if (heapPos[c] != SETTLED
+                    && (d < dist[c] || (d == dist[c] && direction > dir[c]))) {
+                dist[c] = d;
+                dir[c] = direction;
+                siftUp(heapPos[c]);
+            }
+        }
+
+        /**
+         * Removes the closest open category and marks it settled.
+         */
+        int pop() {
+            int c = heap[0];
+            heapPos[c] = SETTLED;
+            if (--heapSize > 0) {
+                heap[0] = heap[heapSize];
+                heapPos[heap[0]] = 0;
+                siftDown(0);
+            }
+            return c;
+        }
+
+        private void siftUp(int i) {
+            int c = heap[i];
+            double d = dist[c];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                int p = heap[parent];
+                if (dist[p] <= d) {
+                    break;
+                }
+                heap[i] = p;
+                heapPos[p] = i;
+                i = parent;
+            }
+            heap[i] = c;
+            heapPos[c] = i;
+        }
+
+        private void siftDown(int i) {
+            int c = heap[i];
+            double d = dist[c];
+            int half = heapSize >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < heapSize && dist[heap[right]] < dist[heap[child]]) {
+                    child = right;
+                }
+                int h = heap[child];
+                if (d <= dist[h]) {
+                    break;
+                }
+                heap[i] = h;
+                heapPos[h] = i;
+                i = child;
+            }
+            heap[i] = c;
+            heapPos[c] = i;
+        }
+    }
 }
@@ -4,39 +4,81 @@ import edu.macalester.wpsemsim.lucene.IndexHelper;
 import edu.macalester.wpsemsim.lucene.Page;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Builds and stores a directed graph among categories and pages.
+ *
+ * Categories are identified by dense ordinals. Edges are stored in compressed sparse
+ * row (CSR) form: the parents of category c are catParentIds[catParentOffsets[c]]
+ * through catParentIds[catParentOffsets[c+1] - 1], and likewise for children and pages.
+ * Page edges hold wikipedia ids. The categories of each page (including category pages)
+ * are stored the same way, indexed by the page's ordinal; see getPageIndex().
+ *
+ * The graph can be written to and read from a compact binary file; see write() and read().
  */
-public class CategoryGraph implements Serializable {
+public class CategoryGraph {
 
     private static final Logger LOG = Logger.getLogger(CategoryGraph.class.getName());
 
-    protected transient IndexHelper helper;
-    protected transient DirectoryReader reader;
+    public static final int FILE_HEADER = 0xca7e6a;
+    public static final int FILE_VERSION = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
-    protected Map<String,Integer> catIndexes;
-    protected Set<Integer> topLevelCategories;
+    protected IndexHelper helper;
+    protected DirectoryReader reader;
+
+    protected TObjectIntHashMap<String> catIndexes;
+    protected TIntSet topLevelCategories;
 
     protected double[] catCosts;  // the cost of travelling through each category
-    protected int[][] catParents;
-    protected int[][] catPages;
-    protected int[][] catChildren;
+    protected int[] catParentOffsets;
+    protected int[] catParentIds;
+    protected int[] catChildOffsets;
+    protected int[] catChildIds;
+    protected int[] catPageOffsets;
+    protected int[] catPageIds;
+    protected int[] pageWpIds;      // sorted wpIds of pages with categories; a page's ordinal is its position
+    protected int[] pageCatOffsets;
+    protected int[] pageCatIds;
     protected String[] cats;
     protected double minCost = -1;
 
+    public static final int MAX_PAGE_RANK_ITERATIONS = 20;
+    public static final double DEFAULT_PAGE_RANK_TOLERANCE = 1e-9;
+    private double pageRankTolerance = DEFAULT_PAGE_RANK_TOLERANCE;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private double[] spareCosts;  // second buffer for page rank iterations
+
     /**
      * Create a category graph from a lucene index. The index
      * @param helper
@@ -55,41 +97,45 @@ public class CategoryGraph implements Serializable {
     }
 
     public void init() throws IOException {
-        loadCategories();
         buildGraph();
         calculateTopLevelCategories();
         computePageRanks();
     }
 
-    private void loadCategories() throws IOException {
-        LOG.info("loading categories...");
-        this.catIndexes = new HashMap<String, Integer>();
-        List<String> catList = new ArrayList<String>();
-        Bits live = MultiFields.getLiveDocs(reader);
-        for (int i=0; i < reader.maxDoc(); i++) {
-            if (live != null && !live.get(i)) {
-                continue;
-            }
-            Document d = reader.document(i);
-            if (isCat(d)) {
-                String cat = cleanTitle(d);
-                if (!catIndexes.containsKey(cat)) {
-                    catIndexes.put(cat, catIndexes.size());
-                    catList.add(cat);
-                }
-            }
-//            StringBuffer buff = new StringBuffer();
-            for (IndexableField f : d.getFields("cats")) {
-                String cat = cleanTitle(f.stringValue());
-//                buff.append(", " + cat);
-                if (!catIndexes.containsKey(cat)) {
-                    catIndexes.put(cat, catIndexes.size());
-                    catList.add(cat);
-                }
-            }
+    public int getNumCategories() {
+        return cats.length;
+    }
+
+    public int getNumParents(int catId) {
+        return catParentOffsets[catId + 1] - catParentOffsets[catId];
+    }
+
+    public int getNumChildren(int catId) {
+        return catChildOffsets[catId + 1] - catChildOffsets[catId];
+    }
+
+    public int getNumPages(int catId) {
+        return catPageOffsets[catId + 1] - catPageOffsets[catId];
+    }
+
+    /**
+     * @return The ordinal of the page (or category page) in the page to category CSR arrays,
+     * or -1 if the page has no categories.
+     */
+    public int getPageIndex(int wpId) {
+        int i = Arrays.binarySearch(pageWpIds, wpId);
+        return (i < 0) ? -1 : i;
+    }
+
+    /**
+     * @return The indexes of the categories a page (or category page) belongs to.
+     */
+    public int[] getPageCategories(int wpId) {
+        int i = getPageIndex(wpId);
+        if (i < 0) {
+            return new int[0];
         }
-        cats = catList.toArray(new String[0]);
-        LOG.info("finished loading " + cats.length + " categories");
+        return Arrays.copyOfRange(pageCatIds, pageCatOffsets[i], pageCatOffsets[i + 1]);
     }
 
     public boolean isCat(Document d) {
@@ -108,113 +154,191 @@ public class CategoryGraph implements Serializable {
         return s;
     }
 
+    /**
+     * Builds the graph from the postings of the ns, title, and cats fields,
+     * so no stored documents are loaded.
+     */
     private void buildGraph() throws IOException {
         LOG.info("building category graph");
-        this.catPages = new int[catIndexes.size()][];
-        this.catParents = new int[catIndexes.size()][];
-        this.catChildren = new int[catIndexes.size()][];
-        this.catCosts = new double[catIndexes.size()];
-
-        Arrays.fill(catPages, new int[0]);
-        Arrays.fill(catParents, new int[0]);
-        Arrays.fill(catChildren, new int[0]);
-
-        // count reverse edges
-        int totalEdges = 0;
-        int numCatChildren[] = new int[catIndexes.size()];
-        int numCatPages[] = new int[catIndexes.size()];
-        for (int i = 0; i < reader.maxDoc(); i++) {
-            Document d = reader.document(i);
-            int catId1 = -1;
-            if (isCat(d)) {
-                catId1 = getCategoryIndex(d);
+        int maxDoc = reader.maxDoc();
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        int wpIds[] = helper.getLuceneIdToWpIds();
+        catIndexes = new TObjectIntHashMap<String>(10, 0.5f, -1);
+        List<String> catList = new ArrayList<String>();
+
+        // category ordinals for documents that are themselves categories
+        int docCats[] = new int[maxDoc];
+        Arrays.fill(docCats, -1);
+        boolean isCatDoc[] = new boolean[maxDoc];
+        for (PostingsCursor pc = new PostingsCursor("ns", liveDocs); pc.nextTerm(); ) {
+            if (pc.term.equals("14")) {
+                for (int doc = pc.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = pc.nextDoc()) {
+                    isCatDoc[doc] = true;
+                }
+            }
+        }
+        for (PostingsCursor pc = new PostingsCursor(Page.FIELD_TITLE, liveDocs); pc.nextTerm(); ) {
+            int catId = -1;
+            for (int doc = pc.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = pc.nextDoc()) {
+                if (isCatDoc[doc]) {
+                    if (catId < 0) {
+                        catId = getOrAddCategory(pc.term, catList);
+                    }
+                    docCats[doc] = catId;
+                }
             }
-            for (IndexableField f : d.getFields("cats")) {
-                int catId2 = getCategoryIndex(f.stringValue());
-                if (catId1 >= 0) {
-                    numCatChildren[catId2]++;
+        }
+
+        // edges from each document to its categories
+        TIntArrayList childEdges = new TIntArrayList();     // pairs of (child, parent)
+        TIntArrayList pageEdges = new TIntArrayList();      // pairs of (category, wpId)
+        TIntArrayList pageCatEdges = new TIntArrayList();   // pairs of (wpId, category), including category pages
+        for (PostingsCursor pc = new PostingsCursor(Page.FIELD_CATS, liveDocs); pc.nextTerm(); ) {
+            int catId = getOrAddCategory(pc.term, catList);
+            for (int doc = pc.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = pc.nextDoc()) {
+                if (wpIds[doc] >= 0) {
+                    pageCatEdges.add(wpIds[doc]);
+                    pageCatEdges.add(catId);
+                }
+                if (docCats[doc] >= 0) {
+                    childEdges.add(docCats[doc]);
+                    childEdges.add(catId);
                 } else {
-                    numCatPages[catId2]++;
+                    pageEdges.add(catId);
+                    pageEdges.add(wpIds[doc]);
                 }
-                totalEdges++;
             }
         }
+        cats = catList.toArray(new String[0]);
 
-        // allocate space
-        for (int i = 0; i < catIndexes.size(); i++) {
-            catPages[i] = new int[numCatPages[i]];
-            catChildren[i] = new int[numCatChildren[i]];
+        int numCats = cats.length;
+        catParentOffsets = new int[numCats + 1];
+        catChildOffsets = new int[numCats + 1];
+        catPageOffsets = new int[numCats + 1];
+        catParentIds = new int[childEdges.size() / 2];
+        catChildIds = new int[childEdges.size() / 2];
+        catPageIds = new int[pageEdges.size() / 2];
+        fillCsr(childEdges, 0, 1, catParentOffsets, catParentIds);
+        fillCsr(childEdges, 1, 0, catChildOffsets, catChildIds);
+        fillCsr(pageEdges, 0, 1, catPageOffsets, catPageIds);
+
+        // replace wpIds with page ordinals, then build the page to category CSR
+        TIntHashSet pages = new TIntHashSet();
+        for (int i = 0; i < pageCatEdges.size(); i += 2) {
+            pages.add(pageCatEdges.get(i));
         }
+        pageWpIds = pages.toArray();
+        Arrays.sort(pageWpIds);
+        for (int i = 0; i < pageCatEdges.size(); i += 2) {
+            pageCatEdges.set(i, Arrays.binarySearch(pageWpIds, pageCatEdges.get(i)));
+        }
+        pageCatOffsets = new int[pageWpIds.length + 1];
+        pageCatIds = new int[pageCatEdges.size() / 2];
+        fillCsr(pageCatEdges, 0, 1, pageCatOffsets, pageCatIds);
+        catCosts = new double[numCats];
+
+        LOG.info("loaded " + numCats + " categories and " +
+                (catParentIds.length + catPageIds.length) + " edges in category graph");
+    }
 
-        // fill it
+    private int getOrAddCategory(String title, List<String> catList) {
+        String cat = cleanTitle(title);
+        int catId = catIndexes.get(cat);
+        if (catId < 0) {
+            catId = catList.size();
+            catIndexes.put(cat, catId);
+            catList.add(cat);
+        }
+        return catId;
+    }
+
+    /**
+     * Fills a CSR structure from a flat list of (row, column) pairs with a counting sort.
+     * @param pairs Pairs of ints.
+     * @param rowPos Position of the row within each pair (0 or 1).
+     * @param colPos Position of the column within each pair (0 or 1).
+     */
+    private static void fillCsr(TIntArrayList pairs, int rowPos, int colPos, int offsets[], int values[]) {
+        for (int i = 0; i < pairs.size(); i += 2) {
+            offsets[pairs.get(i + rowPos) + 1]++;
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        int next[] = Arrays.copyOf(offsets, offsets.length - 1);
+        for (int i = 0; i < pairs.size(); i += 2) {
+            values[next[pairs.get(i + rowPos)]++] = pairs.get(i + colPos);
+        }
+    }
 
-        for (int i = 0; i < reader.maxDoc(); i++) {
-            Document d = reader.document(i);
-            IndexableField[] catFields = d.getFields("cats");
-            int pageId = Integer.valueOf(d.getField("id").stringValue());
-            int catId1 = -1;
-            if (isCat(d)) {
-                catId1 = getCategoryIndex(d);
-                catParents[catId1] = new int[catFields.length];
+    /**
+     * Iterates over the terms of a field, and the live documents for each term.
+     */
+    private class PostingsCursor {
+        TermsEnum te = null;
+        DocsEnum de = null;
+        Bits liveDocs;
+        String term;
+
+        PostingsCursor(String field, Bits liveDocs) throws IOException {
+            Terms terms = MultiFields.getTerms(reader, field);
+            if (terms != null) {
+                te = terms.iterator(null);
             }
-            for (int j = 0; j < catFields.length; j++) {
-                int catId2 = getCategoryIndex(catFields[j].stringValue());
-                if (catId1 >= 0) {
-                    catChildren[catId2][--numCatChildren[catId2]] = catId1;
-                    catParents[catId1][j] = catId2;
-                } else {
-                    catPages[catId2][--numCatPages[catId2]] = pageId;
-                }
+            this.liveDocs = liveDocs;
+        }
+
+        boolean nextTerm() throws IOException {
+            BytesRef ref = (te == null) ? null : te.next();
+            if (ref == null) {
+                return false;
             }
+            term = ref.utf8ToString();
+            de = te.docs(liveDocs, de, DocsEnum.FLAG_NONE);
+            return true;
+        }
+
+        int nextDoc() throws IOException {
+            return de.nextDoc();
         }
-        for (int n : numCatChildren) { assert(n == 0); }
-        for (int n : numCatPages) { assert(n == 0); }
-        LOG.info("loaded " + totalEdges + " edges in category graph");
-//        for (int i = 0; i < catChildren.length; i+= 10000) {
-//            System.err.println("info for cat " + i + " " + cats[i]);
-//            System.err.println("\tparents:" + Arrays.toString(catParents[i]));
-//            System.err.println("\tchildren:" + Arrays.toString(catChildren[i]));
-//            System.err.println("\tpages:" + Arrays.toString(catPages[i]));
-//        }
     }
 
     public void computePageRanks() {
         LOG.info("computing category page ranks...");
 
         // initialize page rank
-        long sumCredits = catPages.length;    // each category gets 1 credit to start
-        for (int i = 0; i < catPages.length; i++) {
-            sumCredits += catPages[i].length; // one more credit per page that references it.
-        }
-        for (int i = 0; i < catPages.length; i++) {
-            catCosts[i] = (1.0 + catPages[i].length) / sumCredits;
+        long sumCredits = cats.length;    // each category gets 1 credit to start
+        sumCredits += catPageIds.length;  // one more credit per page that references it.
+        for (int i = 0; i < cats.length; i++) {
+            catCosts[i] = (1.0 + getNumPages(i)) / sumCredits;
         }
 
-        for (int i = 0; i < 20; i++) {
-            LOG.log(Level.INFO, "performing page ranks iteration {0}.", i);
-            double error = onePageRankIteration();
-            LOG.log(Level.INFO, "Error for iteration is {0}.", error);
-            if (error == 0) {
-                break;
+        // one pool for all iterations, rather than one per iteration
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int i = 0; i < MAX_PAGE_RANK_ITERATIONS; i++) {
+                LOG.log(Level.INFO, "performing page ranks iteration {0}.", i);
+                double error = onePageRankIteration(exec);
+                LOG.log(Level.INFO, "Error for iteration is {0}.", error);
+                if (error <= pageRankTolerance) {
+                    break;
+                }
             }
+        } finally {
+            exec.shutdown();
         }
-        Integer sortedIndexes[] = new Integer[catCosts.length];
-        for (int i = 0; i < catParents.length; i++) {
+        for (int i = 0; i < cats.length; i++) {
             catCosts[i] = 1.0/-Math.log(catCosts[i]);
-            sortedIndexes[i] = i;
         }
+        spareCosts = null;
         LOG.info("finished computing page ranks...");
-        Arrays.sort(sortedIndexes, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer i1, Integer i2) {
-                Double pr1 = catCosts[i1];
-                Double pr2 = catCosts[i2];
-                return -1 * pr1.compareTo(pr2);
-            }
-        });
+        logCosts();
+    }
 
+    private void logCosts() {
+        Integer sortedIndexes[] = sortByCost();
         StringBuffer b = new StringBuffer();
-        for (int i = 0; i < 20; i++) {
+        for (int i = 0; i < 20 && i < sortedIndexes.length; i++) {
             int j = sortedIndexes[i];
             b.append("" + i + ". " + cats[j] + "=" + catCosts[j]);
             b.append(", ");
@@ -225,6 +349,22 @@ public class CategoryGraph implements Serializable {
         LOG.info("Top cat costs: " + b.toString());
     }
 
+    private Integer[] sortByCost() {
+        Integer sortedIndexes[] = new Integer[catCosts.length];
+        for (int i = 0; i < catCosts.length; i++) {
+            sortedIndexes[i] = i;
+        }
+        Arrays.sort(sortedIndexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                Double pr1 = catCosts[i1];
+                Double pr2 = catCosts[i2];
+                return -1 * pr1.compareTo(pr2);
+            }
+        });
+        return sortedIndexes;
+    }
+
     public void dump(BufferedWriter writer) throws IOException {
 
         writer.write("\n\nNon-orphaned category hierarchy:\n");
@@ -232,15 +372,13 @@ public class CategoryGraph implements Serializable {
             if (isUsefulCat(i)) {
                 writer.write(
                         "id=" + i + ", " + cats[i] +
-                        ", parents=" + catIndexesToString(catParents[i]) +
-                        ", children=" + catIndexesToString(catChildren[i]) + "\n");
+                        ", parents=" + catIndexesToString(catParentIds, catParentOffsets[i], catParentOffsets[i+1]) +
+                        ", children=" + catIndexesToString(catChildIds, catChildOffsets[i], catChildOffsets[i+1]) + "\n");
             }
         }
 
-        Integer sortedIndexes[] = new Integer[catCosts.length];
         double nonUsefulPageRank = Double.MAX_VALUE;
-        for (int i = 0; i < catParents.length; i++) {
-            sortedIndexes[i] = i;
+        for (int i = 0; i < cats.length; i++) {
             if (!isUsefulCat(i)) {
                 if (nonUsefulPageRank == Double.MAX_VALUE) {
                     nonUsefulPageRank = catCosts[i];
@@ -250,14 +388,7 @@ public class CategoryGraph implements Serializable {
             }
         }
         writer.write("\n\nPage ranks of non-useful cats: " + nonUsefulPageRank + "\n");
-        Arrays.sort(sortedIndexes, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer i1, Integer i2) {
-                Double pr1 = catCosts[i1];
-                Double pr2 = catCosts[i2];
-                return -1 * pr1.compareTo(pr2);
-            }
-        });
+        Integer sortedIndexes[] = sortByCost();
         writer.write("\n\nPage ranks of useful cats:\n");
         for (int i = 0; i < sortedIndexes.length; i++) {
             int j = sortedIndexes[i];
@@ -269,9 +400,10 @@ public class CategoryGraph implements Serializable {
 
         writer.write("\n\nPages to non-orphaned categories\n");
         TIntObjectHashMap<TIntArrayList> pagesToCats = new TIntObjectHashMap<TIntArrayList>();
-        for (int i = 0; i < catPages.length; i++) {
+        for (int i = 0; i < cats.length; i++) {
             if (isUsefulCat(i)) {
-                for (int j : catPages[i]) {
+                for (int k = catPageOffsets[i]; k < catPageOffsets[i+1]; k++) {
+                    int j = catPageIds[k];
                     if (!pagesToCats.containsKey(j)) {
                         pagesToCats.put(j, new TIntArrayList());
                     }
@@ -283,20 +415,22 @@ public class CategoryGraph implements Serializable {
         int pageIds[] = pagesToCats.keys();
         Arrays.sort(pageIds);
         for (int wpId : pageIds) {
+            int catIds[] = pagesToCats.get(wpId).toArray();
             writer.write(helper.wpIdToTitle(wpId) +
                     " (id=" + wpId + ") " +
-                    ": " + catIndexesToString(pagesToCats.get(wpId).toArray())
+                    ": " + catIndexesToString(catIds, 0, catIds.length)
                     + "\n");
         }
     }
 
     private boolean isUsefulCat(int i) {
-        return (catParents[i].length > 0 || catChildren[i].length > 0 || catPages[i].length > 1);
+        return (getNumParents(i) > 0 || getNumChildren(i) > 0 || getNumPages(i) > 1);
     }
 
-    private String catIndexesToString(int indexes[]) {
+    private String catIndexesToString(int indexes[], int from, int to) {
         StringBuffer sb = new StringBuffer("[");
-        for (int i : indexes) {
+        for (int k = from; k < to; k++) {
+            int i = indexes[k];
             if (sb.length() > 1) {
                 sb.append(", ");
             }
@@ -309,55 +443,230 @@ public class CategoryGraph implements Serializable {
     }
 
     private static final double DAMPING_FACTOR = 0.85;
-    protected double onePageRankIteration() {
-        double nextRanks [] = new double[catCosts.length];
-        Arrays.fill(nextRanks, (1.0 - DAMPING_FACTOR) / catCosts.length);
-        for (int i = 0; i < catParents.length; i++) {
-            int d = catParents[i].length;   // degree
-            double pr = catCosts[i];    // current page-rank
-            for (int j : catParents[i]) {
-                nextRanks[j] += DAMPING_FACTOR * pr / d;
-            }
+
+    /**
+     * Runs one page rank iteration in parallel over ranges of categories.
+     * Each category pulls rank from its children (the categories that list it as a parent),
+     * so every thread writes only its own range of the next rank array.
+     * @param exec Runs the ranges.
+     * @return The L1 distance between the old and new ranks.
+     * @throws RuntimeException If any range fails, since the ranks would be incomplete.
+     */
+    protected double onePageRankIteration(ExecutorService exec) {
+        final double ranks[] = catCosts;
+        final double nextRanks[] = (spareCosts != null && spareCosts.length == ranks.length)
+                ? spareCosts : new double[ranks.length];
+        final int numCats = cats.length;
+        final int chunkSize = Math.max(1000, numCats / (numThreads * 4) + 1);
+        final double base = (1.0 - DAMPING_FACTOR) / numCats;
+        int numChunks = (numCats + chunkSize - 1) / chunkSize;
+        List<Callable<Double>> chunks = new ArrayList<Callable<Double>>();
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            final int start = chunk * chunkSize;
+            final int end = Math.min(numCats, start + chunkSize);
+            chunks.add(new Callable<Double>() {
+                public Double call() {
+                    double diff = 0.0;
+                    for (int i = start; i < end; i++) {
+                        double pr = base;
+                        for (int k = catChildOffsets[i]; k < catChildOffsets[i+1]; k++) {
+                            int c = catChildIds[k];
+                            pr += DAMPING_FACTOR * ranks[c] / getNumParents(c);
+                        }
+                        nextRanks[i] = pr;
+                        diff += Math.abs(ranks[i] - pr);
+                    }
+                    return diff;
+                }
+            });
         }
         double diff = 0.0;
-        for (int i = 0; i < catParents.length; i++) {
-            diff += Math.abs(catCosts[i] - nextRanks[i]);
+        try {
+            for (Future<Double> f : exec.invokeAll(chunks)) {
+                diff += f.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("page rank iteration failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("page rank iteration interrupted", e);
         }
+        spareCosts = ranks;
         catCosts = nextRanks;
         return diff;
     }
 
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Page rank iterations stop when the L1 change in ranks is at most this value.
+     * @param pageRankTolerance
+     */
+    public void setPageRankTolerance(double pageRankTolerance) {
+        this.pageRankTolerance = pageRankTolerance;
+    }
+
     public int getCategoryIndex(Document d) {
         return getCategoryIndex(d.get("title"));
     }
 
     public int getCategoryIndex(String cat) {
-        cat = cleanTitle(cat);
-        if (catIndexes.containsKey(cat)) {
-            return catIndexes.get(cat);
-        } else {
-            return -1;
-        }
+        return catIndexes.get(cleanTitle(cat));
     }
 
     private void calculateTopLevelCategories() {
         LOG.info("marking top level categories off-limits.");
         int numSecondLevel = 0;
-        topLevelCategories = new HashSet<Integer>();
+        topLevelCategories = new TIntHashSet();
         for (String name : TOP_LEVEL_CATS) {
             int index = getCategoryIndex(name);
             if (index >= 0) {
                 topLevelCategories.add(index);
-                for (int ci : catChildren[index]) {
-//                    topLevelCategories.add(ci);
-                    numSecondLevel++;
-                }
+                numSecondLevel += getNumChildren(index);
             }
         }
         LOG.log(Level.INFO, "marked {0} top-level and {1} second-level categories.",
                 new Object[] {TOP_LEVEL_CATS.length, numSecondLevel} );
     }
 
+    /**
+     * Writes the graph in a binary format that read() can memory map.
+     * The file holds a header followed by length-prefixed arrays:
+     * the CSR offsets and ids for parents, children and pages, the sorted page wpIds
+     * with the CSR offsets and ids for page categories, the category costs,
+     * and the category names as offsets into a block of UTF-8 bytes.
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        int nameOffsets[] = new int[cats.length + 1];
+        byte names[][] = new byte[cats.length][];
+        for (int i = 0; i < cats.length; i++) {
+            names[i] = cats[i].getBytes(UTF8);
+            nameOffsets[i + 1] = nameOffsets[i] + names[i].length;
+        }
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(20);
+            header.putInt(FILE_HEADER).putInt(FILE_VERSION).putInt(cats.length).putDouble(minCost);
+            header.flip();
+            channel.write(header);
+            writeInts(channel, catParentOffsets);
+            writeInts(channel, catParentIds);
+            writeInts(channel, catChildOffsets);
+            writeInts(channel, catChildIds);
+            writeInts(channel, catPageOffsets);
+            writeInts(channel, catPageIds);
+            writeInts(channel, pageWpIds);
+            writeInts(channel, pageCatOffsets);
+            writeInts(channel, pageCatIds);
+            writeDoubles(channel, catCosts);
+            writeInts(channel, nameOffsets);
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.putInt(nameOffsets[cats.length]).flip();
+            channel.write(buffer);
+            for (byte name[] : names) {
+                channel.write(ByteBuffer.wrap(name));
+            }
+        } finally {
+            channel.close();
+        }
+        LOG.info("wrote category graph with " + cats.length + " categories to " + file);
+    }
+
+    /**
+     * Reads a graph written by write().
+     * @param file
+     * @param helper The index the graph was built from.
+     * @return
+     * @throws IOException
+     */
+    public static CategoryGraph read(File file, IndexHelper helper) throws IOException {
+        CategoryGraph graph = new CategoryGraph(helper);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != FILE_HEADER) {
+                throw new IOException("invalid category graph header in " + file);
+            }
+            if (buffer.getInt() != FILE_VERSION) {
+                throw new IOException("unsupported category graph version in " + file);
+            }
+            int numCats = buffer.getInt();
+            graph.minCost = buffer.getDouble();
+            graph.catParentOffsets = readInts(buffer);
+            graph.catParentIds = readInts(buffer);
+            graph.catChildOffsets = readInts(buffer);
+            graph.catChildIds = readInts(buffer);
+            graph.catPageOffsets = readInts(buffer);
+            graph.catPageIds = readInts(buffer);
+            graph.pageWpIds = readInts(buffer);
+            graph.pageCatOffsets = readInts(buffer);
+            graph.pageCatIds = readInts(buffer);
+            graph.catCosts = readDoubles(buffer);
+            int nameOffsets[] = readInts(buffer);
+            byte names[] = new byte[buffer.getInt()];
+            buffer.get(names);
+            graph.cats = new String[numCats];
+            graph.catIndexes = new TObjectIntHashMap<String>(numCats * 2, 0.5f, -1);
+            for (int i = 0; i < numCats; i++) {
+                graph.cats[i] = new String(names, nameOffsets[i], nameOffsets[i + 1] - nameOffsets[i], UTF8);
+                graph.catIndexes.put(graph.cats[i], i);
+            }
+        } finally {
+            channel.close();
+        }
+        graph.calculateTopLevelCategories();
+        LOG.info("read category graph with " + graph.cats.length + " categories from " + file);
+        return graph;
+    }
+
+    private static void writeInts(FileChannel channel, int values[]) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * 64 * 1024);
+        buffer.putInt(values.length);
+        for (int v : values) {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                channel.write(buffer);
+                buffer.clear();
+            }
+            buffer.putInt(v);
+        }
+        buffer.flip();
+        channel.write(buffer);
+    }
+
+    private static void writeDoubles(FileChannel channel, double values[]) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 64 * 1024);
+        buffer.putInt(values.length);
+        for (double v : values) {
+            if (buffer.remaining() < 8) {
+                buffer.flip();
+                channel.write(buffer);
+                buffer.clear();
+            }
+            buffer.putDouble(v);
+        }
+        buffer.flip();
+        channel.write(buffer);
+    }
+
+    private static int[] readInts(ByteBuffer buffer) {
+        int values[] = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * values.length);
+        return values;
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer) {
+        double values[] = new double[buffer.getInt()];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + 8 * values.length);
+        return values;
+    }
+
     public static String [] TOP_LEVEL_CATS = {
             "Agriculture", "Applied Sciences", "Arts", "Belief", "Business", "Chronology", "Computers",
             "Culture", "Education", "Environment", "Geography", "Health", "History", "Humanities",
@@ -0,0 +1,150 @@
+package edu.macalester.wpsemsim.sim.category;
+
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrixWriter;
+import edu.macalester.wpsemsim.matrix.ValueConf;
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Precomputes category distance labels for every page.
+ * A page's label holds its closest ancestor categories and their upward distances,
+ * stored as a SparseMatrix row (row id is the page's wpId, columns are category
+ * indexes in increasing order, values are distances). The row MAX_LABELS_ROW records
+ * maxLabels in its only column, so that labels cannot be read with a different value.
+ *
+ * CategorySimilarity.setLabels() answers similarity queries with a merge join of two
+ * labels, falling back to a search when the labels are too short to be exact.
+ */
+public class CategoryLabelBuilder {
+    private static final Logger LOG = Logger.getLogger(CategoryLabelBuilder.class.getName());
+
+    public static final int DEFAULT_MAX_LABELS = 200;
+    public static final float DEFAULT_MAX_DISTANCE = 3.0f;
+    public static final int MAX_LABELS_ROW = -1;
+
+    private final CategoryGraph graph;
+    private int maxLabels = DEFAULT_MAX_LABELS;
+    private float maxDistance = DEFAULT_MAX_DISTANCE;
+
+    public CategoryLabelBuilder(CategoryGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Sets the number of categories kept for each page.
+     * The value is stored with the labels for CategorySimilarity.
+     * @param maxLabels
+     */
+    public void setMaxLabels(int maxLabels) {
+        this.maxLabels = maxLabels;
+    }
+
+    /**
+     * Categories further than this distance are not kept.
+     * Distances are packed into shorts over [0, maxDistance], so this also sets their precision.
+     * @param maxDistance
+     */
+    public void setMaxDistance(float maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Writes the labels of all pages with categories to path.
+     * @param path
+     * @param numThreads
+     * @throws IOException If the labels of any page failed; the matrix would be missing their rows.
+     */
+    public void build(File path, int numThreads) throws IOException {
+        final ValueConf vconf = new ValueConf(0.0f, maxDistance);
+        final SparseMatrixWriter writer = new SparseMatrixWriter(path, vconf);
+        final AtomicLong numCells = new AtomicLong();
+        final AtomicInteger numFailed = new AtomicInteger();
+        final AtomicReference<Exception> firstFailure = new AtomicReference<Exception>();
+
+        List<Integer> wpIds = new ArrayList<Integer>();
+        for (int wpId : graph.pageWpIds) {
+            wpIds.add(wpId);
+        }
+        try {
+            writer.writeRow(new SparseMatrixRow(vconf, MAX_LABELS_ROW, new int[] { maxLabels }, new float[] { 0.0f }));
+            ParallelForEach.loop(wpIds, numThreads, new Procedure<Integer>() {
+                public void call(Integer wpId) throws Exception {
+                    try {
+                        SparseMatrixRow row = buildLabel(vconf, wpId);
+                        writer.writeRow(row);
+                        numCells.addAndGet(row.getNumCols());
+                    } catch (Exception e) {
+                        // ParallelForEach only logs failures, so remember them for the caller
+                        numFailed.incrementAndGet();
+                        firstFailure.compareAndSet(null, e);
+                        throw e;
+                    }
+                }
+            }, 10000);
+        } finally {
+            writer.finish();
+        }
+        if (numFailed.get() > 0) {
+            throw new IOException("building labels failed for " + numFailed.get() +
+                    " of " + wpIds.size() + " pages", firstFailure.get());
+        }
+        LOG.info("wrote " + numCells.get() + " category labels to " + path);
+    }
+
+    private SparseMatrixRow buildLabel(ValueConf vconf, int wpId) {
+        CategoryBfs bfs = new CategoryBfs(graph, wpId, Integer.MAX_VALUE, null);
+        bfs.setAddPages(false);
+        bfs.setExploreChildren(false);
+
+        // pack category index and (non-negative) distance so sorting orders by category.
+        long packed[] = new long[maxLabels];
+        int n = 0;
+        while (n < maxLabels && bfs.hasMoreResults()) {
+            CategoryBfs.BfsVisited visited = bfs.step();
+            int catId = visited.cats.keys()[0];
+            float distance = (float) visited.cats.get(catId);
+            if (distance > maxDistance) {
+                break;
+            }
+            packed[n++] = ((long) catId << 32) | Float.floatToIntBits(distance);
+        }
+        bfs.release();
+
+        Arrays.sort(packed, 0, n);
+        int catIds[] = new int[n];
+        float distances[] = new float[n];
+        for (int i = 0; i < n; i++) {
+            catIds[i] = (int) (packed[i] >>> 32);
+            distances[i] = Float.intBitsToFloat((int) packed[i]);
+        }
+        return new SparseMatrixRow(vconf, wpId, catIds, distances);
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("usage: java " +
+                    CategoryLabelBuilder.class.getName() +
+                    " lucene-cat-index-dir output-matrix [num-threads]");
+            System.exit(1);
+        }
+        IndexHelper helper = new IndexHelper(new File(args[0]), true);
+        CategoryGraph graph = new CategoryGraph(helper);
+        graph.init();
+        int cores = (args.length == 3)
+                ? Integer.valueOf(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        new CategoryLabelBuilder(graph).build(new File(args[1]), cores);
+    }
+}
@@ -0,0 +1,327 @@
+package edu.macalester.wpsemsim.sim.category;
+
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrixWriter;
+import edu.macalester.wpsemsim.matrix.ValueConf;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.LruCache;
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Writes category mostSimilar results for many pages to a SparseMatrix.
+ *
+ * Every search starts by walking up from a page's categories, so a page's distance from
+ * a set of categories is the minimum of its distances from each category in the set.
+ * A bounded search is therefore run (and cached) once per start category, and the row of
+ * each page is a merge of the cached results of its categories. Pages with the same set
+ * of categories share a merged row. Categories with more than giantCategorySize pages
+ * contribute a fixed random sample of their pages instead of their first pages.
+ */
+public class CategoryMostSimilarWriter {
+    private static final Logger LOG = Logger.getLogger(CategoryMostSimilarWriter.class.getName());
+
+    public static final int DEFAULT_GIANT_CATEGORY_SIZE = 10000;
+    public static final int DEFAULT_SEARCH_CACHE_SIZE = 10000;
+
+    private final CategorySimilarity metric;
+    private final CategoryGraph graph;
+    private final ValueConf vconf;
+    private final SparseMatrixWriter writer;
+    private TIntSet validIds;
+    private int giantCategorySize = DEFAULT_GIANT_CATEGORY_SIZE;
+    private TIntObjectHashMap<int[]> sampledPages;
+    private LruCache<Integer, CategoryPages> searches = new LruCache<Integer, CategoryPages>(DEFAULT_SEARCH_CACHE_SIZE);
+    private AtomicLong numCells = new AtomicLong();
+
+    public CategoryMostSimilarWriter(CategorySimilarity metric, File outputFile) throws IOException {
+        this.metric = metric;
+        this.graph = metric.getGraph();
+        this.vconf = new ValueConf();
+        this.writer = new SparseMatrixWriter(outputFile, vconf);
+    }
+
+    public void setValidIds(TIntSet validIds) {
+        this.validIds = validIds;
+    }
+
+    /**
+     * Categories with more (valid) pages than this are sampled down to this size.
+     * @param giantCategorySize
+     */
+    public void setGiantCategorySize(int giantCategorySize) {
+        this.giantCategorySize = giantCategorySize;
+    }
+
+    /**
+     * Sets the maximum number of single category search results that are cached.
+     * @param n
+     */
+    public void setSearchCacheSize(int n) {
+        this.searches = new LruCache<Integer, CategoryPages>(n);
+    }
+
+    /**
+     * Writes the most similar pages for each page and finishes the matrix.
+     * @throws IOException If any page group failed; the matrix would be missing its rows.
+     */
+    public void writeSims(int wpIds[], int threads, final int maxSimsPerDoc) throws IOException {
+        final AtomicInteger numFailed = new AtomicInteger();
+        final AtomicReference<Exception> firstFailure = new AtomicReference<Exception>();
+        int numGroups;
+        try {
+            sampledPages = sampleGiantCategories();
+            Collection<PageGroup> groups = groupByCategories(wpIds);
+            numGroups = groups.size();
+            LOG.info("finding most similar for " + wpIds.length + " pages in " + numGroups + " category groups");
+            searches.clear();
+            ParallelForEach.loop(groups, threads, new Procedure<PageGroup>() {
+                public void call(PageGroup group) throws Exception {
+                    try {
+                        writeGroup(group, maxSimsPerDoc);
+                    } catch (Exception e) {
+                        // ParallelForEach only logs failures, so remember them for the caller
+                        numFailed.incrementAndGet();
+                        firstFailure.compareAndSet(null, e);
+                        throw e;
+                    }
+                }
+            }, 10000);
+        } finally {
+            writer.finish();
+        }
+        if (numFailed.get() > 0) {
+            throw new IOException("finding most similar failed for " + numFailed.get() +
+                    " of " + numGroups + " category groups", firstFailure.get());
+        }
+        LOG.info("wrote " + numCells.get() + " non-zero similarity cells; category searches: " + searches.getStats());
+    }
+
+    private void writeGroup(PageGroup group, int maxResults) throws IOException {
+        CategoryPages lists[] = new CategoryPages[group.cats.length];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = getSearch(group.cats[i], maxResults);
+        }
+
+        // k-way merge by increasing distance; a page's first occurrence is its minimum distance
+        TIntArrayList pages = new TIntArrayList();
+        TDoubleArrayList distances = new TDoubleArrayList();
+        TIntHashSet seen = new TIntHashSet();
+        int next[] = new int[lists.length];
+        while (pages.size() < maxResults) {
+            int best = -1;
+            for (int i = 0; i < lists.length; i++) {
+                if (next[i] < lists[i].pages.length
+                &&  (best < 0 || lists[i].distances[next[i]] < lists[best].distances[next[best]])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            int wpId = lists[best].pages[next[best]];
+            if (seen.add(wpId)) {
+                pages.add(wpId);
+                distances.add(lists[best].distances[next[best]]);
+            }
+            next[best]++;
+        }
+
+        // each member comes first at distance zero, followed by the shared results.
+        int size = (int) Math.min((long) pages.size() + 1, maxResults);
+        int ids[] = new int[size];
+        double dists[] = new double[size];
+        for (int wpId : group.members.toArray()) {
+            ids[0] = wpId;
+            dists[0] = 0.0;
+            int n = 1;
+            for (int i = 0; i < pages.size() && n < size; i++) {
+                if (pages.get(i) != wpId) {
+                    ids[n] = pages.get(i);
+                    dists[n] = distances.get(i);
+                    n++;
+                }
+            }
+            DocScoreList scores = metric.distancesToScores(ids, dists, n);
+            numCells.addAndGet(n);
+            writer.writeRow(new SparseMatrixRow(vconf, wpId, scores.getIds(), scores.getScoresAsFloat()));
+        }
+    }
+
+    /**
+     * Returns the pages closest to a single category, searching if they are not cached.
+     * At most maxResults pages are kept, which is enough for any merge: a list that runs
+     * out has already contributed maxResults distinct pages.
+     * @param catId
+     * @param maxResults
+     * @return
+     */
+    private CategoryPages getSearch(int catId, int maxResults) {
+        CategoryPages result = searches.get(catId);
+        if (result != null) {
+            return result;
+        }
+        // pages in discovery order, which is also increasing distance
+        TIntArrayList pages = new TIntArrayList();
+        TDoubleArrayList distances = new TDoubleArrayList();
+        TIntHashSet seen = new TIntHashSet();
+
+        CategoryBfs bfs = new CategoryBfs(graph, -1, new int[] { catId }, Integer.MAX_VALUE, null);
+        bfs.setAddPages(false);
+        try {
+            while (bfs.hasMoreResults() && pages.size() < maxResults) {
+                CategoryBfs.BfsVisited visited = bfs.step();
+                int c = visited.cats.keys()[0];
+                double distance = visited.cats.get(c);
+                int sample[] = sampledPages.get(c);
+                int n = (sample == null) ? graph.getNumPages(c) : sample.length;
+                for (int k = 0; k < n && pages.size() < maxResults; k++) {
+                    int wpId = (sample == null) ? graph.catPageIds[graph.catPageOffsets[c] + k] : sample[k];
+                    if (sample == null && validIds != null && !validIds.contains(wpId)) {
+                        continue;
+                    }
+                    if (seen.add(wpId)) {
+                        pages.add(wpId);
+                        distances.add(distance);
+                    }
+                }
+            }
+        } finally {
+            bfs.release();
+        }
+        result = new CategoryPages(pages.toArray(), distances.toArray());
+        searches.put(catId, result);
+        return result;
+    }
+
+    /**
+     * Groups pages by their (sorted, unique) category indexes.
+     * Pages missing from the index get empty rows, like CategorySimilarity.mostSimilar().
+     */
+    private Collection<PageGroup> groupByCategories(int wpIds[]) throws IOException {
+        Map<PageGroup, PageGroup> groups = new HashMap<PageGroup, PageGroup>();
+        for (int wpId : wpIds) {
+            if (!metric.isKnownPage(wpId)) {
+                writer.writeRow(new SparseMatrixRow(vconf, wpId, new int[0], new float[0]));
+                continue;
+            }
+            PageGroup key = new PageGroup(graph.getPageCategories(wpId));
+            PageGroup group = groups.get(key);
+            if (group == null) {
+                group = key;
+                groups.put(key, group);
+            }
+            group.members.add(wpId);
+        }
+        // groups that share categories are adjacent, so their searches are still cached
+        List<PageGroup> result = new ArrayList<PageGroup>(groups.values());
+        Collections.sort(result, new Comparator<PageGroup>() {
+            @Override
+            public int compare(PageGroup g1, PageGroup g2) {
+                for (int i = 0; i < g1.cats.length && i < g2.cats.length; i++) {
+                    if (g1.cats[i] != g2.cats[i]) {
+                        return (g1.cats[i] < g2.cats[i]) ? -1 : +1;
+                    }
+                }
+                return g1.cats.length - g2.cats.length;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Draws a reproducible random sample of the valid pages in each giant category.
+     * Samples keep the category's page order.
+     */
+    private TIntObjectHashMap<int[]> sampleGiantCategories() {
+        TIntObjectHashMap<int[]> samples = new TIntObjectHashMap<int[]>();
+        for (int c = 0; c < graph.getNumCategories(); c++) {
+            if (graph.getNumPages(c) <= giantCategorySize) {
+                continue;
+            }
+            TIntArrayList pages = new TIntArrayList();
+            for (int k = graph.catPageOffsets[c]; k < graph.catPageOffsets[c+1]; k++) {
+                int wpId = graph.catPageIds[k];
+                if (validIds == null || validIds.contains(wpId)) {
+                    pages.add(wpId);
+                }
+            }
+            if (pages.size() > giantCategorySize) {
+                Random random = new Random(c);
+                int sample[] = new int[giantCategorySize];
+                int indexes[] = new int[giantCategorySize];
+                for (int i = 0; i < pages.size(); i++) {    // reservoir sample of indexes
+                    if (i < giantCategorySize) {
+                        indexes[i] = i;
+                    } else {
+                        int j = random.nextInt(i + 1);
+                        if (j < giantCategorySize) {
+                            indexes[j] = i;
+                        }
+                    }
+                }
+                Arrays.sort(indexes);
+                for (int i = 0; i < giantCategorySize; i++) {
+                    sample[i] = pages.get(indexes[i]);
+                }
+                samples.put(c, sample);
+            } else {
+                samples.put(c, pages.toArray());
+            }
+        }
+        LOG.info("sampled pages of " + samples.size() + " giant categories");
+        return samples;
+    }
+
+    /**
+     * The pages found by a search from a single category, by increasing distance.
+     */
+    private static class CategoryPages {
+        final int pages[];
+        final double distances[];
+
+        CategoryPages(int pages[], double distances[]) {
+            this.pages = pages;
+            this.distances = distances;
+        }
+    }
+
+    private static class PageGroup {
+        final int cats[];
+        final TIntArrayList members = new TIntArrayList();
+
+        PageGroup(int cats[]) {
+            TIntHashSet unique = new TIntHashSet();
+            for (int c : cats) {
+                if (c >= 0) {
+                    unique.add(c);
+                }
+            }
+            this.cats = unique.toArray();
+            Arrays.sort(this.cats);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof PageGroup) && Arrays.equals(cats, ((PageGroup) o).cats);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(cats);
+        }
+    }
+}
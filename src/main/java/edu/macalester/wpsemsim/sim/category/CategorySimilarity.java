@@ -2,10 +2,11 @@ package edu.macalester.wpsemsim.sim.category;
 
 import edu.macalester.wpsemsim.concepts.ConceptMapper;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
 import edu.macalester.wpsemsim.sim.BaseSimilarityMetric;
 import edu.macalester.wpsemsim.utils.DocScoreList;
 import gnu.trove.set.TIntSet;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 
 import java.io.IOException;
@@ -17,6 +18,8 @@ public class CategorySimilarity extends BaseSimilarityMetric {
     private CategoryGraph graph;
     private IndexHelper helper;
     private DirectoryReader reader;
+    private SparseMatrix labels;
+    private int maxLabels;
 
     public CategorySimilarity(CategoryGraph graph, IndexHelper helper) {
         this(null, graph, helper);
@@ -30,6 +33,37 @@ public class CategorySimilarity extends BaseSimilarityMetric {
         setName("category-similarity");
     }
 
+    /**
+     * Uses precomputed category labels (see CategoryLabelBuilder) to answer similarity queries.
+     * The maximum label length is read from the labels.
+     * @param labels
+     * @throws IOException
+     */
+    public void setLabels(SparseMatrix labels) throws IOException {
+        SparseMatrixRow row = labels.getRow(CategoryLabelBuilder.MAX_LABELS_ROW);
+        if (row == null || row.getNumCols() != 1) {
+            throw new IllegalArgumentException("labels in " + labels.getPath() +
+                    " do not record their maximum length; rebuild them with CategoryLabelBuilder");
+        }
+        this.labels = labels;
+        this.maxLabels = row.getColIndex(0);
+    }
+
+    /**
+     * Like setLabels(labels), but also checks the maximum label length the caller expects.
+     * @param labels
+     * @param maxLabels The maximum label length used to build the labels.
+     * @throws IOException
+     */
+    public void setLabels(SparseMatrix labels, int maxLabels) throws IOException {
+        setLabels(labels);
+        if (this.maxLabels != maxLabels) {
+            this.labels = null;
+            throw new IllegalArgumentException("labels in " + labels.getPath() + " were built with maxLabels " +
+                    this.maxLabels + ", not " + maxLabels);
+        }
+    }
+
     public double distanceToScore(double distance) {
         return distanceToScore(graph, distance);
     }
@@ -45,16 +79,15 @@ public class CategorySimilarity extends BaseSimilarityMetric {
         if (hasCachedMostSimilar(wpId)) {
             return getCachedMostSimilar(wpId, maxResults, possibleWpIds);
         }
-        int luceneId = helper.wpIdToLuceneId(wpId);
-        if (luceneId < 0) {
+        if (!isKnownPage(wpId)) {
             LOG.info("unknown wpId: " + wpId);
             return new DocScoreList(0);
         }
-        Document doc = reader.document(luceneId);
-        CategoryBfs bfs = new CategoryBfs(graph, doc, maxResults, possibleWpIds);
+        CategoryBfs bfs = new CategoryBfs(graph, wpId, maxResults, possibleWpIds);
         while (bfs.hasMoreResults()) {
             bfs.step();
         }
+        bfs.release();
         DocScoreList results = new DocScoreList(bfs.getPageDistances().size());
         int i = 0;
         for (int pageId: bfs.getPageDistances().keys()) {
@@ -64,30 +97,107 @@ public class CategorySimilarity extends BaseSimilarityMetric {
     }
 
 
+    /**
+     * Converts page distances to a normalized list of most similar pages.
+     */
+    DocScoreList distancesToScores(int wpIds[], double distances[], int n) {
+        DocScoreList results = new DocScoreList(n);
+        for (int i = 0; i < n; i++) {
+            results.set(i, wpIds[i], distanceToScore(distances[i]));
+        }
+        return normalize(results);
+    }
+
+    /**
+     * Pages with categories are found in the graph; only pages without categories
+     * need a lookup in the index.
+     */
+    boolean isKnownPage(int wpId) {
+        return graph.getPageIndex(wpId) >= 0 || helper.wpIdToLuceneId(wpId) >= 0;
+    }
+
+    CategoryGraph getGraph() {
+        return graph;
+    }
+
     @Override
     public double similarity(int wpId1, int wpId2) throws IOException {
         if (wpId1 == wpId2) { return normalize(distanceToScore(0.0)); }     // hack
 
-        int id1 = helper.wpIdToLuceneId(wpId1);
-        int id2 = helper.wpIdToLuceneId(wpId2);
-        if (id1 < 0) {
+        if (!isKnownPage(wpId1)) {
             LOG.finest("unknown wpId: " + wpId1);
             return normalize(0.0);
         }
-        if (id2 < 0) {
+        if (!isKnownPage(wpId2)) {
             LOG.finest("unknown wpId: " + wpId2);
             return normalize(0.0);
         }
-        Document d1 = graph.reader.document(id1);
-        Document d2 = graph.reader.document(id2);
-
-        CategoryBfs bfs1 = new CategoryBfs(graph, d1, Integer.MAX_VALUE, null);
-        CategoryBfs bfs2 = new CategoryBfs(graph, d2, Integer.MAX_VALUE, null);
+        if (labels != null) {
+            double d = labelDistance(wpId1, wpId2);
+            if (!Double.isNaN(d)) {
+                return normalize(distanceToScore(d));
+            }
+        }
+        CategoryBfs bfs1 = new CategoryBfs(graph, wpId1, Integer.MAX_VALUE, null);
+        CategoryBfs bfs2 = new CategoryBfs(graph, wpId2, Integer.MAX_VALUE, null);
         bfs1.setAddPages(false);
         bfs1.setExploreChildren(false);
         bfs2.setAddPages(false);
         bfs2.setExploreChildren(false);
+        try {
+            return normalize(distanceToScore(shortestDistance(bfs1, bfs2)));
+        } finally {
+            bfs1.release();
+            bfs2.release();
+        }
+    }
+
+    /**
+     * Computes the shortest distance with a merge join of the two pages' labels.
+     * A category missing from a label is further than that label's radius, so the
+     * joined distance is exact if it is no more than the radii of both labels.
+     * @return The distance, or NaN if the labels cannot answer exactly.
+     */
+    private double labelDistance(int wpId1, int wpId2) throws IOException {
+        SparseMatrixRow row1 = labels.getRow(wpId1);
+        SparseMatrixRow row2 = labels.getRow(wpId2);
+        if (row1 == null || row2 == null) {
+            return Double.NaN;
+        }
+        double shortestDistance = Double.POSITIVE_INFINITY;
+        int i = 0, j = 0;
+        while (i < row1.getNumCols() && j < row2.getNumCols()) {
+            int c1 = row1.getColIndex(i);
+            int c2 = row2.getColIndex(j);
+            if (c1 < c2) {
+                i++;
+            } else if (c1 > c2) {
+                j++;
+            } else {
+                double d = row1.getColValue(i++) + row2.getColValue(j++)
+                        - graph.catCosts[c1];    // counted twice
+                shortestDistance = Math.min(d, shortestDistance);
+            }
+        }
+        if (shortestDistance <= labelRadius(row1) && shortestDistance <= labelRadius(row2)) {
+            return shortestDistance;
+        } else {
+            return Double.NaN;
+        }
+    }
+
+    private double labelRadius(SparseMatrixRow row) {
+        if (row.getNumCols() < maxLabels) {
+            return row.getValueConf().maxScore;
+        }
+        double radius = 0.0;
+        for (int i = 0; i < row.getNumCols(); i++) {
+            radius = Math.max(radius, row.getColValue(i));
+        }
+        return radius;
+    }
 
+    private double shortestDistance(CategoryBfs bfs1, CategoryBfs bfs2) {
         double shortestDistance = Double.POSITIVE_INFINITY;
         double maxDist1 = 0;
         double maxDist2 = 0;
@@ -123,6 +233,6 @@ public class CategorySimilarity extends BaseSimilarityMetric {
             }
         }
 
-        return normalize(distanceToScore(shortestDistance));
+        return shortestDistance;
     }
 }
@@ -103,6 +103,34 @@ public class EnsembleSimilarity extends BaseSimilarityMetric implements Similari
         }
     }
 
+    /**
+     * Scores the forward direction (wpId, candidate) with each component's batched
+     * similarities(), and the reverse direction with one similarity() call per candidate.
+     */
+    @Override
+    public double[] similarities(int wpId, int candidates[]) throws IOException {
+        double forward[][] = new double[components.size()][];
+        for (int i = 0; i < components.size(); i++) {
+            forward[i] = components.get(i).similarities(wpId, candidates);
+        }
+        double sims[] = new double[candidates.length];
+        for (int j = 0; j < candidates.length; j++) {
+            Example ex = Example.makeEmptyWithReverse();
+            for (int i = 0; i < components.size(); i++) {
+                SimilarityMetric m = components.get(i);
+                SimScore ss1 = new SimScore(i, forward[i][j]);
+                SimScore ss2 = new SimScore(i, m.similarity(candidates[j], wpId));
+                ex.add(ss1, ss2);
+            }
+            if (ex.getNumNotNan() >= minComponents) {
+                sims[j] = normalize(ensemble.predictSimilarity(ex, false));
+            } else {
+                sims[j] = Double.NaN;
+            }
+        }
+        return sims;
+    }
+
     private static final TimingAnalysis.Factory timerFactory = new TimingAnalysis.Factory("ensemble-sim");
 
     @Override
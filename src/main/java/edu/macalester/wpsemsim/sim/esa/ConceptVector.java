@@ -0,0 +1,138 @@
+package edu.macalester.wpsemsim.sim.esa;
+
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+
+import java.util.Arrays;
+
+/**
+ * An immutable ESA concept vector: parallel arrays of wikipedia ids and scores,
+ * sorted by increasing id. Ids are wikipedia ids rather than lucene ids, so vectors
+ * remain valid if the index is reopened.
+ */
+public final class ConceptVector {
+    public static final ConceptVector EMPTY = new ConceptVector(new int[0], new float[0]);
+
+    private final int ids[];
+    private final float scores[];
+    private final double norm;
+
+    private ConceptVector(int ids[], float scores[]) {
+        this.ids = ids;
+        this.scores = scores;
+        double sumSquares = 0.0;
+        for (float s : scores) {
+            sumSquares += s * s;
+        }
+        this.norm = Math.sqrt(sumSquares);
+    }
+
+    /**
+     * Creates a concept vector from unsorted parallel arrays.
+     * Scores for duplicate ids are summed, and ids less than zero are ignored.
+     * The first n entries of the arrays are used.
+     */
+    public static ConceptVector fromUnsorted(int ids[], float scores[], int n) {
+        // sort indexes by id by packing both into a long.
+        long packed[] = new long[n];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (ids[i] >= 0) {
+                packed[m++] = ((long) ids[i] << 32) | i;
+            }
+        }
+        Arrays.sort(packed, 0, m);
+        int sortedIds[] = new int[m];
+        float sortedScores[] = new float[m];
+        int k = 0;
+        for (int i = 0; i < m; i++) {
+            int id = (int) (packed[i] >>> 32);
+            float score = scores[(int) packed[i]];
+            if (k > 0 && sortedIds[k - 1] == id) {
+                sortedScores[k - 1] += score;
+            } else {
+                sortedIds[k] = id;
+                sortedScores[k] = score;
+                k++;
+            }
+        }
+        if (k < m) {
+            sortedIds = Arrays.copyOf(sortedIds, k);
+            sortedScores = Arrays.copyOf(sortedScores, k);
+        }
+        return new ConceptVector(sortedIds, sortedScores);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    public float getScore(int i) {
+        return scores[i];
+    }
+
+    /**
+     * @return The score for the id, or 0 if it is not in the vector.
+     */
+    public float getScoreForId(int id) {
+        int i = Arrays.binarySearch(ids, id);
+        return (i < 0) ? 0.0f : scores[i];
+    }
+
+    public double getNorm() {
+        return norm;
+    }
+
+    /**
+     * Computes the dot product with a merge join over the sorted ids.
+     */
+    public double dot(ConceptVector that) {
+        double sum = 0.0;
+        int i = 0, j = 0;
+        while (i < ids.length && j < that.ids.length) {
+            if (ids[i] < that.ids[j]) {
+                i++;
+            } else if (ids[i] > that.ids[j]) {
+                j++;
+            } else {
+                sum += scores[i++] * that.scores[j++];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return The cosine similarity, or NaN if either vector is empty.
+     */
+    public double cosine(ConceptVector that) {
+        if (norm == 0.0 || that.norm == 0.0) {
+            return Double.NaN;
+        }
+        return dot(that) / (norm * that.norm);
+    }
+
+    /**
+     * Selects the highest scoring concepts with a bounded heap.
+     * @param n
+     * @return The top concepts, sorted by decreasing score.
+     */
+    public DocScoreList getTop(int n) {
+        n = Math.min(n, ids.length);
+        if (n == 0) {
+            return new DocScoreList(0);
+        }
+        Leaderboard top = new Leaderboard(n);
+        for (int i = 0; i < ids.length; i++) {
+            top.tallyScore(ids[i], scores[i]);
+        }
+        return top.getTop();
+    }
+}
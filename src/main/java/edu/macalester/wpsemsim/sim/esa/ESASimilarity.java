@@ -3,13 +3,18 @@ package edu.macalester.wpsemsim.sim.esa;
 import edu.macalester.wpsemsim.concepts.ConceptMapper;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
 import edu.macalester.wpsemsim.lucene.Page;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
 import edu.macalester.wpsemsim.sim.BaseSimilarityMetric;
 import edu.macalester.wpsemsim.sim.SimilarityMetric;
 import edu.macalester.wpsemsim.sim.TextSimilarity;
+import edu.macalester.wpsemsim.sim.pairwise.PairwiseCosineSimilarity;
 import edu.macalester.wpsemsim.sim.pairwise.PairwiseSimilarityWriter;
-import edu.macalester.wpsemsim.sim.utils.SimUtils;
 import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+import edu.macalester.wpsemsim.utils.LruCache;
+import gnu.trove.iterator.TIntDoubleIterator;
 import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
 import gnu.trove.set.TIntSet;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.lang3.ArrayUtils;
@@ -36,6 +41,10 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
     public static final int DEFAULT_MAX_QUERY_TERMS = 100;
     public static final int DEFAULT_MIN_TERM_FREQ = 2;
     public static final int DEFAULT_MIN_DOC_FREQ = 2;
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 5000;
+    public static final int DEFAULT_PHRASE_CACHE_SIZE = 10000;
+    public static final int MAX_PHRASE_CONCEPTS = 5000;
+    private static final int MAX_FILTER_KEYS = 64;
 
     private int maxPercentage = DEFAULT_MAX_PERCENTAGE;
     private int maxQueryTerms = DEFAULT_MAX_QUERY_TERMS;
@@ -46,6 +55,12 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
     private IndexHelper textHelper;
     private DirectoryReader reader;
     private Analyzer analyzer = new ESAAnalyzer();
+    private LruCache<Integer, Query> queryCache = new LruCache<Integer, Query>(DEFAULT_QUERY_CACHE_SIZE);
+    private ESATermMatrix termMatrix = null;
+    private PairwiseCosineSimilarity vectorSimilarity = null;
+    private LruCache<PhraseKey, ConceptVector> phraseCache =
+            new LruCache<PhraseKey, ConceptVector>(DEFAULT_PHRASE_CACHE_SIZE);
+    private final Map<TIntSet, FilterKey> filterKeys = new IdentityHashMap<TIntSet, FilterKey>();
 
     public ESASimilarity(IndexHelper helper) {
         this(null, helper);
@@ -64,6 +79,28 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
         this.textHelper = textHelper;
     }
 
+    /**
+     * Sets the precomputed article concept vectors written by ESAVectorBuilder.
+     * Article similarities are then the cosine of the vectors, and no Lucene search
+     * is run for them at query time.
+     * @param vectors Concept vectors for each article.
+     * @param transpose Transpose of the vectors.
+     * @throws IOException
+     */
+    public void setVectorMatrices(SparseMatrix vectors, SparseMatrix transpose) throws IOException {
+        this.vectorSimilarity = new PairwiseCosineSimilarity(vectors, transpose);
+    }
+
+    /**
+     * Sets a precomputed term matrix that phrase concept vectors are assembled from.
+     * If it is null, phrases are run as Lucene queries against the ESA index.
+     * @param termMatrix
+     */
+    public void setTermMatrix(ESATermMatrix termMatrix) {
+        this.termMatrix = termMatrix;
+        phraseCache.clear();
+    }
+
     private MoreLikeThis getMoreLikeThis() {
         MoreLikeThis mlt = new MoreLikeThis(reader); // Pass the reader reader
         mlt.setMaxDocFreqPct(maxPercentage);
@@ -75,72 +112,182 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
         return mlt;
     }
 
+    /**
+     * Returns the MoreLikeThis query for a document in the ESA index, or built from
+     * its text in the text index. A document's query never changes, so queries are
+     * cached by wpId.
+     * @return The query, or null if the document appears in neither index.
+     */
+    private Query getMoreLikeThisQuery(int wpId) throws IOException {
+        Query query = queryCache.get(wpId);
+        if (query != null) {
+            return query;
+        }
+        MoreLikeThis mlt = getMoreLikeThis();
+        int luceneId = esaHelper.wpIdToLuceneId(wpId);
+        if (luceneId >= 0) {
+            query = mlt.like(luceneId);
+        } else if (textHelper != null && textHelper.wpIdToLuceneId(wpId) >= 0) {
+            Document d = textHelper.wpIdToLuceneDoc(wpId);
+            String text = d.get(Page.FIELD_TEXT);
+            query = mlt.like(new StringReader(text), Page.FIELD_TEXT);
+        } else {
+            return null;
+        }
+        queryCache.put(wpId, query);
+        return query;
+    }
+
     @Override
     public double similarity(String phrase1, String phrase2) throws IOException {
-        TIntDoubleHashMap scores1 = getConceptVector(phrase1, null);
-        TIntDoubleHashMap scores2 = getConceptVector(phrase2, null);
-        double sim = SimUtils.cosineSimilarity(scores1, scores2);
+        ConceptVector scores1 = getConceptVector(phrase1, null);
+        ConceptVector scores2 = getConceptVector(phrase2, null);
+        if (scores1 == null || scores2 == null) {
+            return Double.NaN;
+        }
+        double sim = scores1.cosine(scores2);
         //sim = 10 + Math.log(0.0001 + sim);
         return normalize(sim);
     }
 
-    private Map<String, TIntDoubleHashMap> phraseCache = new HashMap<String, TIntDoubleHashMap>();
-    public TIntDoubleHashMap getConceptVector(String phrase, TIntSet validIds) throws IOException {
-        synchronized (phraseCache) {
-            if (phraseCache.containsKey(phrase)) {
-                return phraseCache.get(phrase);
+    /**
+     * Returns the ESA concept vector for a phrase, restricted to validIds if it is not null.
+     * Vectors are cached by the phrase and the contents of the validIds set. The contents
+     * of a set are only read the first time it is passed, so a set that is modified
+     * afterwards must change size, or be passed as a new instance.
+     * @return The concept vector keyed by wpId, or null if the phrase could not be parsed.
+     */
+    public ConceptVector getConceptVector(String phrase, TIntSet validIds) throws IOException {
+        PhraseKey key = new PhraseKey(phrase, getFilterKey(validIds));
+        ConceptVector result = phraseCache.get(key);
+        if (result != null) {
+            return result;
+        }
+        int ids[];
+        float scores[];
+        if (termMatrix != null) {
+            DocScoreList concepts = getTermMatrixConcepts(phrase, validIds);
+            ids = concepts.getIds();
+            scores = concepts.getScoresAsFloat();
+        } else {
+            QueryParser parser = new QueryParser(Version.LUCENE_42, "text", analyzer);
+            TopDocs docs;
+            try {
+                docs = searcher.search(parser.parse(phrase), esaHelper.getWpIdFilter(validIds), MAX_PHRASE_CONCEPTS);
+            } catch (org.apache.lucene.queryparser.classic.ParseException e) {
+                LOG.log(Level.WARNING, "parsing of phrase " + phrase + " failed", e);
+                return null;
+            }
+            int luceneIdToWpIds[] = esaHelper.getLuceneIdToWpIds();
+            ids = new int[docs.scoreDocs.length];
+            scores = new float[docs.scoreDocs.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = luceneIdToWpIds[docs.scoreDocs[i].doc];
+                scores[i] = docs.scoreDocs[i].score;
             }
         }
-        QueryParser parser = new QueryParser(Version.LUCENE_42, "text", analyzer);
-        TopDocs docs = null;
-        try {
-            docs = searcher.search(parser.parse(phrase), esaHelper.getWpIdFilter(validIds), 5000);
-        } catch (org.apache.lucene.queryparser.classic.ParseException e) {
-            LOG.log(Level.WARNING, "parsing of phrase " + phrase + " failed", e);
+        result = ConceptVector.fromUnsorted(ids, scores, getPruneCutoff(scores));
+        phraseCache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Returns the content key of a filter, reusing the key computed for the same set
+     * instance unless the set's size has changed.
+     * @param validIds
+     * @return The key, or null if validIds is null.
+     */
+    private FilterKey getFilterKey(TIntSet validIds) {
+        if (validIds == null) {
             return null;
         }
-        pruneSimilar(docs);
-        TIntDoubleHashMap result = expandScores(docs.scoreDocs);
-        synchronized (phraseCache) {
-            phraseCache.put(phrase, result);
+        synchronized (filterKeys) {
+            FilterKey key = filterKeys.get(validIds);
+            if (key != null && key.ids.length == validIds.size()) {
+                return key;
+            }
         }
-        return result;
-//        System.out.println("top docs for " + phrase + " are:");
-//        for (int i = 0; i < 50 && i < docs.scoreDocs.length; i++) {
-//            ScoreDoc sd = docs.scoreDocs[i];
-//            Document d = reader.document(sd.doc);
-//
-//            System.out.println("\t" + sd.score + ": " +
-//                    d.get("title") + ", " + d.get("text").split("\\s+").length +
-//                    ", " + d.get("inlinks"));
-//        }
+        FilterKey key = new FilterKey(validIds);
+        synchronized (filterKeys) {
+            // only a few filters are in use at a time, so forgetting them all is cheap
+            if (filterKeys.size() >= MAX_FILTER_KEYS) {
+                filterKeys.clear();
+            }
+            filterKeys.put(validIds, key);
+        }
+        return key;
     }
 
-    private void pruneSimilar(TopDocs docs) throws IOException {
-        if (docs.scoreDocs.length == 0) {
-            return;
+    /**
+     * Assembles a phrase's concepts from the term matrix, sorted by decreasing score
+     * and limited to MAX_PHRASE_CONCEPTS like a search of the ESA index.
+     */
+    private DocScoreList getTermMatrixConcepts(String phrase, TIntSet validIds) throws IOException {
+        TIntDoubleHashMap vector = termMatrix.getConceptVector(analyzer, phrase, validIds);
+        if (vector.isEmpty()) {
+            return new DocScoreList(0);
+        }
+        Leaderboard top = new Leaderboard(Math.min(vector.size(), MAX_PHRASE_CONCEPTS));
+        for (TIntDoubleIterator iter = vector.iterator(); iter.hasNext();) {
+            iter.advance();
+            top.tallyScore(iter.key(), iter.value());
         }
-        int cutoff = docs.scoreDocs.length;
-        double threshold = 0.005 * docs.scoreDocs[0].score;
-        for (int i = 0, j = 100; j < docs.scoreDocs.length; i++, j++) {
-            float delta = docs.scoreDocs[i].score - docs.scoreDocs[j].score;
+        return top.getTop();
+    }
+
+    /**
+     * Finds where the scores flatten out, which is where results stop being meaningful.
+     * @param scores Scores sorted in decreasing order.
+     * @return The number of leading scores to keep.
+     */
+    private static int getPruneCutoff(float scores[]) {
+        if (scores.length == 0) {
+            return 0;
+        }
+        double threshold = 0.005 * scores[0];
+        for (int i = 0, j = 100; j < scores.length; i++, j++) {
+            float delta = scores[i] - scores[j];
             if (delta < threshold) {
-                cutoff = j;
-                break;
+                return j;
             }
         }
+        return scores.length;
+    }
+
+    private void pruneSimilar(TopDocs docs) throws IOException {
+        float scores[] = new float[docs.scoreDocs.length];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = docs.scoreDocs[i].score;
+        }
+        int cutoff = getPruneCutoff(scores);
         if (cutoff < docs.scoreDocs.length) {
 //            LOG.info("pruned results from " + docs.scoreDocs.length + " to " + cutoff);
             docs.scoreDocs = ArrayUtils.subarray(docs.scoreDocs, 0, cutoff);
         }
     }
 
-    private TIntDoubleHashMap expandScores(ScoreDoc scores[]) throws IOException {
-        TIntDoubleHashMap expanded = new TIntDoubleHashMap();
-        for (ScoreDoc sd : scores) {
-            expanded.adjustOrPutValue(sd.doc, sd.score, sd.score);
+    /**
+     * Computes an article's concept vector by running its MoreLikeThis query against
+     * the ESA index. Scores are raw (unnormalized) Lucene scores.
+     * @param wpId
+     * @param maxConcepts
+     * @return The concept vector, or null if the article is unknown.
+     * @throws IOException
+     */
+    public ConceptVector getConceptVector(int wpId, int maxConcepts) throws IOException {
+        Query query = getMoreLikeThisQuery(wpId);
+        if (query == null) {
+            return null;
+        }
+        TopDocs docs = searcher.search(query, maxConcepts);
+        int luceneIdToWpIds[] = esaHelper.getLuceneIdToWpIds();
+        int ids[] = new int[docs.scoreDocs.length];
+        float scores[] = new float[docs.scoreDocs.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = luceneIdToWpIds[docs.scoreDocs[i].doc];
+            scores[i] = docs.scoreDocs[i].score;
         }
-        return expanded;
+        return ConceptVector.fromUnsorted(ids, scores, getPruneCutoff(scores));
     }
 
     @Override
@@ -148,51 +295,38 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
         if (hasCachedMostSimilar(wpId)) {
             return getCachedMostSimilar(wpId, maxResults, validIds);
         }
-        MoreLikeThis mlt = getMoreLikeThis();
-        int luceneId = esaHelper.wpIdToLuceneId(wpId);
-        Query query;
-        if (luceneId >= 0) {
-            query = mlt.like(luceneId);
-        } else if (textHelper != null && textHelper.wpIdToLuceneId(wpId) >= 0) {
-            Document d = textHelper.wpIdToLuceneDoc(wpId);
-            String text = d.get(Page.FIELD_TEXT);
-            query = mlt.like(new StringReader(text), Page.FIELD_TEXT);
-        } else {
+        if (vectorSimilarity != null) {
+            return normalize(vectorSimilarity.mostSimilar(wpId, maxResults, validIds));
+        }
+        Query query = getMoreLikeThisQuery(wpId);
+        if (query == null) {
             return null;
         }
         TopDocs similarDocs = searcher.search(query, esaHelper.getWpIdFilter(validIds), maxResults);
         pruneSimilar(similarDocs);
+        int luceneIdToWpIds[] = esaHelper.getLuceneIdToWpIds();
         DocScoreList scores = new DocScoreList(similarDocs.scoreDocs.length);
         for (int i = 0; i < similarDocs.scoreDocs.length; i++) {
             ScoreDoc sd = similarDocs.scoreDocs[i];
-            scores.set(i,
-                    esaHelper.luceneIdToWpId(sd.doc),
-                    similarDocs.scoreDocs[i].score);
+            scores.set(i, luceneIdToWpIds[sd.doc], sd.score);
         }
         return normalize(scores);
     }
 
     @Override
     public DocScoreList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws IOException {
-        final TIntDoubleHashMap scores = getConceptVector(phrase, validIds);
-        Integer luceneIds[] = ArrayUtils.toObject(scores.keys());
-        Arrays.sort(luceneIds, new Comparator<Integer>() {
-            @Override
-            public int compare(Integer id1, Integer id2) {
-                return -1 * new Double(scores.get(id1)).compareTo(scores.get(id2));
-            }
-        });
-        DocScoreList result = new DocScoreList(Math.min(luceneIds.length, maxResults));
-        for (int i = 0; i < result.numDocs(); i++) {
-            result.set(i,
-                    esaHelper.luceneIdToWpId(luceneIds[i]),
-                    scores.get(luceneIds[i]));
-        }
-        return normalize(result);
+        ConceptVector scores = getConceptVector(phrase, validIds);
+        if (scores == null) {
+            return null;
+        }
+        return normalize(scores.getTop(maxResults));
     }
 
     @Override
     public double similarity(int wpId1, int wpId2) throws IOException {
+        if (vectorSimilarity != null) {
+            return normalize(vectorSimilarity.similarity(wpId1, wpId2));
+        }
         int doc1 = esaHelper.wpIdToLuceneId(wpId1);
         int doc2 = esaHelper.wpIdToLuceneId(wpId2);
 
@@ -200,8 +334,7 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
             return normalize(0.0);
         }
 
-        MoreLikeThis mlt = getMoreLikeThis();
-        TopDocs similarDocs = searcher.search(mlt.like(doc1), new FieldCacheTermsFilter("id", "" + wpId2), 1);
+        TopDocs similarDocs = searcher.search(getMoreLikeThisQuery(wpId1), new FieldCacheTermsFilter("id", "" + wpId2), 1);
         if (similarDocs.scoreDocs.length == 0) {
             return normalize(0);
         } else {
@@ -211,20 +344,163 @@ public class ESASimilarity extends BaseSimilarityMetric implements SimilarityMet
         }
     }
 
+    /**
+     * Runs the MoreLikeThis query for wpId once, filtered to all candidates,
+     * rather than running one search per candidate.
+     */
+    @Override
+    public double[] similarities(int wpId, int candidates[]) throws IOException {
+        if (vectorSimilarity != null) {
+            return super.similarities(wpId, candidates);
+        }
+        double sims[] = new double[candidates.length];
+        if (esaHelper.wpIdToLuceneId(wpId) < 0) {
+            Arrays.fill(sims, normalize(0.0));
+            return sims;
+        }
+        String ids[] = new String[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            ids[i] = "" + candidates[i];
+        }
+        TopDocs similarDocs = searcher.search(
+                getMoreLikeThisQuery(wpId),
+                new FieldCacheTermsFilter("id", ids),
+                Math.max(1, candidates.length));
+        TIntFloatHashMap scores = new TIntFloatHashMap();
+        for (ScoreDoc sd : similarDocs.scoreDocs) {
+            scores.put(sd.doc, sd.score);
+        }
+        for (int i = 0; i < candidates.length; i++) {
+            int doc2 = esaHelper.wpIdToLuceneId(candidates[i]);
+            if (doc2 >= 0 && scores.containsKey(doc2)) {
+                sims[i] = normalize(scores.get(doc2));
+            } else {
+                sims[i] = normalize(0.0);
+            }
+        }
+        return sims;
+    }
+
     public void setMaxPercentage(int maxPercentage) {
         this.maxPercentage = maxPercentage;
+        queryCache.clear();
     }
 
     public void setMaxQueryTerms(int maxQueryTerms) {
         this.maxQueryTerms = maxQueryTerms;
+        queryCache.clear();
     }
 
     public void setMinTermFreq(int minTermFreq) {
         this.minTermFreq = minTermFreq;
+        queryCache.clear();
     }
 
     public void setMinDocFreq(int minDocFreq) {
         this.minDocFreq = minDocFreq;
+        queryCache.clear();
+    }
+
+    /**
+     * Sets the maximum number of MoreLikeThis queries that are cached.
+     * @param n
+     */
+    public void setQueryCacheSize(int n) {
+        this.queryCache = new LruCache<Integer, Query>(n);
+    }
+
+    public LruCache<Integer, Query> getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Sets the maximum number of phrase concept vectors that are cached.
+     * @param n
+     */
+    public void setPhraseCacheSize(int n) {
+        this.phraseCache = new LruCache<PhraseKey, ConceptVector>(n);
+    }
+
+    public LruCache<PhraseKey, ConceptVector> getPhraseCache() {
+        return phraseCache;
+    }
+
+    /**
+     * Cache key for a phrase's concept vector and the contents of its filter.
+     */
+    public static final class PhraseKey {
+        private final String phrase;
+        private final FilterKey filter;     // null if there is no filter
+
+        PhraseKey(String phrase, FilterKey filter) {
+            this.phrase = phrase;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PhraseKey)) {
+                return false;
+            }
+            PhraseKey that = (PhraseKey) o;
+            if (!phrase.equals(that.phrase)) {
+                return false;
+            }
+            return (filter == null) ? (that.filter == null) : filter.equals(that.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * phrase.hashCode() + ((filter == null) ? 0 : filter.hashCode());
+        }
+    }
+
+    /**
+     * A sorted copy of a filter's ids. Keys are compared by a fingerprint first,
+     * and by their ids only when the fingerprints match.
+     */
+    static final class FilterKey {
+        private final int ids[];
+        private final long fingerprint;
+
+        FilterKey(TIntSet validIds) {
+            this.ids = validIds.toArray();
+            Arrays.sort(ids);
+            this.fingerprint = fingerprint(ids);
+        }
+
+        /**
+         * An order independent 64 bit hash of a set's contents.
+         */
+        static long fingerprint(int ids[]) {
+            long sum = 0;
+            for (int id : ids) {
+                // mix each id (murmur3 finalizer) so that sums of similar ids do not collide
+                long h = id * 0x9E3779B97F4A7C15L;
+                h ^= (h >>> 33);
+                h *= 0xff51afd7ed558ccdL;
+                h ^= (h >>> 33);
+                sum += h;
+            }
+            return sum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof FilterKey)) {
+                return false;
+            }
+            FilterKey that = (FilterKey) o;
+            return fingerprint == that.fingerprint && Arrays.equals(ids, that.ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (fingerprint ^ (fingerprint >>> 32));
+        }
     }
 
     public static class LuceneSimilarity extends DefaultSimilarity {
@@ -0,0 +1,113 @@
+package edu.macalester.wpsemsim.sim.esa;
+
+import edu.macalester.wpsemsim.lucene.Page;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.search.similarities.TFIDFSimilarity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.logging.Logger;
+
+/**
+ * A precomputed ESA inverted index built by ESATermMatrixBuilder.
+ * A phrase's concept vector is the sum of the rows for its analyzed terms,
+ * so no Lucene search is needed at query time.
+ */
+public class ESATermMatrix {
+    private static final Logger LOG = Logger.getLogger(ESATermMatrix.class.getName());
+
+    private final SparseMatrix matrix;
+    private final TObjectIntHashMap<String> termIds = new TObjectIntHashMap<String>(10, 0.5f, -1);
+    private final float scales[];
+    private final TFIDFSimilarity similarity = new ESASimilarity.LuceneSimilarity();
+
+    public ESATermMatrix(File path) throws IOException {
+        this.matrix = new SparseMatrix(path);
+        this.scales = new float[matrix.getNumRows()];
+        LineIterator lines = FileUtils.lineIterator(getTermsPath(path), "UTF-8");
+        try {
+            int rowId = 0;
+            while (lines.hasNext()) {
+                String tokens[] = lines.nextLine().split("\t");
+                termIds.put(tokens[0], rowId);
+                scales[rowId] = Float.valueOf(tokens[1]);
+                rowId++;
+            }
+        } finally {
+            LineIterator.closeQuietly(lines);
+        }
+        LOG.info("loaded concept vectors for " + termIds.size() + " terms from " + path);
+    }
+
+    /**
+     * @param path Path to the term matrix.
+     * @return Path to the term dictionary that accompanies the matrix.
+     */
+    public static File getTermsPath(File path) {
+        return new File(path.getPath() + ".terms");
+    }
+
+    /**
+     * Builds the concept vector for a phrase by merging the rows for its analyzed terms.
+     * Like a boolean query over the terms, each concept's sum is scaled by the coord
+     * factor: the fraction of the phrase's terms that the concept contains.
+     * @param analyzer The analyzer used to build the ESA index.
+     * @param phrase
+     * @param validIds If not null, only concepts in this set are included.
+     * @return Map from wpIds to scores.
+     * @throws IOException
+     */
+    public TIntDoubleHashMap getConceptVector(Analyzer analyzer, String phrase, TIntSet validIds) throws IOException {
+        TIntDoubleHashMap vector = new TIntDoubleHashMap();
+        TIntIntHashMap overlaps = new TIntIntHashMap();
+        int numTerms = 0;
+        TokenStream stream = analyzer.tokenStream(Page.FIELD_TEXT, new StringReader(phrase));
+        CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+        try {
+            stream.reset();
+            while (stream.incrementToken()) {
+                numTerms++;     // unknown terms still count towards coord, as they do in a query
+                int rowId = termIds.get(termAttr.toString());
+                if (rowId < 0) {
+                    continue;
+                }
+                SparseMatrixRow row = matrix.getRow(rowId);
+                float scale = scales[rowId];
+                for (int i = 0; i < row.getNumCols(); i++) {
+                    int wpId = row.getColIndex(i);
+                    if (validIds == null || validIds.contains(wpId)) {
+                        double s = scale * row.getColValue(i);
+                        vector.adjustOrPutValue(wpId, s, s);
+                        overlaps.adjustOrPutValue(wpId, 1, 1);
+                    }
+                }
+            }
+            stream.end();
+        } finally {
+            stream.close();
+        }
+        if (numTerms > 1) {
+            for (TIntDoubleIterator iter = vector.iterator(); iter.hasNext();) {
+                iter.advance();
+                iter.setValue(iter.value() * similarity.coord(overlaps.get(iter.key()), numTerms));
+            }
+        }
+        return vector;
+    }
+
+    public int getNumTerms() {
+        return termIds.size();
+    }
+}
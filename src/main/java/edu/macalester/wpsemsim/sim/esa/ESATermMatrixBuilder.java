@@ -0,0 +1,169 @@
+package edu.macalester.wpsemsim.sim.esa;
+
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.lucene.Page;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrixWriter;
+import edu.macalester.wpsemsim.matrix.ValueConf;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.Leaderboard;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.similarities.TFIDFSimilarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Precomputes the ESA inverted index: for every term in the ESA index, the top-k
+ * concepts (articles) containing it, weighted as Lucene would score them.
+ *
+ * The weight of a term in a concept is tf * idf^2 * norm using ESASimilarity.LuceneSimilarity,
+ * which is the term's contribution to the score of a query containing it, before the
+ * per-document coord factor (applied by ESATermMatrix when terms are combined) and the
+ * query-wide queryNorm (which does not change the ranking). Columns are wikipedia ids.
+ *
+ * Each row is scaled so its largest weight is 1.0, which keeps the packed values precise.
+ * The scales are written with the terms to a dictionary file; see ESATermMatrix.
+ */
+public class ESATermMatrixBuilder {
+    private static final Logger LOG = Logger.getLogger(ESATermMatrixBuilder.class.getName());
+
+    public static final int DEFAULT_MAX_CONCEPTS = 1000;
+    public static final int DEFAULT_MIN_DOC_FREQ = 1;
+
+    private final IndexHelper helper;
+    private final String field;
+    private final TFIDFSimilarity similarity = new ESASimilarity.LuceneSimilarity();
+    private int maxConcepts = DEFAULT_MAX_CONCEPTS;
+    private int minDocFreq = DEFAULT_MIN_DOC_FREQ;
+
+    public ESATermMatrixBuilder(IndexHelper helper) {
+        this(helper, Page.FIELD_TEXT);
+    }
+
+    public ESATermMatrixBuilder(IndexHelper helper, String field) {
+        this.helper = helper;
+        this.field = field;
+    }
+
+    public void setMaxConcepts(int maxConcepts) {
+        this.maxConcepts = maxConcepts;
+    }
+
+    public void setMinDocFreq(int minDocFreq) {
+        this.minDocFreq = minDocFreq;
+    }
+
+    /**
+     * Writes the term matrix to path and the term dictionary to ESATermMatrix.getTermsPath(path).
+     * @param path
+     * @throws IOException
+     */
+    public void build(File path) throws IOException {
+        DirectoryReader reader = helper.getReader();
+        int numDocs = reader.numDocs();
+        int wpIds[] = helper.getLuceneIdToWpIds();
+        float norms[] = readNorms(reader);
+
+        ValueConf vconf = new ValueConf(0.0f, 1.0f);
+        SparseMatrixWriter writer = new SparseMatrixWriter(path, vconf);
+        BufferedWriter terms = null;
+        int numRows = 0;
+        try {
+            terms = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(ESATermMatrix.getTermsPath(path)), "UTF-8"));
+            Terms fieldTerms = MultiFields.getTerms(reader, field);
+            if (fieldTerms != null) {
+                Bits liveDocs = MultiFields.getLiveDocs(reader);
+                TermsEnum te = fieldTerms.iterator(null);
+                DocsEnum de = null;
+                BytesRef ref;
+                while ((ref = te.next()) != null) {
+                    int docFreq = te.docFreq();
+                    String term = ref.utf8ToString();
+                    if (docFreq < minDocFreq || term.indexOf('\t') >= 0 || term.indexOf('\n') >= 0) {
+                        continue;
+                    }
+                    float idf = similarity.idf(docFreq, numDocs);
+                    Leaderboard top = new Leaderboard(Math.min(maxConcepts, docFreq));
+                    de = te.docs(liveDocs, de, DocsEnum.FLAG_FREQS);
+                    for (int doc = de.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = de.nextDoc()) {
+                        if (wpIds[doc] >= 0) {
+                            top.tallyScore(wpIds[doc], similarity.tf(de.freq()) * idf * idf * norms[doc]);
+                        }
+                    }
+                    DocScoreList concepts = top.getTop();
+                    if (concepts.numDocs() == 0 || concepts.getScore(0) <= 0.0) {
+                        continue;
+                    }
+                    float scale = (float) concepts.getScore(0);
+                    float values[] = new float[concepts.numDocs()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = (float) (concepts.getScore(i) / scale);
+                    }
+                    writer.writeRow(new SparseMatrixRow(vconf, numRows, concepts.getIds(), values));
+                    terms.write(term + "\t" + scale + "\n");
+                    if (++numRows % 100000 == 0) {
+                        LOG.info("wrote concept vectors for " + numRows + " terms");
+                    }
+                }
+            }
+        } finally {
+            try {
+                if (terms != null) {
+                    terms.close();
+                }
+            } finally {
+                writer.finish();
+            }
+        }
+        LOG.info("wrote concept vectors for " + numRows + " terms to " + path);
+    }
+
+    /**
+     * Decodes the length norms (including document and field boosts) for every lucene id.
+     */
+    private float[] readNorms(DirectoryReader reader) throws IOException {
+        float norms[] = new float[reader.maxDoc()];
+        Arrays.fill(norms, 1.0f);
+        for (AtomicReaderContext context : reader.leaves()) {
+            NumericDocValues values = context.reader().getNormValues(field);
+            if (values == null) {
+                continue;
+            }
+            for (int i = 0; i < context.reader().maxDoc(); i++) {
+                norms[context.docBase + i] = similarity.decodeNormValue((byte) values.get(i));
+            }
+        }
+        return norms;
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length != 2 && args.length != 3) {
+            System.err.println("usage: java " +
+                    ESATermMatrixBuilder.class.getName() +
+                    " lucene-esa-index-dir output-matrix [max-concepts-per-term]");
+            System.exit(1);
+        }
+        IndexHelper helper = new IndexHelper(new File(args[0]), true);
+        ESATermMatrixBuilder builder = new ESATermMatrixBuilder(helper);
+        if (args.length == 3) {
+            builder.setMaxConcepts(Integer.valueOf(args[2]));
+        }
+        builder.build(new File(args[1]));
+    }
+}
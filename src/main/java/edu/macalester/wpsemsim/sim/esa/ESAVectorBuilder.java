@@ -0,0 +1,133 @@
+package edu.macalester.wpsemsim.sim.esa;
+
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.SparseMatrixTransposer;
+import edu.macalester.wpsemsim.matrix.SparseMatrixWriter;
+import edu.macalester.wpsemsim.matrix.ValueConf;
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Computes the ESA concept vector of every article in parallel and writes them
+ * to a SparseMatrix (one row per article, columns are concept wpIds) and its transpose.
+ * ESASimilarity.setVectorMatrices() serves article similarities from the result.
+ *
+ * Vectors are pruned like ESASimilarity's searches. Each row is scaled so its largest
+ * value is 1.0; this keeps packed values precise and does not change cosines.
+ */
+public class ESAVectorBuilder {
+    private static final Logger LOG = Logger.getLogger(ESAVectorBuilder.class.getName());
+
+    public static final int DEFAULT_MAX_CONCEPTS = 1000;
+    public static final int DEFAULT_TRANSPOSE_BUFFER_MB = 500;
+
+    private final ESASimilarity esa;
+    private int maxConcepts = DEFAULT_MAX_CONCEPTS;
+    private int transposeBufferMb = DEFAULT_TRANSPOSE_BUFFER_MB;
+
+    public ESAVectorBuilder(ESASimilarity esa) {
+        this.esa = esa;
+    }
+
+    public void setMaxConcepts(int maxConcepts) {
+        this.maxConcepts = maxConcepts;
+    }
+
+    public void setTransposeBufferMb(int transposeBufferMb) {
+        this.transposeBufferMb = transposeBufferMb;
+    }
+
+    /**
+     * Writes the concept vectors for the articles to matrixPath, and their transpose to transposePath.
+     * @param wpIds
+     * @param matrixPath
+     * @param transposePath
+     * @param numThreads
+     * @throws IOException If any article's vector could not be built; the matrix would be incomplete.
+     */
+    public void build(int wpIds[], File matrixPath, File transposePath, int numThreads) throws IOException {
+        final ValueConf vconf = new ValueConf(0.0f, 1.0f);
+        final SparseMatrixWriter writer = new SparseMatrixWriter(matrixPath, vconf);
+        final AtomicInteger numRows = new AtomicInteger();
+        final AtomicLong numCells = new AtomicLong();
+        final AtomicInteger numFailed = new AtomicInteger();
+        final AtomicReference<Exception> firstFailure = new AtomicReference<Exception>();
+
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int id : wpIds) { ids.add(id); }
+        try {
+            ParallelForEach.loop(ids, numThreads, new Procedure<Integer>() {
+                public void call(Integer wpId) throws Exception {
+                    try {
+                        writeVector(writer, vconf, wpId, numRows, numCells);
+                    } catch (Exception e) {
+                        // ParallelForEach only logs failures, so remember them for the caller
+                        numFailed.incrementAndGet();
+                        firstFailure.compareAndSet(null, e);
+                        throw e;
+                    }
+                }
+            }, 10000);
+        } finally {
+            writer.finish();
+        }
+        if (numFailed.get() > 0) {
+            throw new IOException("building concept vectors failed for " + numFailed.get() +
+                    " of " + wpIds.length + " articles", firstFailure.get());
+        }
+        LOG.info("wrote " + numCells.get() + " cells in " + numRows.get() + " concept vectors to " + matrixPath);
+
+        SparseMatrix matrix = new SparseMatrix(matrixPath);
+        new SparseMatrixTransposer(matrix, transposePath, transposeBufferMb).transpose();
+    }
+
+    private void writeVector(SparseMatrixWriter writer, ValueConf vconf, int wpId,
+                             AtomicInteger numRows, AtomicLong numCells) throws IOException {
+        ConceptVector vector = esa.getConceptVector(wpId, maxConcepts);
+        if (vector == null || vector.isEmpty()) {
+            return;
+        }
+        float max = 0.0f;
+        for (int i = 0; i < vector.size(); i++) {
+            max = Math.max(max, vector.getScore(i));
+        }
+        int colIds[] = new int[vector.size()];
+        float colVals[] = new float[vector.size()];
+        for (int i = 0; i < vector.size(); i++) {
+            colIds[i] = vector.getId(i);
+            colVals[i] = (max > 0) ? vector.getScore(i) / max : 0.0f;
+        }
+        writer.writeRow(new SparseMatrixRow(vconf, wpId, colIds, colVals));
+        numRows.incrementAndGet();
+        numCells.addAndGet(colIds.length);
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length != 4 && args.length != 5) {
+            System.err.println("usage: java " +
+                    ESAVectorBuilder.class.getName() +
+                    " lucene-esa-index-dir lucene-text-index-dir output-matrix output-transpose [num-threads]");
+            System.exit(1);
+        }
+        IndexHelper esaHelper = new IndexHelper(new File(args[0]), true);
+        IndexHelper textHelper = new IndexHelper(new File(args[1]), true);
+        ESASimilarity esa = new ESASimilarity(esaHelper);
+        esa.setTextHelper(textHelper);
+        int cores = (args.length == 5)
+                ? Integer.valueOf(args[4])
+                : Runtime.getRuntime().availableProcessors();
+        ESAVectorBuilder builder = new ESAVectorBuilder(esa);
+        builder.build(textHelper.getWpIds(), new File(args[2]), new File(args[3]), cores);
+    }
+}
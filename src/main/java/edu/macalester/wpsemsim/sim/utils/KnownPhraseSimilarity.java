@@ -90,6 +90,15 @@ public class KnownPhraseSimilarity implements SimilarityMetric {
         return 0.5 * sim1 + 0.5 * sim2;
     }
 
+    @Override
+    public double[] similarities(int clientId, int candidateClientIds[]) throws IOException {
+        double sims[] = new double[candidateClientIds.length];
+        for (int i = 0; i < candidateClientIds.length; i++) {
+            sims[i] = similarity(clientId, candidateClientIds[i]);
+        }
+        return sims;
+    }
+
     public float[][] cosimilarity(int clientRowIds[], int clientColIds[]) throws IOException {
         float cosimilarity[][] = new float[clientRowIds.length][clientColIds.length];
 
@@ -139,16 +139,30 @@ public class PhraseAnalyzer {
      */
     private void buildSimilarity(final SimilarityMetric metric) throws IOException {
         LOG.info("building similarity");
+        final int wpIds[] = new int[phrases.size()];
+        for (int j = 0; j < phrases.size(); j++) {
+            wpIds[j] = phrases.get(j).wpId;
+        }
         ParallelForEach.loop(phrases, env.getNumThreads(), new Procedure<PhraseInfo>() {
             @Override
             public void call(PhraseInfo pi) throws Exception {
-                pi.pairwiseSims = new float[phrases.size()];
-                for (int j = 0; j < phrases.size(); j++) {
-                    try {
-                        pi.pairwiseSims[j] = (float) metric.similarity(pi.wpId, phrases.get(j).wpId);
-                        //pi.pairwiseSims[j] = (float) cosine(pi.mostSimilar, phrases.get(j).mostSimilar);
-                    } catch (Exception e) {
-                        LOG.log(Level.SEVERE, "similarity failed:", e);
+                pi.pairwiseSims = new float[wpIds.length];
+                double sims[] = null;
+                try {
+                    sims = metric.similarities(pi.wpId, wpIds);
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "batched similarity failed for " + pi.phrase + ", scoring candidates one at a time:", e);
+                }
+                for (int j = 0; j < wpIds.length; j++) {
+                    if (sims != null) {
+                        pi.pairwiseSims[j] = (float) sims[j];
+                    } else {
+                        // a failing candidate only loses its own score
+                        try {
+                            pi.pairwiseSims[j] = (float) metric.similarity(pi.wpId, wpIds[j]);
+                        } catch (Exception e) {
+                            LOG.log(Level.SEVERE, "similarity failed:", e);
+                        }
                     }
                 }
             }
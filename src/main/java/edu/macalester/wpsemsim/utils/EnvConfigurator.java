@@ -18,6 +18,7 @@ import edu.macalester.wpsemsim.sim.ensemble.LinearEnsemble;
 import edu.macalester.wpsemsim.sim.ensemble.SvmEnsemble;
 import edu.macalester.wpsemsim.sim.esa.ESAAnalyzer;
 import edu.macalester.wpsemsim.sim.esa.ESASimilarity;
+import edu.macalester.wpsemsim.sim.esa.ESATermMatrix;
 import edu.macalester.wpsemsim.sim.pairwise.PairwiseCosineSimilarity;
 import edu.macalester.wpsemsim.topics.SvdSimilarity;
 import gnu.trove.set.TIntSet;
@@ -350,6 +351,8 @@ public class EnvConfigurator {
             metric = createEsaSimilarity(name);
         } else if (type.equals("links")) {
             metric = createLinkSimilarity(name);
+        } else if (type.equals("milnewitten")) {
+            metric = createMilneWittenSimilarity(name);
         } else if (type.equals("pairwise")) {
             metric = createPairwiseSimilarity(name, readModel);
         } else if (type.equals("svd")) {
@@ -466,10 +469,21 @@ public class EnvConfigurator {
         if (params.containsKey("minDocFreq")) {
             lmetric.setMinDocFreq(requireInteger(params, "minDocFreq"));
         }
+        if (params.containsKey("queryCacheSize")) {
+            lmetric.setQueryCacheSize(requireInteger(params, "queryCacheSize"));
+        }
         metric = lmetric;
         return metric;
     }
 
+    private SimilarityMetric createMilneWittenSimilarity(String name) throws ConfigurationException, IOException {
+        JSONObject params = configuration.getMetric(name);
+        return new MilneWittenInLinkSimilarity(
+                loadMainMapper(),
+                loadIndex(requireString(params, "lucene")),
+                env.getMainIndex());
+    }
+
     private SimilarityMetric createEsaSimilarity(String name) throws ConfigurationException, IOException {
         JSONObject params = configuration.getMetric(name);
         ESASimilarity metric = new ESASimilarity(
@@ -478,6 +492,20 @@ public class EnvConfigurator {
         if (params.containsKey("textLucene")) {
             metric.setTextHelper(loadIndex(requireString(params, "textLucene")));
         }
+        if (params.containsKey("queryCacheSize")) {
+            metric.setQueryCacheSize(requireInteger(params, "queryCacheSize"));
+        }
+        if (params.containsKey("phraseCacheSize")) {
+            metric.setPhraseCacheSize(requireInteger(params, "phraseCacheSize"));
+        }
+        if (params.containsKey("termMatrix")) {
+            metric.setTermMatrix(new ESATermMatrix(new File(requireString(params, "termMatrix"))));
+        }
+        if (params.containsKey("vectorMatrix")) {
+            metric.setVectorMatrices(
+                    new SparseMatrix(requireFile(params, "vectorMatrix")),
+                    new SparseMatrix(requireFile(params, "vectorTranspose")));
+        }
         return metric;
     }
 
@@ -499,6 +527,9 @@ public class EnvConfigurator {
         if (params.containsKey("useInternalMapper")) {
             ((TextSimilarity)metric).setUseInternalMapper(requireBoolean(params, "useInternalMapper"));
         }
+        if (params.containsKey("queryCacheSize")) {
+            ((TextSimilarity)metric).setQueryCacheSize(requireInteger(params, "queryCacheSize"));
+        }
         return metric;
     }
 
@@ -510,15 +541,28 @@ public class EnvConfigurator {
         CategoryGraph graph = null;
         if (cachedGraph.exists() && cachedGraph.isFile() && cachedGraph.lastModified() > helper.getLastModified()) {
             LOG.info("reading cached category graph from " + cachedGraph);
-            graph = (CategoryGraph) Utils.readObject(cachedGraph);
-            graph.setHelper(helper);
-        } else {
+            try {
+                graph = CategoryGraph.read(cachedGraph, helper);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "rebuilding unreadable category graph cache " + cachedGraph, e);
+            }
+        }
+        if (graph == null) {
             graph = new CategoryGraph(helper);
             graph.init();
             LOG.info("writing category graph cache to " + cachedGraph);
-            Utils.writeObject(cachedGraph, graph);
+            graph.write(cachedGraph);
+        }
+        CategorySimilarity csim = new CategorySimilarity(loadMainMapper(), graph, helper);
+        if (params.containsKey("labels")) {
+            SparseMatrix labels = new SparseMatrix(requireFile(params, "labels"));
+            if (params.containsKey("maxLabels")) {
+                csim.setLabels(labels, requireInteger(params, "maxLabels"));
+            } else {
+                csim.setLabels(labels);
+            }
         }
-        metric = new CategorySimilarity(loadMainMapper(), graph, helper);
+        metric = csim;
         return metric;
     }
 
@@ -1,11 +1,193 @@
 package edu.macalester.wpsemsim.utils;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Created with IntelliJ IDEA.
- * User: shilad
- * Date: 12/7/12
- * Time: 10:32 AM
- * To change this template use File | Settings | File Templates.
+ * A thread-safe cache that holds at most (roughly) maxSize entries.
+ *
+ * Keys are spread across lock-striped segments so that threads rarely contend.
+ * Each segment uses segmented LRU eviction: new entries enter a probationary
+ * region, and entries that are hit again are promoted to a protected region.
+ * When a segment is full, the least recently used probationary entry is evicted,
+ * so a burst of one-off keys cannot flush frequently used entries.
+ *
+ * Hit, miss, and eviction counts are tracked for monitoring.
  */
-public class LruCache {
+public class LruCache<K, V> {
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 64;
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final int maxSize;
+    private final Segment<K, V> segments[];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxSize) {
+        this.maxSize = maxSize;
+        int n = 1;
+        while (n * 2 <= MAX_SEGMENTS && maxSize / (n * 2) >= MIN_SEGMENT_SIZE) {
+            n *= 2;
+        }
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[n];
+        for (int i = 0; i < n; i++) {
+            // distribute the remainder so capacities sum to maxSize
+            int capacity = maxSize / n + (i < maxSize % n ? 1 : 0);
+            segments[i] = new Segment<K, V>(capacity);
+        }
+    }
+
+    /**
+     * @param key
+     * @return The value associated with the key, or null if it is not cached.
+     */
+    public V get(K key) {
+        V value = segmentFor(key).get(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null values cannot be cached");
+        }
+        evictions.addAndGet(segmentFor(key).put(key, value));
+    }
+
+    public void clear() {
+        for (Segment<K, V> s : segments) {
+            s.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getNumHits() {
+        return hits.get();
+    }
+
+    public long getNumMisses() {
+        return misses.get();
+    }
+
+    public long getNumEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The fraction of get() calls that were hits, or NaN if there have been none.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? Double.NaN : (1.0 * h / total);
+    }
+
+    /**
+     * @return A one line summary of the cache's size and statistics.
+     */
+    public String getStats() {
+        return "size=" + size() + " of " + maxSize +
+                ", hits=" + getNumHits() +
+                ", misses=" + getNumMisses() +
+                ", evictions=" + getNumEvictions() +
+                ", hitRate=" + getHitRate();
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);    // spread high bits into the low bits used for the index
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * A single segmented LRU. Both regions are access ordered LinkedHashMaps,
+     * so their iteration order begins with the least recently used entry.
+     */
+    private static final class Segment<K, V> {
+        private final int capacity;
+        private final int protectedCapacity;
+        private final LinkedHashMap<K, V> probation = new LinkedHashMap<K, V>(16, 0.75f, true);
+        private final LinkedHashMap<K, V> protect = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (int) (capacity * PROTECTED_FRACTION);
+        }
+
+        synchronized V get(K key) {
+            V value = protect.get(key);
+            if (value != null) {
+                return value;
+            }
+            value = probation.remove(key);
+            if (value != null) {
+                promote(key, value);
+            }
+            return value;
+        }
+
+        /**
+         * @return The number of entries evicted.
+         */
+        synchronized int put(K key, V value) {
+            if (protect.containsKey(key)) {
+                protect.put(key, value);
+                return 0;
+            }
+            probation.put(key, value);
+            int evicted = 0;
+            while (probation.size() + protect.size() > capacity) {
+                LinkedHashMap<K, V> victims = probation.isEmpty() ? protect : probation;
+                removeEldest(victims);
+                evicted++;
+            }
+            return evicted;
+        }
+
+        private void promote(K key, V value) {
+            protect.put(key, value);
+            // demote the least recently used protected entries back to probation
+            while (protect.size() > protectedCapacity && !protect.isEmpty()) {
+                Map.Entry<K, V> eldest = protect.entrySet().iterator().next();
+                protect.remove(eldest.getKey());
+                probation.put(eldest.getKey(), eldest.getValue());
+            }
+        }
+
+        private void removeEldest(LinkedHashMap<K, V> map) {
+            Iterator<K> iter = map.keySet().iterator();
+            iter.next();
+            iter.remove();
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protect.clear();
+        }
+
+        synchronized int size() {
+            return probation.size() + protect.size();
+        }
+    }
 }
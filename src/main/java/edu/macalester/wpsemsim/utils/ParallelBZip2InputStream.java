@@ -0,0 +1,308 @@
+package edu.macalester.wpsemsim.utils;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Decompresses a bzip2 file (or several concatenated bzip2 streams) on a pool of threads.
+ *
+ * A scanner thread reads the compressed input and looks for the 48-bit magic numbers that
+ * start each block and end each stream. Every block is copied into a synthetic single-block
+ * stream (block bits realigned after a "BZh9" header, followed by an end-of-stream marker
+ * whose combined CRC equals the block CRC) and decoded by a worker. Decoded blocks are
+ * returned in their original order, and at most a few blocks per thread are buffered.
+ *
+ * A magic number can in principle occur by chance inside compressed data (about once per
+ * 2^48 bits); the affected block then fails its CRC check and reading throws an IOException.
+ *
+ * Streams can share one pool of decoders, so that many streams read at once by different
+ * threads use no more decoding threads in total than there are processors.
+ */
+public class ParallelBZip2InputStream extends InputStream {
+    private static final Logger LOG = Logger.getLogger(ParallelBZip2InputStream.class.getName());
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = (1L << 48) - 1;
+    private static final byte[] STREAM_HEADER = { 'B', 'Z', 'h', '9' };
+
+    private static ExecutorService sharedDecoders = null;
+
+    private final InputStream input;
+    private final ExecutorService decoders;
+    private final boolean ownsDecoders;
+    private final BlockingQueue<Future<byte[]>> blocks;
+    private final Thread scanner;
+    private volatile boolean closed = false;
+
+    private byte current[] = new byte[0];
+    private int currentPos = 0;
+    private boolean eof = false;
+
+    /**
+     * Decodes with the decoders shared by all streams, one per processor.
+     * @param input The compressed input.
+     */
+    public ParallelBZip2InputStream(InputStream input) {
+        this(input, getSharedDecoders(), Runtime.getRuntime().availableProcessors() * 2, false);
+    }
+
+    /**
+     * Decodes with a pool of decoders of its own, which is shut down when the stream is closed.
+     * @param input The compressed input.
+     * @param numThreads Number of decoding threads.
+     */
+    public ParallelBZip2InputStream(InputStream input, int numThreads) {
+        this(input, newDecoders(numThreads), numThreads * 2, true);
+    }
+
+    private ParallelBZip2InputStream(InputStream input, ExecutorService decoders, int maxBlocks, boolean ownsDecoders) {
+        this.input = input;
+        this.decoders = decoders;
+        this.ownsDecoders = ownsDecoders;
+        this.blocks = new ArrayBlockingQueue<Future<byte[]>>(maxBlocks);
+        this.scanner = new Thread(new Runnable() {
+            public void run() {
+                scan();
+            }
+        }, "bzip2-scanner");
+        this.scanner.setDaemon(true);
+        this.scanner.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPos);
+        System.arraycopy(current, currentPos, b, off, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        scanner.interrupt();
+        if (ownsDecoders) {
+            decoders.shutdownNow();
+        } else {
+            // the pool is shared, so only abandon this stream's blocks
+            for (Future<byte[]> block : blocks) {
+                block.cancel(true);
+            }
+        }
+        input.close();
+    }
+
+    private static synchronized ExecutorService getSharedDecoders() {
+        if (sharedDecoders == null) {
+            sharedDecoders = newDecoders(Runtime.getRuntime().availableProcessors());
+        }
+        return sharedDecoders;
+    }
+
+    private static ExecutorService newDecoders(int numThreads) {
+        return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bzip2-decoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Makes sure that decoded bytes are available.
+     * @return false at the end of the input.
+     */
+    private boolean fill() throws IOException {
+        while (currentPos >= current.length) {
+            if (eof) {
+                return false;
+            }
+            try {
+                byte block[] = blocks.take().get();
+                if (block == null) {
+                    eof = true;
+                    if (ownsDecoders) {
+                        decoders.shutdown();
+                    }
+                } else {
+                    current = block;
+                    currentPos = 0;
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException("decoding bzip2 block failed", e.getCause());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the compressed input, submitting each block for decoding in order.
+     * A null block marks the end of the input, and a failed block ends it with an error.
+     */
+    private void scan() {
+        try {
+            byte buffer[] = new byte[64 * 1024];
+            byte raw[] = new byte[1024 * 1024]; // input bytes starting at rawStart
+            int rawLength = 0;
+            long rawStart = 0;      // byte offset of raw[0] in the input
+            long bitPos = 0;        // number of bits read
+            long blockStart = -1;   // bit offset of the current block's magic, or -1
+            long window = 0;        // the last 48 bits
+
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (rawLength == raw.length) {
+                        raw = Arrays.copyOf(raw, raw.length * 2);
+                    }
+                    int v = buffer[i] & 0xff;
+                    raw[rawLength++] = (byte) v;
+                    for (int k = 7; k >= 0; k--) {
+                        window = ((window << 1) | ((v >>> k) & 1)) & MAGIC_MASK;
+                        bitPos++;
+                        if (bitPos < 48 || (window != BLOCK_MAGIC && window != EOS_MAGIC)) {
+                            continue;
+                        }
+                        long magicStart = bitPos - 48;
+                        if (blockStart >= 0) {
+                            submit(raw, blockStart - 8 * rawStart, magicStart - 8 * rawStart);
+                        }
+                        blockStart = (window == BLOCK_MAGIC) ? magicStart : -1;
+                        if (blockStart >= 0) {
+                            // discard input before the new block
+                            int drop = (int) (blockStart / 8 - rawStart);
+                            System.arraycopy(raw, drop, raw, 0, rawLength - drop);
+                            rawLength -= drop;
+                            rawStart += drop;
+                        }
+                    }
+                }
+                if (blockStart < 0 && rawLength > 8) {
+                    // between blocks; keep enough input for a magic that straddles reads.
+                    System.arraycopy(raw, rawLength - 8, raw, 0, 8);
+                    rawStart += rawLength - 8;
+                    rawLength = 8;
+                }
+            }
+            if (blockStart >= 0) {
+                LOG.warning("bzip2 input ended inside a block");
+                submit(raw, blockStart - 8 * rawStart, 8L * rawLength);
+            }
+            blocks.put(completed(null, null));
+        } catch (Exception e) {
+            if (closed || e instanceof InterruptedException) {
+                return;     // the reader has gone away
+            }
+            try {
+                // wait for room, since the reader is still blocked in fill() until this arrives.
+                // close() interrupts the wait if the reader gives up first.
+                blocks.put(completed(null, e));
+            } catch (InterruptedException ie) {
+                // closed
+            }
+        }
+    }
+
+    private static Future<byte[]> completed(final byte result[], final Exception error) {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                if (error != null) {
+                    throw error;
+                }
+                return result;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    /**
+     * Wraps the bits of one block in a single block stream and queues it for decoding.
+     * @param raw Input bytes
+     * @param from Bit offset in raw of the block magic.
+     * @param to Bit offset in raw where the block ends.
+     */
+    private void submit(byte raw[], long from, long to) throws InterruptedException {
+        int numBits = (int) (to - from);
+        final byte stream[] = new byte[STREAM_HEADER.length + (numBits + 48 + 32 + 7) / 8];
+        System.arraycopy(STREAM_HEADER, 0, stream, 0, STREAM_HEADER.length);
+        int pos = 8 * STREAM_HEADER.length;
+        for (int i = 0; i < numBits; i += 8) {
+            int bits = Math.min(8, numBits - i);
+            pos = writeBits(stream, pos, readBits(raw, from + i, bits), bits);
+        }
+        long blockCrc = 0;
+        for (int i = 0; i < 32; i += 8) {
+            blockCrc = (blockCrc << 8) | readBits(raw, from + 48 + i, 8);
+        }
+        for (int i = 40; i >= 0; i -= 8) {
+            pos = writeBits(stream, pos, (int) (EOS_MAGIC >>> i) & 0xff, 8);
+        }
+        for (int i = 24; i >= 0; i -= 8) {
+            pos = writeBits(stream, pos, (int) (blockCrc >>> i) & 0xff, 8);
+        }
+        blocks.put(decoders.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return IOUtils.toByteArray(new BZip2CompressorInputStream(new ByteArrayInputStream(stream), false));
+            }
+        }));
+    }
+
+    /**
+     * @return Up to 8 bits starting at bit offset pos, as the low bits of an int.
+     */
+    private static int readBits(byte bytes[], long pos, int n) {
+        int i = (int) (pos >>> 3);
+        int shift = (int) (pos & 7);
+        int v = (bytes[i] & 0xff) << 8;
+        if (shift + n > 8) {
+            v |= bytes[i + 1] & 0xff;
+        }
+        return (v >>> (16 - shift - n)) & ((1 << n) - 1);
+    }
+
+    /**
+     * Writes the low n (at most 8) bits of v at bit offset pos.
+     * @return The bit offset following the written bits.
+     */
+    private static int writeBits(byte bytes[], int pos, int v, int n) {
+        int i = pos >>> 3;
+        int shift = pos & 7;
+        int aligned = (v << (16 - shift - n)) & 0xffff;
+        bytes[i] |= (byte) (aligned >>> 8);
+        if (shift + n > 8) {
+            bytes[i + 1] |= (byte) aligned;
+        }
+        return pos + n;
+    }
+}
@@ -0,0 +1,244 @@
+package edu.macalester.wpsemsim.utils;
+
+import java.util.Arrays;
+
+/**
+ * Allocation-free set operations over sorted arrays of unique ints.
+ *
+ * Each kernel walks both arrays with a linear merge when they are of similar
+ * size, and switches to galloping (exponential + binary) search of the larger
+ * array when one is much smaller than the other.
+ */
+public class SortedIntArrays {
+
+    /**
+     * If the larger array is at least this many times longer than the smaller,
+     * gallop through the larger array instead of merging.
+     */
+    public static final int GALLOP_RATIO = 8;
+
+    /**
+     * Returns the number of elements in both A and B.
+     * @param A sorted, unique ints.
+     * @param B sorted, unique ints.
+     * @return
+     */
+    public static int intersectionSize(int A[], int B[]) {
+        if (A.length > B.length) {
+            int tmp[] = A; A = B; B = tmp;
+        }
+        if (A.length == 0) {
+            return 0;
+        }
+        int n = 0;
+        if (B.length / A.length >= GALLOP_RATIO) {
+            int j = 0;
+            for (int i = 0; i < A.length && j < B.length; i++) {
+                j = gallop(B, j, A[i]);
+                if (j < B.length && B[j] == A[i]) {
+                    n++;
+                    j++;
+                }
+            }
+        } else {
+            int i = 0, j = 0;
+            while (i < A.length && j < B.length) {
+                if (A[i] < B[j]) {
+                    i++;
+                } else if (A[i] > B[j]) {
+                    j++;
+                } else {
+                    n++; i++; j++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of elements in A, B, or both.
+     * @param A sorted, unique ints.
+     * @param B sorted, unique ints.
+     * @return
+     */
+    public static int unionSize(int A[], int B[]) {
+        return A.length + B.length - intersectionSize(A, B);
+    }
+
+    /**
+     * Returns the sum of weightsA[i] for every A[i] that also appears in B.
+     * @param A sorted, unique ints.
+     * @param weightsA weights parallel to A.
+     * @param B sorted, unique ints.
+     * @return
+     */
+    public static double weightedIntersectionSum(int A[], double weightsA[], int B[]) {
+        assert(A.length == weightsA.length);
+        if (A.length == 0 || B.length == 0) {
+            return 0.0;
+        }
+        double sum = 0.0;
+        if (B.length / A.length >= GALLOP_RATIO) {
+            // gallop through B for each element of A
+            int j = 0;
+            for (int i = 0; i < A.length && j < B.length; i++) {
+                j = gallop(B, j, A[i]);
+                if (j < B.length && B[j] == A[i]) {
+                    sum += weightsA[i];
+                    j++;
+                }
+            }
+        } else if (A.length / B.length >= GALLOP_RATIO) {
+            // gallop through A for each element of B
+            int i = 0;
+            for (int j = 0; j < B.length && i < A.length; j++) {
+                i = gallop(A, i, B[j]);
+                if (i < A.length && A[i] == B[j]) {
+                    sum += weightsA[i];
+                    i++;
+                }
+            }
+        } else {
+            int i = 0, j = 0;
+            while (i < A.length && j < B.length) {
+                if (A[i] < B[j]) {
+                    i++;
+                } else if (A[i] > B[j]) {
+                    j++;
+                } else {
+                    sum += weightsA[i];
+                    i++; j++;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the sum of weights[x] for every x in both A and B.
+     * @param A sorted, unique ints that are valid indexes into weights.
+     * @param B sorted, unique ints.
+     * @param weights weights indexed by element value.
+     * @return
+     */
+    public static double weightedIntersectionSum(int A[], int B[], float weights[]) {
+        if (A.length > B.length) {
+            int tmp[] = A; A = B; B = tmp;
+        }
+        if (A.length == 0) {
+            return 0.0;
+        }
+        double sum = 0.0;
+        if (B.length / A.length >= GALLOP_RATIO) {
+            int j = 0;
+            for (int i = 0; i < A.length && j < B.length; i++) {
+                j = gallop(B, j, A[i]);
+                if (j < B.length && B[j] == A[i]) {
+                    sum += weights[A[i]];
+                    j++;
+                }
+            }
+        } else {
+            int i = 0, j = 0;
+            while (i < A.length && j < B.length) {
+                if (A[i] < B[j]) {
+                    i++;
+                } else if (A[i] > B[j]) {
+                    j++;
+                } else {
+                    sum += weights[A[i]];
+                    i++; j++;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the sum of weights[x] for every x in both A and B.
+     * @param A sorted, unique ints that are valid indexes into weights.
+     * @param B sorted, unique ints.
+     * @param weights weights indexed by element value.
+     * @return
+     */
+    public static double weightedIntersectionSum(int A[], int B[], double weights[]) {
+        if (A.length > B.length) {
+            int tmp[] = A; A = B; B = tmp;
+        }
+        if (A.length == 0) {
+            return 0.0;
+        }
+        double sum = 0.0;
+        if (B.length / A.length >= GALLOP_RATIO) {
+            int j = 0;
+            for (int i = 0; i < A.length && j < B.length; i++) {
+                j = gallop(B, j, A[i]);
+                if (j < B.length && B[j] == A[i]) {
+                    sum += weights[A[i]];
+                    j++;
+                }
+            }
+        } else {
+            int i = 0, j = 0;
+            while (i < A.length && j < B.length) {
+                if (A[i] < B[j]) {
+                    i++;
+                } else if (A[i] > B[j]) {
+                    j++;
+                } else {
+                    sum += weights[A[i]];
+                    i++; j++;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Sorts X and removes duplicates.
+     * @param X
+     * @return A sorted array of unique values (X itself if it had no duplicates).
+     */
+    public static int[] sortUnique(int X[]) {
+        Arrays.sort(X);
+        int n = 0;
+        for (int i = 0; i < X.length; i++) {
+            if (n == 0 || X[n-1] != X[i]) {
+                X[n++] = X[i];
+            }
+        }
+        return (n == X.length) ? X : Arrays.copyOf(X, n);
+    }
+
+    /**
+     * Returns the first index i >= from such that X[i] >= key, or X.length if none exists.
+     * Probes X[from+1], X[from+2], X[from+4], ... and then binary searches the last gap.
+     */
+    static int gallop(int X[], int from, int key) {
+        if (from >= X.length || X[from] >= key) {
+            return from;
+        }
+        // invariant: X[lo] < key
+        int lo = from;
+        int step = 1;
+        int hi = from + step;
+        while (hi < X.length && X[hi] < key) {
+            lo = hi;
+            step <<= 1;
+            hi = from + step;
+        }
+        if (hi > X.length) {
+            hi = X.length;
+        }
+        // binary search for first element >= key in (lo, hi]
+        while (lo + 1 < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (X[mid] < key) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return hi;
+    }
+}
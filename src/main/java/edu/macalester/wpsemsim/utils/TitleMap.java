@@ -86,7 +86,17 @@ public class TitleMap<V> {
     }
 
     public long titleHash(String string) {
-        string = string.replaceAll("_", " ");
+        return titleHash(string, foldCase);
+    }
+
+    /**
+     * Hashes a title, treating underscores as spaces.
+     * @param string
+     * @param foldCase If true, the hash ignores case.
+     * @return
+     */
+    public static long titleHash(String string, boolean foldCase) {
+        string = string.replace('_', ' ');
         if (foldCase)
             string = string.toLowerCase();
         long h = 1125899906842597L; // prime
@@ -1,12 +1,16 @@
 package edu.macalester.wpsemsim.lucene;
 
 import edu.macalester.wpsemsim.utils.TestUtils;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -34,6 +38,81 @@ public class PageReaderTest {
         assertEquals(last.getId(), 340);
     }
 
+    @Test
+    public void testSplitXml() throws IOException {
+        List<PageReader> readers = PageReader.split(TestUtils.TEST_INPUT_FILE, 4, 1);
+        assertEquals(4, readers.size());
+        assertEquals(getIds(new PageReader(TestUtils.TEST_INPUT_FILE)), getIds(readers));
+    }
+
+    @Test
+    public void testSplitMultistream() throws IOException {
+        File dir = File.createTempFile("multistream", "");
+        dir.delete();
+        dir.mkdirs();
+        File dump = new File(dir, "wp-multistream.xml.bz2");
+        File index = new File(dir, "wp-multistream-index.txt.bz2");
+
+        // compress the header, every ten pages, and the footer as separate bzip2 streams
+        byte xml[] = FileUtils.readFileToByteArray(TestUtils.TEST_INPUT_FILE);
+        String text = new String(xml, "ISO-8859-1");    // one char per byte
+        List<Integer> pageStarts = new ArrayList<Integer>();
+        for (int i = text.indexOf("<page>"); i >= 0; i = text.indexOf("<page>", i + 1)) {
+            pageStarts.add(i);
+        }
+        List<Integer> bounds = new ArrayList<Integer>();
+        bounds.add(0);
+        for (int i = 0; i < pageStarts.size(); i += 10) {
+            bounds.add(pageStarts.get(i));
+        }
+        bounds.add(text.lastIndexOf("</mediawiki>"));
+        bounds.add(xml.length);
+
+        FileOutputStream out = new FileOutputStream(dump);
+        StringBuilder indexText = new StringBuilder();
+        long offset = 0;
+        for (int i = 0; i + 1 < bounds.size(); i++) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            BZip2CompressorOutputStream bz = new BZip2CompressorOutputStream(compressed);
+            bz.write(xml, bounds.get(i), bounds.get(i + 1) - bounds.get(i));
+            bz.close();
+            if (i > 0 && i + 2 < bounds.size()) {
+                indexText.append(offset + ":" + i + ":page group " + i + "\n");
+            }
+            out.write(compressed.toByteArray());
+            offset += compressed.size();
+        }
+        out.close();
+        BZip2CompressorOutputStream bz = new BZip2CompressorOutputStream(new FileOutputStream(index));
+        bz.write(indexText.toString().getBytes("UTF-8"));
+        bz.close();
+
+        try {
+            assertEquals(index, PageReader.getMultistreamIndex(dump));
+            List<Integer> expected = getIds(new PageReader(TestUtils.TEST_INPUT_FILE));
+            assertEquals(expected, getIds(new PageReader(dump)));
+            List<PageReader> readers = PageReader.split(dump, 3, 1);
+            assertEquals(3, readers.size());
+            assertEquals(expected, getIds(readers));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private List<Integer> getIds(PageReader ... readers) {
+        return getIds(Arrays.asList(readers));
+    }
+
+    private List<Integer> getIds(List<PageReader> readers) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (PageReader reader : readers) {
+            for (Page p : reader) {
+                ids.add(p.getId());
+            }
+        }
+        return ids;
+    }
+
     @Test
     public void testDisambiguation() throws IOException {
 
@@ -2,14 +2,28 @@ package edu.macalester.wpsemsim.lucene;
 
 import edu.macalester.wpsemsim.utils.ConfigurationFile;
 import edu.macalester.wpsemsim.utils.TestUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestIndexBuilder {
 
@@ -40,4 +54,143 @@ public class TestIndexBuilder {
         dir.delete();
     }
 
+    @Test(timeout = 60000)
+    public void testPipelineAbortsWhenStageDies() throws InterruptedException {
+        PageInfo info = new PageInfo();
+        IndexGenerator dying = new IndexGenerator(info, Page.FIELD_TEXT) {
+            @Override
+            protected void storeLuceneDoc(Document d) {
+                throw new OutOfMemoryError("simulated");    // not caught per document
+            }
+        };
+        IndexPipeline pipeline = new IndexPipeline(info, Arrays.asList(dying));
+        pipeline.setQueueSize(1);
+        pipeline.setThreads(1, 1, 2);
+        try {
+            pipeline.run(Arrays.asList(new PageReader(TestUtils.TEST_INPUT_FILE)));
+            fail("the pipeline should fail when its write stage dies");
+        } catch (IOException e) {
+            assertEquals("simulated", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testTwoPhaseBuildMatches() throws IOException, InterruptedException, ConfigurationFile.ConfigurationException {
+        File threePass = TestUtils.buildIndex();
+
+        ConfigurationFile conf = TestUtils.makeSandboxConfiguration();
+        File twoPhase = new File(ConfigurationFile.requireString(conf.get("indexes"), "outputDir"));
+        twoPhase.mkdirs();
+        AllIndexBuilder builder = new AllIndexBuilder(conf, null);
+        builder.setTwoPhase(true);
+        builder.write(2, 100);
+
+        for (IndexGenerator g : builder.getGenerators()) {
+            assertEquals(g.getName(), storedFields(threePass, g.getName()), storedFields(twoPhase, g.getName()));
+        }
+    }
+
+    @Test
+    public void testSubIndexBuildMatches() throws IOException, InterruptedException, ConfigurationFile.ConfigurationException {
+        File single = TestUtils.buildIndex();
+
+        ConfigurationFile conf = TestUtils.makeSandboxConfiguration();
+        File merged = new File(ConfigurationFile.requireString(conf.get("indexes"), "outputDir"));
+        merged.mkdirs();
+        AllIndexBuilder builder = new AllIndexBuilder(conf, null);
+        for (IndexGenerator g : builder.getGenerators()) {
+            g.setNumSubIndexes(3);
+            g.setMergePolicy(new LogByteSizeMergePolicy());
+        }
+        builder.write(4, 100);
+
+        for (IndexGenerator g : builder.getGenerators()) {
+            assertEquals(g.getName(), storedFields(single, g.getName()), storedFields(merged, g.getName()));
+            assertFalse(new File(merged, g.getName() + "-parts").exists());
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdateMatchesRebuild() throws IOException, InterruptedException, ConfigurationFile.ConfigurationException {
+        Page added1 = new Page(0, 9000001, null, "New page", "A page about [[Anarchism]] and [[Alain Connes]].");
+        Page added2 = new Page(0, 9000002, null, "Other new page", "Links to [[New page]] and [[Anarchism|anarchy]].");
+        Page waiting = new Page(0, 9000003, null, "Waiting page", "Waits for [[New page]] and [[Anarchism]].");
+        File rebuilt = TestUtils.buildIndex(Arrays.asList(waiting, added1, added2));
+
+        File updated = TestUtils.buildIndex(Arrays.asList(waiting));
+        int numInLinks = Integer.valueOf(storedValue(storedFields(updated, "main").get("12"), Page.FIELD_NINLINKS));
+        File conf = new File(updated.getParent(), "conf.txt");
+        AllIndexBuilder builder = new AllIndexBuilder(new ConfigurationFile(conf), null);
+        builder.update(writeDump(updated, added1, added2), 100);
+        for (IndexGenerator g : builder.getGenerators()) {
+            assertEquals(g.getName(), storedFields(rebuilt, g.getName()), storedFields(updated, g.getName()));
+        }
+        Set<String> ids = new HashSet<String>(FileUtils.readLines(new File(updated, AllIndexBuilder.UPDATED_IDS_FILE)));
+        assertTrue(ids.containsAll(Arrays.asList("9000001", "9000002")));
+        assertTrue(ids.contains("12"));     // Anarchism gained in-links
+
+        // the unchanged page's in-link fields were refreshed
+        assertEquals(numInLinks + 2, (int) Integer.valueOf(storedValue(storedFields(updated, "main").get("12"), Page.FIELD_NINLINKS)));
+        List<String> anarchism = storedFields(updated, "links").get("12");
+        assertTrue(anarchism.contains(Page.FIELD_INLINKS + "=9000001"));
+        assertTrue(anarchism.contains(Page.FIELD_INLINKS + "=9000002"));
+
+        // the unchanged page linking to the added title now links to its id
+        assertTrue(ids.contains("9000003"));
+        assertTrue(storedFields(updated, "links").get("9000003").contains(Page.FIELD_LINKS + "=9000001"));
+
+        // a renamed page is no longer linked to under its old title
+        Page renamed = new Page(0, 9000001, null, "Renamed page", added1.getText());
+        rebuilt = TestUtils.buildIndex(Arrays.asList(waiting, renamed, added2));
+        AllIndexBuilder renamer = new AllIndexBuilder(new ConfigurationFile(conf), null);
+        renamer.update(writeDump(updated, renamed), 100);
+        for (IndexGenerator g : renamer.getGenerators()) {
+            assertEquals(g.getName(), storedFields(rebuilt, g.getName()), storedFields(updated, g.getName()));
+        }
+        assertFalse(storedFields(updated, "links").get("9000003").contains(Page.FIELD_LINKS + "=9000001"));
+
+        // a changed page that is now a redirect is removed, along with its links
+        Page redirected = new Page(0, 9000001, "Alain Connes", "New page", "#REDIRECT [[Alain Connes]]");
+        builder = new AllIndexBuilder(new ConfigurationFile(conf), null);
+        builder.update(writeDump(updated, redirected), 100);
+        Map<String, List<String>> links = storedFields(updated, "links");
+        assertFalse(links.containsKey("9000001"));
+        assertTrue(links.get("12").contains(Page.FIELD_INLINKS + "=9000002"));
+        assertFalse(links.get("12").contains(Page.FIELD_INLINKS + "=9000001"));
+    }
+
+    private static File writeDump(File dir, Page ... pages) throws IOException {
+        return TestUtils.writeDump(new File(dir, "changes.xml"), Arrays.asList(pages));
+    }
+
+    /**
+     * @return The value of the first stored field with the name, or null.
+     */
+    private static String storedValue(List<String> fields, String name) {
+        for (String f : fields) {
+            if (f.startsWith(name + "=")) {
+                return f.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return For each wp id, the sorted "name=value" strings of the document's stored fields.
+     */
+    private static Map<String, List<String>> storedFields(File dir, String name) throws IOException {
+        DirectoryReader reader = TestUtils.openReader(dir, name);
+        Map<String, List<String>> docs = new HashMap<String, List<String>>();
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            Document d = reader.document(i);
+            List<String> fields = new ArrayList<String>();
+            for (IndexableField f : d.getFields()) {
+                fields.add(f.name() + "=" + f.stringValue());
+            }
+            Collections.sort(fields);
+            docs.put(d.get(Page.FIELD_WPID), fields);
+        }
+        reader.close();
+        return docs;
+    }
 }
@@ -15,6 +15,7 @@ import java.io.File;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TestIndexHelper {
 
@@ -76,6 +77,19 @@ public class TestIndexHelper {
         assertEquals(linkHelper.getDocFreq(Page.FIELD_LINKS, ""+wpId), 2);
     }
 
+    @Test
+    public void testDocFreqTable() throws IOException {
+        DocFreqTable table = linkHelper.getDocFreqTable(Page.FIELD_LINKS);
+        int wpId = linkHelper.titleToWpId("Academy Award");
+        assertEquals(table.getDocFreqForWpId(wpId), 2);
+        assertEquals(table.getWpId(table.getOrdinal(wpId)), wpId);
+        for (int i = 1; i < table.size(); i++) {
+            assertTrue(table.getWpId(i - 1) < table.getWpId(i));
+            assertEquals(table.getDocFreq(i), linkHelper.getDocFreq(Page.FIELD_LINKS, "" + table.getWpId(i)));
+        }
+        assertEquals(table.getOrdinal(-1), -1);
+    }
+
     @AfterClass
     public static void deleteIndex() throws IOException {
         FileUtils.deleteDirectory(indexPath);
@@ -0,0 +1,119 @@
+package edu.macalester.wpsemsim.lucene;
+
+import edu.macalester.wpsemsim.utils.ParallelForEach;
+import edu.macalester.wpsemsim.utils.Procedure;
+import edu.macalester.wpsemsim.utils.TitleMap;
+import gnu.trove.list.TIntList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPageInfo {
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        // page i links to pages i+1 ... i+5 (mod 1000), and twice to page i+1
+        List<Page> pages = new ArrayList<Page>();
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder text = new StringBuilder("[[Page " + ((i + 1) % 1000) + "]]");
+            for (int j = 1; j <= 5; j++) {
+                text.append(" [[Page_").append((i + j) % 1000).append("|some text]]");
+            }
+            pages.add(new Page(0, i + 1, null, "Page " + i, text.toString()));
+        }
+        final PageInfo info = new PageInfo();
+        ParallelForEach.loop(pages, 8, new Procedure<Page>() {
+            public void call(Page p) {
+                info.update(p);
+            }
+        }, Integer.MAX_VALUE);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i + 1, info.getPageId("Page_" + i));
+            TIntList inLinks = info.getInLinks("Page " + i);
+            assertEquals(5, inLinks.size());
+            for (int j = 1; j <= 5; j++) {
+                assertTrue(inLinks.contains((i - j + 1000) % 1000 + 1));
+            }
+            assertEquals(inLinks, info.getInLinks(i + 1));
+        }
+        assertEquals(0, info.getPageId("Unknown page"));
+        assertEquals(0, info.getInLinks("Unknown page").size());
+        assertEquals(0, info.getInLinks(5000).size());
+
+        // links added after in-links have been read are merged on the next read
+        info.update(new Page(0, 5000, null, "Late page", "[[Page 0]]"));
+        assertEquals(6, info.getInLinks("Page 0").size());
+        assertEquals(6, info.getInLinks(1).size());
+    }
+
+    @Test
+    public void testInLinkGraph() {
+        PageInfo info = new PageInfo();
+        info.update(new Page(0, 30, null, "C", "[[A]] [[B]]"));
+        info.update(new Page(0, 10, null, "A", "[[B]] [[C]] [[B|again]]"));
+        info.update(new Page(0, 20, null, "B", "[[A]]"));
+
+        LinkGraph graph = info.getInLinkGraph();
+        assertEquals(3, graph.size());
+        assertEquals(5, graph.getNumEdges());
+        assertArrayEquals(new int[] { 20, 30 }, graph.getLinks(TitleMap.titleHash("A", false)));
+        assertArrayEquals(new int[] { 10, 30 }, graph.getLinks(TitleMap.titleHash("B", false)));
+        assertArrayEquals(new int[] { 10 }, graph.getLinks(TitleMap.titleHash("C", false)));
+        assertEquals(0, graph.getNumLinks(TitleMap.titleHash("D", false)));
+        for (int i = 1; i < graph.size(); i++) {
+            assertTrue(graph.getTitleHash(i - 1) < graph.getTitleHash(i));
+        }
+
+        // merging keeps the existing edges
+        info.update(new Page(0, 5, null, "D", "[[A]] [[D]]"));
+        graph = info.getInLinkGraph();
+        assertEquals(4, graph.size());
+        assertArrayEquals(new int[] { 5, 20, 30 }, graph.getLinks(TitleMap.titleHash("A", false)));
+        assertArrayEquals(new int[] { 5 }, graph.getLinks(TitleMap.titleHash("D", false)));
+    }
+
+    @Test
+    public void testBuildAcrossChunks() {
+        // enough edges for several chunks per log, with duplicates within and across logs
+        Random random = new Random(1);
+        Map<Long, TreeSet<Integer>> expected = new HashMap<Long, TreeSet<Integer>>();
+        List<EdgeLog> logs = new ArrayList<EdgeLog>();
+        for (int i = 0; i < 2; i++) {
+            EdgeLog log = new EdgeLog();
+            for (int j = 0; j < EdgeLog.EDGES_PER_CHUNK * 3 / 2; j++) {
+                long target = random.nextInt(50000) - 25000;
+                int source = random.nextInt(200);
+                log.add(target, source);
+                if (!expected.containsKey(target)) {
+                    expected.put(target, new TreeSet<Integer>());
+                }
+                expected.get(target).add(source);
+            }
+            logs.add(log);
+        }
+        LinkGraph graph = LinkGraph.build(LinkGraph.EMPTY, logs.subList(0, 1));
+        graph = LinkGraph.build(graph, logs.subList(1, 2));
+
+        assertEquals(expected.size(), graph.size());
+        int numEdges = 0;
+        for (Map.Entry<Long, TreeSet<Integer>> entry : expected.entrySet()) {
+            int links[] = graph.getLinks(entry.getKey());
+            assertEquals(entry.getValue().size(), links.length);
+            int k = 0;
+            for (int source : entry.getValue()) {
+                assertEquals(source, links[k++]);
+            }
+            numEdges += links.length;
+        }
+        assertEquals(numEdges, graph.getNumEdges());
+    }
+}
@@ -0,0 +1,89 @@
+package edu.macalester.wpsemsim.lucene;
+
+import edu.macalester.wpsemsim.utils.TestUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestWikiTextScanner {
+    @Test
+    public void testSameAsRegexesOnDump() {
+        int n = 0;
+        for (Page p : new PageReader(TestUtils.TEST_INPUT_FILE)) {
+            WikiTextScanner scanner = WikiTextScanner.scan(p.getText(), true);
+            assertEquals(p.getTitle(), MarkupStripper.stripEverythingWithRegexes(p.getText()), scanner.getStrippedText());
+            assertEquals(p.getTitle(), getLinksWithRegex(p.getText(), false), scanner.getLinks());
+            assertEquals(p.getTitle(), getLinksWithRegex(p.getText(), true), scanner.getAnchorTexts());
+            assertEquals(p.getTitle(), p.getCategories(), scanner.getCategories());
+            assertEquals(p.getTitle(), scanner.getStrippedText(), p.getStrippedText());
+            n++;
+        }
+        assertEquals(83, n);
+    }
+
+    @Test
+    public void testSameAsRegexesOnEdgeCases() {
+        String cases[] = {
+                "",
+                "plain text",
+                "a {{b {{c}} d}} e }} f",
+                "a {{b {{c}} d",
+                "{{{x}}}y{}}",
+                "a\n== See Also ==\n* [[b]]\n== Notes ==\nc",
+                "a\n===References===\n<references/>\n\n\nafter\n\nmore",
+                "a\n== external links ===\n*x\n",
+                "x {| table [[a]] |} y {|| z",
+                "a\n[[Category:Foo]]\n[[Category:Bar|baz]]\nb",
+                "[[Category:Foo]] starts\nx\n[[fr:Bar]]",
+                "text\n[[a]]b",
+                "text\n[[a]] , ;\nnext",
+                "[[Image:x.jpg|thumb|a [[b]] c]] [[File:y|z [[w]]]] [[a|b|c]] [[:d]]",
+                "[[unclosed [[link]] here",
+                "a <!-- comment [[x]] --> b <!--> c --> d <!-- open",
+                "a<ref>x</ref>b<ref name=\"y\"/>c<ref name=z>w</ref>d<ref\\>e",
+                "a <b>bold</b> < c\n d > <i\n>",
+                "[http://x.org label] [www.y.com] [[http://z]] [ftp://q] [http://a\nb]",
+                "'''bold''' ''it'' 'q' ==h== =x= ''=''=",
+                "\n:indent\n::x\n*a\n** b\n*\n*c\n#d\n\n\n\n\ne",
+                "[[a]]",
+                "x\n[[a]]",
+                "x\n[[a]]y",
+                "x\n[[a]]yz",
+                "x\n[[a]]          y",
+                "x\n[[a]]         yz",
+                "x\n[[a]]\n[[b]]\n[[c]] d",
+        };
+        for (String markup : cases) {
+            assertEquals(markup, MarkupStripper.stripEverythingWithRegexes(markup), WikiTextScanner.strip(markup));
+            assertEquals(markup, getLinksWithRegex(markup, false), WikiTextScanner.scan(markup, false).getLinks());
+        }
+    }
+
+    private static final Pattern LINK_PATTERN = Pattern.compile("\\[\\[([^\\]]+?)\\]\\]");
+
+    /**
+     * The regex link extraction that Page used before WikiTextScanner.
+     */
+    private static List<String> getLinksWithRegex(String text, boolean anchorTexts) {
+        List<String> result = new ArrayList<String>();
+        Matcher linkMatcher = LINK_PATTERN.matcher(text);
+        while (linkMatcher.find()) {
+            String addition = linkMatcher.group(1);
+            String description = addition;
+            if (addition.contains("|")) {
+                description = addition.substring(addition.indexOf("|") + 1);
+                addition = addition.substring(0, addition.indexOf("|"));
+            }
+            addition = addition.trim().replaceAll("\\s+", "_");
+            if (!addition.contains("Image:")) {
+                result.add(anchorTexts ? description : addition);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,56 @@
+package edu.macalester.wpsemsim.sim;
+
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.utils.ConfigurationFile;
+import edu.macalester.wpsemsim.utils.DocScore;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.TestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestMilneWittenSimilarity {
+    static File indexPath;
+    static IndexHelper helper;
+
+    @BeforeClass
+    public static void createIndex() throws IOException, InterruptedException, ConfigurationFile.ConfigurationException {
+        indexPath = TestUtils.buildIndex();
+        helper = new IndexHelper(new File(indexPath, "links"), true);
+    }
+
+    @Test
+    public void testMostSimilar() throws IOException {
+        MilneWittenInLinkSimilarity sim = new MilneWittenInLinkSimilarity(null, helper, helper);
+        sim.setMinDocFreq(1);
+        int wpIds[] = helper.getWpIds();
+        int numNonZero = 0;
+        for (int wpId1 : wpIds) {
+            DocScoreList top = sim.mostSimilar(wpId1, Integer.MAX_VALUE);
+            assertTrue(top != null);
+            for (DocScore ds : top) {
+                assertEquals(sim.similarity(wpId1, ds.getId()), ds.getScore(), 0.000001);
+            }
+            for (int wpId2 : wpIds) {
+                double s = sim.similarity(wpId1, wpId2);
+                if (s != 0.0 && !Double.isNaN(s)) {
+                    numNonZero++;
+                    assertTrue(top.getIndexForId(wpId2) >= 0);
+                }
+            }
+        }
+        assertTrue(numNonZero > 0);
+    }
+
+    @AfterClass
+    public static void removeIndex() throws IOException {
+        FileUtils.deleteDirectory(indexPath);
+    }
+}
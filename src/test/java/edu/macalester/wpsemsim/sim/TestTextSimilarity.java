@@ -3,6 +3,7 @@ package edu.macalester.wpsemsim.sim;
 import edu.macalester.wpsemsim.lucene.IndexHelper;
 import edu.macalester.wpsemsim.utils.ConfigurationFile;
 import edu.macalester.wpsemsim.utils.DocScore;
+import edu.macalester.wpsemsim.utils.DocScoreList;
 import edu.macalester.wpsemsim.utils.TestUtils;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import org.apache.lucene.document.Document;
@@ -60,6 +61,56 @@ public class TestTextSimilarity {
         }
     }
 
+    @Test
+    public void testSimilarities() throws IOException {
+        TextSimilarity sim = new TextSimilarity(helper, "text");
+        sim.setMaxPercentage(100);
+        int wpIds[] = helper.getWpIds();
+        for (int wpId1 : wpIds) {
+            double batch[] = sim.similarities(wpId1, wpIds);
+            assertEquals(batch.length, wpIds.length);
+            for (int j = 0; j < wpIds.length; j++) {
+                assertEquals(sim.similarity(wpId1, wpIds[j]), batch[j], 0.001);
+            }
+        }
+    }
+
+    @Test
+    public void testQueryCache() throws IOException {
+        TextSimilarity cached = new TextSimilarity(helper, "text");
+        cached.setMaxPercentage(100);
+        TextSimilarity uncached = new TextSimilarity(helper, "text");
+        uncached.setMaxPercentage(100);
+        uncached.setQueryCacheSize(0);
+        int wpIds[] = helper.getWpIds();
+
+        // the second round is answered from cached queries
+        for (int round = 0; round < 2; round++) {
+            for (int wpId : wpIds) {
+                assertSameResults(uncached.mostSimilar(wpId, Integer.MAX_VALUE), cached.mostSimilar(wpId, Integer.MAX_VALUE));
+            }
+        }
+        assertEquals(wpIds.length, cached.getQueryCache().size());
+        assertEquals(wpIds.length, cached.getQueryCache().getNumHits());
+        assertEquals(0, uncached.getQueryCache().size());
+
+        // changing a query parameter invalidates the cached queries
+        cached.setMinTermFreq(3);
+        uncached.setMinTermFreq(3);
+        assertEquals(0, cached.getQueryCache().size());
+        for (int wpId : wpIds) {
+            assertSameResults(uncached.mostSimilar(wpId, Integer.MAX_VALUE), cached.mostSimilar(wpId, Integer.MAX_VALUE));
+            assertEquals(uncached.similarity(wpId, wpIds[0]), cached.similarity(wpId, wpIds[0]), 0.0);
+        }
+    }
+
+    private static void assertSameResults(DocScoreList expected, DocScoreList actual) {
+        assertEquals(expected.numDocs(), actual.numDocs());
+        for (int i = 0; i < expected.numDocs(); i++) {
+            assertEquals(expected.getId(i), actual.getId(i));
+            assertEquals(expected.getScore(i), actual.getScore(i), 0.0);
+        }
+    }
 
     @AfterClass
     public static void removeIndex() {
@@ -1,10 +1,14 @@
 package edu.macalester.wpsemsim.sim.category;
 
 import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.matrix.SparseMatrixRow;
+import edu.macalester.wpsemsim.matrix.ValueConf;
 import edu.macalester.wpsemsim.utils.ConfigurationFile;
 import edu.macalester.wpsemsim.utils.DocScore;
 import edu.macalester.wpsemsim.utils.TestUtils;
 import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.set.hash.TIntHashSet;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
@@ -18,8 +22,10 @@ import java.io.*;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestCatSimilarity {
     private static final File TEST_CATEGORY_DUMP = new File("dat/test/cat_info.txt");
@@ -120,6 +126,134 @@ public class TestCatSimilarity {
         assertTrue(bfs.hasPageDistance(wpId));
         assertEquals(pathDistance(path), bfs.getPageDistance(wpId), 0.001);
 
+        // page distances outlive the search, but the search itself does not
+        bfs.release();
+        assertEquals(pathDistance(path), bfs.getPageDistance(wpId), 0.001);
+        try {
+            bfs.hasMoreResults();
+            fail("released search should not be usable");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testPageCategories() throws IOException {
+        Bits bits = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (bits != null && !bits.get(i)) { continue; }
+            Document doc = reader.document(i);
+            TIntHashSet expected = new TIntHashSet();
+            for (String cat : doc.getValues("cats")) {
+                expected.add(graph.getCategoryIndex(cat));
+            }
+            int wpId = Integer.valueOf(doc.get("id"));
+            assertEquals(expected, new TIntHashSet(graph.getPageCategories(wpId)));
+            assertEquals(expected.isEmpty(), graph.getPageIndex(wpId) < 0);
+        }
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        File file = File.createTempFile("graph", ".bin");
+        file.deleteOnExit();
+        graph.write(file);
+        CategoryGraph graph2 = CategoryGraph.read(file, helper);
+        assertArrayEquals(graph.cats, graph2.cats);
+        assertArrayEquals(graph.catParentOffsets, graph2.catParentOffsets);
+        assertArrayEquals(graph.catParentIds, graph2.catParentIds);
+        assertArrayEquals(graph.catChildOffsets, graph2.catChildOffsets);
+        assertArrayEquals(graph.catChildIds, graph2.catChildIds);
+        assertArrayEquals(graph.catPageOffsets, graph2.catPageOffsets);
+        assertArrayEquals(graph.catPageIds, graph2.catPageIds);
+        assertArrayEquals(graph.pageWpIds, graph2.pageWpIds);
+        assertArrayEquals(graph.pageCatOffsets, graph2.pageCatOffsets);
+        assertArrayEquals(graph.pageCatIds, graph2.pageCatIds);
+        assertArrayEquals(graph.catCosts, graph2.catCosts, 0.0);
+        assertEquals(graph.minCost, graph2.minCost, 0.0);
+        for (String cat : graph.cats) {
+            assertEquals(graph.getCategoryIndex(cat), graph2.getCategoryIndex(cat));
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testLabels() throws IOException {
+        verifyLabels(CategoryLabelBuilder.DEFAULT_MAX_LABELS);
+        verifyLabels(3);    // short labels often fall back to searching
+    }
+
+    private void verifyLabels(int maxLabels) throws IOException {
+        File file = File.createTempFile("labels", ".matrix");
+        file.deleteOnExit();
+        CategoryLabelBuilder builder = new CategoryLabelBuilder(graph);
+        builder.setMaxLabels(maxLabels);
+        builder.build(file, 2);
+        CategorySimilarity labelSim = new CategorySimilarity(graph, helper);
+        labelSim.setLabels(new SparseMatrix(file), maxLabels);
+        try {
+            new CategorySimilarity(graph, helper).setLabels(new SparseMatrix(file), maxLabels + 1);
+            fail("labels accepted a different maxLabels");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        Bits bits = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (bits != null && !bits.get(i)) { continue; }
+            Document doc1 = reader.document(i);
+            if (graph.isCat(doc1)) { continue; }
+            for (int j = 0; j < reader.maxDoc(); j++) {
+                if (bits != null && !bits.get(j)) { continue; }
+                Document doc2 = reader.document(j);
+                if (graph.isCat(doc2)) { continue; }
+                int wpId1 = Integer.valueOf(doc1.get("id"));
+                int wpId2 = Integer.valueOf(doc2.get("id"));
+                assertEquals(catSim.similarity(wpId1, wpId2), labelSim.similarity(wpId1, wpId2), 0.001);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void testMostSimilarWriter() throws IOException {
+        int wpIds[] = helper.getWpIds();
+        Map<Integer, TIntDoubleHashMap> expected = new HashMap<Integer, TIntDoubleHashMap>();
+        for (int wpId : wpIds) {
+            expected.put(wpId, new TIntDoubleHashMap());
+            for (DocScore score : catSim.mostSimilar(wpId, Integer.MAX_VALUE)) {
+                expected.get(wpId).put(score.getId(), score.getScore());
+            }
+        }
+        verifyMostSimilarWriter(wpIds, expected, Integer.MAX_VALUE, CategoryMostSimilarWriter.DEFAULT_GIANT_CATEGORY_SIZE, true);
+        verifyMostSimilarWriter(wpIds, expected, 5, CategoryMostSimilarWriter.DEFAULT_GIANT_CATEGORY_SIZE, true);
+        verifyMostSimilarWriter(wpIds, expected, 5, 2, false);
+    }
+
+    private void verifyMostSimilarWriter(int wpIds[], Map<Integer, TIntDoubleHashMap> expected,
+                                         int maxResults, int giantCategorySize, boolean exactSize) throws IOException {
+        File file = File.createTempFile("category-sims", ".matrix");
+        file.deleteOnExit();
+        CategoryMostSimilarWriter writer = new CategoryMostSimilarWriter(catSim, file);
+        writer.setGiantCategorySize(giantCategorySize);
+        writer.writeSims(wpIds, 2, maxResults);
+
+        SparseMatrix matrix = new SparseMatrix(file);
+        ValueConf vconf = matrix.getValueConf();
+        assertEquals(wpIds.length, matrix.getNumRows());
+        for (int wpId : wpIds) {
+            SparseMatrixRow row = matrix.getRow(wpId);
+            TIntDoubleHashMap sims = expected.get(wpId);
+            assertTrue(row.getNumCols() <= maxResults);
+            if (exactSize) {
+                assertEquals(Math.min(maxResults, sims.size()), row.getNumCols());
+            }
+            for (int i = 0; i < row.getNumCols(); i++) {
+                int id = row.getColIndex(i);
+                assertTrue(sims.containsKey(id));
+                assertEquals(vconf.pinchScore((float) sims.get(id)), row.getColValue(i), 0.001);
+            }
+        }
+        file.delete();
     }
 
     @Test
@@ -0,0 +1,43 @@
+package edu.macalester.wpsemsim.sim.esa;
+
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestConceptVector {
+    @Test
+    public void testFromUnsorted() {
+        ConceptVector v = ConceptVector.fromUnsorted(
+                new int[] { 7, 3, -1, 7, 5, 9 },
+                new float[] { 1.0f, 2.0f, 8.0f, 0.5f, 3.0f, 4.0f },
+                5);     // ignores the last entry
+        assertEquals(3, v.size());
+        assertEquals(3, v.getId(0));
+        assertEquals(5, v.getId(1));
+        assertEquals(7, v.getId(2));
+        assertEquals(1.5f, v.getScoreForId(7), 0.000001);
+        assertEquals(0.0f, v.getScoreForId(9), 0.000001);
+        assertEquals(Math.sqrt(4.0 + 9.0 + 2.25), v.getNorm(), 0.000001);
+    }
+
+    @Test
+    public void testCosine() {
+        ConceptVector v1 = ConceptVector.fromUnsorted(new int[] { 1, 2, 4 }, new float[] { 1.0f, 2.0f, 3.0f }, 3);
+        ConceptVector v2 = ConceptVector.fromUnsorted(new int[] { 4, 3, 1 }, new float[] { 1.0f, 5.0f, 2.0f }, 3);
+        assertEquals(5.0, v1.dot(v2), 0.000001);
+        assertEquals(5.0 / (Math.sqrt(14.0) * Math.sqrt(30.0)), v1.cosine(v2), 0.000001);
+        assertTrue(Double.isNaN(v1.cosine(ConceptVector.EMPTY)));
+    }
+
+    @Test
+    public void testTop() {
+        ConceptVector v = ConceptVector.fromUnsorted(new int[] { 1, 2, 3, 4 }, new float[] { 0.1f, 0.4f, 0.3f, 0.2f }, 4);
+        DocScoreList top = v.getTop(2);
+        assertEquals(2, top.numDocs());
+        assertEquals(2, top.getId(0));
+        assertEquals(3, top.getId(1));
+        assertEquals(4, v.getTop(10).numDocs());
+    }
+}
@@ -0,0 +1,137 @@
+package edu.macalester.wpsemsim.sim.esa;
+
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.utils.ConfigurationFile;
+import edu.macalester.wpsemsim.utils.TestUtils;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestESATermMatrix {
+    static File indexPath;
+    static File matrixPath;
+    static IndexHelper helper;
+
+    @BeforeClass
+    public static void createIndex() throws IOException, InterruptedException, ConfigurationFile.ConfigurationException {
+        indexPath = TestUtils.buildIndex();
+        helper = new IndexHelper(new File(indexPath, "text"), true);
+        matrixPath = File.createTempFile("esa-terms", ".matrix");
+        new ESATermMatrixBuilder(helper).build(matrixPath);
+    }
+
+    @Test
+    public void testSingleTerms() throws IOException {
+        ESASimilarity lucene = new ESASimilarity(helper);
+        ESASimilarity precomputed = new ESASimilarity(helper);
+        precomputed.setTermMatrix(new ESATermMatrix(matrixPath));
+
+        int numChecked = 0;
+        for (String phrase : getWords(200)) {
+            ConceptVector expected = lucene.getConceptVector(phrase, null);
+            ConceptVector actual = precomputed.getConceptVector(phrase, null);
+            assertEquals(expected.size(), actual.size());
+            if (expected.isEmpty()) {
+                continue;
+            }
+            // A single term query scores each concept proportionally to its weight.
+            double ratio = expected.getScore(0) / actual.getScore(0);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.getId(i), actual.getId(i));
+                assertEquals(expected.getScore(i), ratio * actual.getScore(i), 0.001 * expected.getScore(i));
+            }
+            numChecked++;
+        }
+        assertTrue(numChecked > 0);
+    }
+
+    @Test
+    public void testMultipleTerms() throws IOException {
+        ESASimilarity lucene = new ESASimilarity(helper);
+        ESASimilarity precomputed = new ESASimilarity(helper);
+        precomputed.setTermMatrix(new ESATermMatrix(matrixPath));
+
+        List<String> words = getWords(200);
+        int numChecked = 0;
+        for (int i = 0; i + 2 < words.size(); i += 3) {
+            String phrase = words.get(i) + " " + words.get(i + 1) + " " + words.get(i + 2);
+            ConceptVector expected = lucene.getConceptVector(phrase, null);
+            ConceptVector actual = precomputed.getConceptVector(phrase, null);
+            assertEquals(expected.size(), actual.size());
+            if (expected.isEmpty()) {
+                continue;
+            }
+            // Scores only differ by the query norm, so concepts matching fewer of the
+            // terms must be scaled down by coord just as they are in the query.
+            double ratio = expected.getScore(0) / actual.getScoreForId(expected.getId(0));
+            for (int j = 0; j < expected.size(); j++) {
+                double score = ratio * actual.getScoreForId(expected.getId(j));
+                assertEquals(expected.getScore(j), score, 0.001 * expected.getScore(0));
+            }
+            numChecked++;
+        }
+        assertTrue(numChecked > 0);
+    }
+
+    @Test
+    public void testPhraseCacheUsesFilterContents() throws IOException {
+        ESASimilarity esa = new ESASimilarity(helper);
+        String phrase = getWords(1).get(0);
+        TIntSet filter1 = new TIntHashSet(helper.getWpIds());
+        TIntSet filter2 = new TIntHashSet(helper.getWpIds());
+
+        esa.getConceptVector(phrase, filter1);
+        esa.getConceptVector(phrase, filter2);
+        assertEquals(1, esa.getPhraseCache().size());
+        assertEquals(1, esa.getPhraseCache().getNumHits());
+
+        // a modified filter must not reuse the vector cached for its old contents
+        filter1.remove(helper.getWpIds()[0]);
+        esa.getConceptVector(phrase, filter1);
+        assertEquals(2, esa.getPhraseCache().size());
+        assertEquals(1, esa.getPhraseCache().getNumHits());
+
+        // the same set instance keeps hitting its entry
+        esa.getConceptVector(phrase, filter1);
+        esa.getConceptVector(phrase, null);
+        esa.getConceptVector(phrase, null);
+        assertEquals(3, esa.getPhraseCache().size());
+        assertEquals(3, esa.getPhraseCache().getNumHits());
+    }
+
+    private List<String> getWords(int n) throws IOException {
+        List<String> words = new ArrayList<String>();
+        Terms terms = MultiFields.getTerms(helper.getReader(), "text");
+        TermsEnum te = terms.iterator(null);
+        BytesRef ref;
+        while (words.size() < n && (ref = te.next()) != null) {
+            String term = ref.utf8ToString();
+            if (term.matches("[a-z]+")) {
+                words.add(term);
+            }
+        }
+        return words;
+    }
+
+    @AfterClass
+    public static void removeIndex() throws IOException {
+        FileUtils.deleteDirectory(indexPath);
+        FileUtils.deleteQuietly(matrixPath);
+        FileUtils.deleteQuietly(ESATermMatrix.getTermsPath(matrixPath));
+    }
+}
@@ -0,0 +1,106 @@
+package edu.macalester.wpsemsim.sim.esa;
+
+import edu.macalester.wpsemsim.lucene.IndexHelper;
+import edu.macalester.wpsemsim.matrix.SparseMatrix;
+import edu.macalester.wpsemsim.utils.ConfigurationFile;
+import edu.macalester.wpsemsim.utils.DocScore;
+import edu.macalester.wpsemsim.utils.DocScoreList;
+import edu.macalester.wpsemsim.utils.TestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestESAVectorBuilder {
+    static File indexPath;
+    static File matrixPath;
+    static File transposePath;
+    static IndexHelper helper;
+
+    @BeforeClass
+    public static void createIndex() throws IOException, InterruptedException, ConfigurationFile.ConfigurationException {
+        indexPath = TestUtils.buildIndex();
+        helper = new IndexHelper(new File(indexPath, "text"), true);
+        matrixPath = File.createTempFile("esa-vectors", ".matrix");
+        transposePath = File.createTempFile("esa-vectors", ".transpose.matrix");
+        new ESAVectorBuilder(newSimilarity()).build(helper.getWpIds(), matrixPath, transposePath, 2);
+    }
+
+    private static ESASimilarity newSimilarity() {
+        ESASimilarity sim = new ESASimilarity(helper);
+        sim.setMinDocFreq(1);
+        sim.setMinTermFreq(1);
+        return sim;
+    }
+
+    @Test
+    public void testCosine() throws IOException {
+        ESASimilarity lucene = newSimilarity();
+        ESASimilarity precomputed = newSimilarity();
+        precomputed.setVectorMatrices(new SparseMatrix(matrixPath), new SparseMatrix(transposePath));
+
+        int wpIds[] = helper.getWpIds();
+        int numNonZero = 0;
+        for (int wpId1 : wpIds) {
+            ConceptVector v1 = lucene.getConceptVector(wpId1, ESAVectorBuilder.DEFAULT_MAX_CONCEPTS);
+            DocScoreList top = precomputed.mostSimilar(wpId1, wpIds.length);
+            for (int wpId2 : wpIds) {
+                ConceptVector v2 = lucene.getConceptVector(wpId2, ESAVectorBuilder.DEFAULT_MAX_CONCEPTS);
+                double actual = precomputed.similarity(wpId1, wpId2);
+                if (v1.isEmpty() || v2.isEmpty()) {
+                    continue;
+                }
+                double expected = v1.cosine(v2);
+                assertEquals(expected, actual, 0.001);
+                if (expected > 0.001) {
+                    numNonZero++;
+                    assertTrue(top.getIndexForId(wpId2) >= 0);
+                }
+            }
+            for (DocScore ds : top) {
+                assertEquals(precomputed.similarity(wpId1, ds.getId()), ds.getScore(), 0.001);
+            }
+        }
+        assertTrue(numNonZero > 0);
+    }
+
+    @Test
+    public void testFailedVectorsFailBuild() throws IOException {
+        final int badId = helper.getWpIds()[0];
+        ESASimilarity sim = new ESASimilarity(helper) {
+            @Override
+            public ConceptVector getConceptVector(int wpId, int maxConcepts) throws IOException {
+                if (wpId == badId) {
+                    throw new IOException("bad article");
+                }
+                return super.getConceptVector(wpId, maxConcepts);
+            }
+        };
+        File matrix = File.createTempFile("esa-vectors", ".matrix");
+        File transpose = File.createTempFile("esa-vectors", ".transpose.matrix");
+        try {
+            new ESAVectorBuilder(sim).build(helper.getWpIds(), matrix, transpose, 2);
+            fail("build should fail when a concept vector fails");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("failed for 1 of"));
+            assertEquals("bad article", e.getCause().getMessage());
+        } finally {
+            FileUtils.deleteQuietly(matrix);
+            FileUtils.deleteQuietly(transpose);
+        }
+    }
+
+    @AfterClass
+    public static void removeIndex() throws IOException {
+        FileUtils.deleteDirectory(indexPath);
+        FileUtils.deleteQuietly(matrixPath);
+        FileUtils.deleteQuietly(transposePath);
+    }
+}
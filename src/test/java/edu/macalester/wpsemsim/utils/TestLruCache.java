@@ -0,0 +1,54 @@
+package edu.macalester.wpsemsim.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLruCache {
+    @Test
+    public void testEviction() {
+        LruCache<Integer, String> cache = new LruCache<Integer, String>(2);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        assertEquals("a", cache.get(1));   // 2 is now least recently used
+        cache.put(3, "c");
+        assertEquals(2, cache.size());
+        assertNull(cache.get(2));
+        assertEquals("a", cache.get(1));
+        assertEquals("c", cache.get(3));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testScanResistance() {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(10);
+        for (int i = 0; i < 5; i++) {
+            cache.put(i, i);
+            cache.get(i);   // promoted to the protected region
+        }
+        for (int i = 100; i < 200; i++) {
+            cache.put(i, i);    // a scan of one-off keys
+        }
+        assertEquals(10, cache.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, cache.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testStats() {
+        LruCache<Integer, Integer> cache = new LruCache<Integer, Integer>(1000);
+        assertTrue(Double.isNaN(cache.getHitRate()));
+        for (int i = 0; i < 2000; i++) {
+            cache.put(i, i);
+        }
+        assertEquals(1000, cache.size());
+        assertEquals(1000, cache.getNumEvictions());
+        for (int i = 0; i < 2000; i++) {
+            cache.get(i);
+        }
+        assertEquals(2000, cache.getNumHits() + cache.getNumMisses());
+        assertEquals(cache.getNumHits() / 2000.0, cache.getHitRate(), 0.000001);
+    }
+}
@@ -0,0 +1,98 @@
+package edu.macalester.wpsemsim.utils;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestParallelBZip2InputStream {
+    @Test
+    public void testManyBlocks() throws IOException {
+        byte text[] = makeText(1500000);
+        verify(text, compress(text));
+    }
+
+    @Test
+    public void testConcatenatedStreams() throws IOException {
+        byte text1[] = makeText(300000);
+        byte text2[] = makeText(50);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for (byte text[] : new byte[][] { text1, text2, new byte[0], text1 }) {
+            expected.write(text);
+            compressed.write(compress(text));
+        }
+        verify(expected.toByteArray(), compressed.toByteArray());
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        verify(new byte[0], new byte[0]);
+        verify(new byte[0], compress(new byte[0]));
+    }
+
+    @Test(timeout = 30000)
+    public void testInputErrorWithFullQueue() throws Exception {
+        byte text[] = makeText(1500000);
+        final byte compressed[] = compress(text);
+        InputStream failing = new InputStream() {
+            int pos = 0;
+            public int read() throws IOException {
+                if (pos == compressed.length) {
+                    throw new IOException("disk error");
+                }
+                return compressed[pos++] & 0xff;
+            }
+        };
+        ParallelBZip2InputStream input = new ParallelBZip2InputStream(failing, 1);
+        Thread.sleep(1000);     // let the scanner fill the queue before the error
+        try {
+            IOUtils.toByteArray(input);
+            fail("the input error should reach the reader");
+        } catch (IOException e) {
+            assertEquals("disk error", e.getCause().getMessage());
+        } finally {
+            input.close();
+        }
+    }
+
+    private void verify(byte expected[], byte compressed[]) throws IOException {
+        for (int threads : new int[] { 1, 3 }) {
+            ParallelBZip2InputStream input = new ParallelBZip2InputStream(new ByteArrayInputStream(compressed), threads);
+            assertArrayEquals(expected, IOUtils.toByteArray(input));
+            input.close();
+        }
+        ParallelBZip2InputStream shared = new ParallelBZip2InputStream(new ByteArrayInputStream(compressed));
+        assertArrayEquals(expected, IOUtils.toByteArray(shared));
+        shared.close();
+    }
+
+    /**
+     * Compresses with the smallest block size (100k) so the text spans many blocks.
+     */
+    private byte[] compress(byte text[]) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BZip2CompressorOutputStream bz = new BZip2CompressorOutputStream(out, 1);
+        bz.write(text);
+        bz.close();
+        return out.toByteArray();
+    }
+
+    private byte[] makeText(int length) {
+        Random random = new Random(length);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < length) {
+            sb.append("word").append(random.nextInt(10000)).append(random.nextInt(10) == 0 ? "\n" : " ");
+        }
+        return sb.substring(0, length).getBytes();
+    }
+}
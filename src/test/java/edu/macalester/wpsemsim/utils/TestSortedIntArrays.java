@@ -0,0 +1,82 @@
+package edu.macalester.wpsemsim.utils;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestSortedIntArrays {
+    @Test
+    public void testSmall() {
+        int A[] = new int[] { 1, 3, 5, 7, 9 };
+        int B[] = new int[] { 2, 3, 4, 9, 10, 11 };
+        assertEquals(2, SortedIntArrays.intersectionSize(A, B));
+        assertEquals(2, SortedIntArrays.intersectionSize(B, A));
+        assertEquals(9, SortedIntArrays.unionSize(A, B));
+        assertEquals(0, SortedIntArrays.intersectionSize(A, new int[0]));
+        double W[] = new double[] { 0.1, 0.3, 0.5, 0.7, 0.9 };
+        assertEquals(1.2, SortedIntArrays.weightedIntersectionSum(A, W, B), 0.000001);
+        float byId[] = new float[12];
+        for (int i = 0; i < byId.length; i++) {
+            byId[i] = i;
+        }
+        assertEquals(12.0, SortedIntArrays.weightedIntersectionSum(A, B, byId), 0.000001);
+        double byIdD[] = new double[12];
+        for (int i = 0; i < byIdD.length; i++) {
+            byIdD[i] = 0.5 * i;
+        }
+        assertEquals(6.0, SortedIntArrays.weightedIntersectionSum(B, A, byIdD), 0.000001);
+    }
+
+    @Test
+    public void testSortUnique() {
+        int X[] = SortedIntArrays.sortUnique(new int[] { 5, 3, 5, 1, 3, 9 });
+        assertArrayEquals(new int[] { 1, 3, 5, 9}, X);
+    }
+
+    @Test
+    public void testRandom() {
+        Random random = new Random();
+        for (int trial = 0; trial < 500; trial++) {
+            // vary the size ratio so that both merging and galloping are exercised.
+            int A[] = randomSet(random, random.nextInt(20), 1000);
+            int B[] = randomSet(random, random.nextInt(trial + 1), 1000);
+            float byId[] = new float[1000];
+            for (int i = 0; i < byId.length; i++) {
+                byId[i] = random.nextFloat();
+            }
+            double W[] = new double[A.length];
+            for (int i = 0; i < W.length; i++) {
+                W[i] = random.nextDouble();
+            }
+
+            TIntSet I = new TIntHashSet(A); I.retainAll(B);
+            TIntSet U = new TIntHashSet(A); U.addAll(B);
+            double sum = 0.0;
+            double sumById = 0.0;
+            for (int i = 0; i < A.length; i++) {
+                if (I.contains(A[i])) {
+                    sum += W[i];
+                    sumById += byId[A[i]];
+                }
+            }
+            assertEquals(I.size(), SortedIntArrays.intersectionSize(A, B));
+            assertEquals(I.size(), SortedIntArrays.intersectionSize(B, A));
+            assertEquals(U.size(), SortedIntArrays.unionSize(A, B));
+            assertEquals(sum, SortedIntArrays.weightedIntersectionSum(A, W, B), 0.000001);
+            assertEquals(sumById, SortedIntArrays.weightedIntersectionSum(A, B, byId), 0.0001);
+            assertEquals(sumById, SortedIntArrays.weightedIntersectionSum(B, A, byId), 0.0001);
+        }
+    }
+
+    private int[] randomSet(Random random, int n, int maxValue) {
+        int X[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            X[i] = random.nextInt(maxValue);
+        }
+        return SortedIntArrays.sortUnique(X);
+    }
+}
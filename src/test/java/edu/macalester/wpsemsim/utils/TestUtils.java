@@ -7,6 +7,7 @@ import edu.macalester.wpsemsim.sim.*;
 import edu.macalester.wpsemsim.sim.utils.SimilarityMetricBuilder;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.store.MMapDirectory;
 
@@ -38,28 +39,56 @@ public class TestUtils {
             throw new IllegalArgumentException("couldn't make directory " + outputDir);
         }
 
+        // additional pages are read from a dump of their own after the test dump
+        final File additionalDump = File.createTempFile("wpsemsim-additional", ".xml");
+        additionalDump.deleteOnExit();
+        writeDump(additionalDump, additional);
         try {
             AllIndexBuilder builder = new AllIndexBuilder(conf, null) {
                 @Override
-                protected void process(int numThreads) throws InterruptedException {
-                    super.process(numThreads);
-                    for (Page d : additional) {
-                        try {
-                            this.storePage(d);
-                        } catch (IOException e) {
-                            e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
-                        }
-                    }
+                protected List<File> getInputFiles() {
+                    List<File> inputs = super.getInputFiles();
+                    inputs.add(additionalDump);
+                    return inputs;
                 }
             };
             builder.write(1, 100);
         } catch (ConfigurationFile.ConfigurationException e) {
             throw new IOException(e);
+        } finally {
+            additionalDump.delete();
         }
 
         return outputDir;
     }
 
+    /**
+     * Writes pages to a file in Wikipedia XML dump format.
+     * @param dump
+     * @param pages
+     * @return The dump file.
+     * @throws IOException
+     */
+    public static File writeDump(File dump, List<Page> pages) throws IOException {
+        StringBuilder xml = new StringBuilder("<mediawiki>\n");
+        for (Page p : pages) {
+            xml.append("  <page>\n")
+               .append("    <title>").append(StringEscapeUtils.escapeXml(p.getTitle())).append("</title>\n")
+               .append("    <ns>").append(p.getNs()).append("</ns>\n")
+               .append("    <id>").append(p.getId()).append("</id>\n");
+            if (p.isRedirect()) {
+                xml.append("    <redirect title=\"").append(StringEscapeUtils.escapeXml(p.getRedirect())).append("\" />\n");
+            }
+            xml.append("    <revision>\n")
+               .append("      <text xml:space=\"preserve\">").append(StringEscapeUtils.escapeXml(p.getText())).append("</text>\n")
+               .append("    </revision>\n")
+               .append("  </page>\n");
+        }
+        xml.append("</mediawiki>\n");
+        FileUtils.writeStringToFile(dump, xml.toString(), "UTF-8");
+        return dump;
+    }
+
     public static File buildIndexWithCategories() throws IOException, InterruptedException, ConfigurationFile.ConfigurationException {
         // Add fake documents for category structure
         List<Page> cats = new ArrayList<Page>();